@@ -0,0 +1,11 @@
+@echo off
+
+REM Records which classes MIDITools loads into MIDITools.jsa, so that "Drag MIDI to Me.bat" starts faster
+REM - Runs every transformation on a made-up midi - no midi needs to be given
+REM - Rerun this after updating MIDITools.jar or java, since the archive only works with the ones it was made with
+java -XX:ArchiveClassesAtExit=MIDITools.jsa -jar MIDITools.jar --train
+
+REM Shows how much faster it starts - drag a small midi onto this file to run it
+if not "%~1"=="" java -cp MIDITools.jar MIDITools.StartupBenchmark "%~1" 10 MIDITools.jsa
+
+pause
\ No newline at end of file
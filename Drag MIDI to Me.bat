@@ -7,14 +7,17 @@ REM -p (pitch bend) [default range = 2]"
 REM -v (vibrato) [vibrato range = 5]
 REM -r (reverb) [reverb range = 26]
 REM -c (clean up) [event number] [tolerance = 10] [tick tolerance = 240]
-REM -e (expression)
+REM -e (expression) [replace|merge = replace]
 REM -a (add) [event number] [amount] [channel = -1]
 REM -s (subtract) [event number] [amount] [channel = -1]
 REM -m (move to start) [space-delimited event numbers]
 REM -n (note pitch) [channel number] [base note] [pitch bend range = 12]
+REM -t (tracks) [split|merge = split]
+REM -l (limit) [max events = 4] [window ticks = 120]
+REM -q (quantize) [event number] [note division = 32] [channel = -1]
 
 REM --------------------------------------------------------------------
-REM For reference, commonly used event numbers for the -c, -a, -s, and -m flags:
+REM For reference, commonly used event numbers for the -c, -a, -s, -q, and -m flags:
 REM - pitch-bend
 REM - program-change
 REM - 7 (Channel Volume)
@@ -27,6 +30,11 @@ REM -p for pitch bend adjustments (default value assuming a range of 2)
 REM -v for vibrato adjustments (default range of 5)
 REM -r for reverb adjustments (default range of 26)
 REM -c to clean up pitch bends to a tolerance of 16
-java -jar MIDITools.jar "%~1" -p -v -r -c pitch-bend 16
+REM Starts faster with the archive from "Create Startup Archive.bat", if it's been run
+if exist MIDITools.jsa (
+    java -XX:SharedArchiveFile=MIDITools.jsa -XX:TieredStopAtLevel=1 -jar MIDITools.jar "%~1" -p -v -r -c pitch-bend 16
+) else (
+    java -jar MIDITools.jar "%~1" -p -v -r -c pitch-bend 16
+)
 
 pause
\ No newline at end of file
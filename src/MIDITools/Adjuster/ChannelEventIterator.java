@@ -0,0 +1,118 @@
+package MIDITools.Adjuster;
+
+import javax.sound.midi.*;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Iterates over every event of one channel across all tracks, in tick order
+ * - This is a k-way merge: each track keeps a cursor at its next event on the channel, and a heap
+ *   picks whichever cursor has the earliest tick - nothing is copied out of the tracks
+ * - Events on the same tick keep their track order, with lower track numbers first
+ *
+ * Used for anything that keeps state per channel, so that a channel spread over several tracks is
+ * handled in the order it plays rather than one track at a time.
+ *
+ * The tracks must not be modified while iterating - collect the changes and apply them afterward.
+ */
+public class ChannelEventIterator implements Iterator<ChannelEventIterator.ChannelEvent> {
+    private final int channel;
+    private final PriorityQueue<TrackCursor> cursors = new PriorityQueue<>();
+
+    /**
+     * @param sequence - The sequence to iterate over
+     * @param channel - The 0-indexed channel to get the events of
+     */
+    public ChannelEventIterator(Sequence sequence, int channel) {
+        this.channel = channel;
+
+        Track[] tracks = sequence.getTracks();
+        for (int trackIndex = 0; trackIndex < tracks.length; trackIndex++) {
+            TrackCursor cursor = new TrackCursor(tracks[trackIndex], trackIndex);
+            if (advanceToChannelEvent(cursor)) {
+                cursors.add(cursor);
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !cursors.isEmpty();
+    }
+
+    @Override
+    public ChannelEvent next() {
+        TrackCursor cursor = cursors.poll();
+        if (cursor == null) {
+            throw new NoSuchElementException();
+        }
+
+        ChannelEvent channelEvent = new ChannelEvent(cursor.track, cursor.track.get(cursor.position));
+
+        cursor.position++;
+        if (advanceToChannelEvent(cursor)) {
+            cursors.add(cursor);
+        }
+
+        return channelEvent;
+    }
+
+    /**
+     * Moves the cursor forward to the next event on this channel, if it isn't on one already
+     * @param cursor - The cursor to move
+     * @return True if there is such an event; false if the track has run out
+     */
+    private boolean advanceToChannelEvent(TrackCursor cursor) {
+        Track track = cursor.track;
+        while (cursor.position < track.size()) {
+            if (ChannelLanes.getChannel(track.get(cursor.position).getMessage()) == channel) {
+                return true;
+            }
+            cursor.position++;
+        }
+        return false;
+    }
+
+    /**
+     * An event found by the iterator, along with the track it's in
+     */
+    public static class ChannelEvent {
+        public final Track track;
+        public final MidiEvent event;
+
+        private ChannelEvent(Track track, MidiEvent event) {
+            this.track = track;
+            this.event = event;
+        }
+
+        /**
+         * Gets the event's message - always a short message, since only channel events are iterated over
+         */
+        public ShortMessage getShortMessage() {
+            return (ShortMessage) event.getMessage();
+        }
+    }
+
+    /**
+     * The position of the iterator in a single track
+     */
+    private static class TrackCursor implements Comparable<TrackCursor> {
+        private final Track track;
+        private final int trackIndex;
+        private int position = 0;
+
+        private TrackCursor(Track track, int trackIndex) {
+            this.track = track;
+            this.trackIndex = trackIndex;
+        }
+
+        @Override
+        public int compareTo(TrackCursor other) {
+            int tickComparison = Long.compare(track.get(position).getTick(), other.track.get(other.position).getTick());
+            return tickComparison != 0
+                ? tickComparison
+                : Integer.compare(trackIndex, other.trackIndex);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package MIDITools.Adjuster;
+
+import MIDITools.MIDITools;
+
+import javax.sound.midi.*;
+import java.util.ArrayList;
+import java.util.stream.IntStream;
+
+/**
+ * Splits the channel events of a track into one lane per channel, keeping the track order in each lane
+ * - Type 0 midis have every channel in a single track, so anything done per channel (rather than per
+ *   track) should be done on these lanes
+ * - Each lane only holds the events of one channel, so lanes can be processed at the same time
+ *   as long as the track itself is only changed afterward
+ */
+public class ChannelLanes {
+    public static final int NUMBER_OF_CHANNELS = 16;
+
+    /**
+     * Commands from here up are system messages, which don't belong to a channel
+     */
+    private static final int SYSTEM_MESSAGE_COMMAND = 0xF0;
+
+    /**
+     * Tracks with fewer events than this run their lanes one at a time - starting up the threads
+     * takes longer than the lanes themselves, which matters most for the usual small midi
+     */
+    static final int PARALLEL_EVENT_THRESHOLD = 4096;
+
+    private final ArrayList<ArrayList<MidiEvent>> lanes = new ArrayList<>();
+    private final int numberOfEvents;
+
+    /**
+     * @param track - The track to split into lanes
+     */
+    public ChannelLanes(Track track) {
+        for (int channel = 0; channel < NUMBER_OF_CHANNELS; channel++) {
+            lanes.add(new ArrayList<>());
+        }
+
+        numberOfEvents = track.size();
+        for (int i = 0; i < track.size(); i++) {
+            MidiEvent e = track.get(i);
+            int channel = getChannel(e.getMessage());
+            if (channel >= 0) {
+                lanes.get(channel).add(e);
+            }
+        }
+    }
+
+    /**
+     * Gets the events of the given channel, in track order
+     * @param channel - The 0-indexed channel
+     * @return The lane - empty if the track has no events on the channel
+     */
+    public ArrayList<MidiEvent> getLane(int channel) {
+        return lanes.get(channel);
+    }
+
+    /**
+     * Runs the given function on every lane with events in it, at the same time
+     * - The function must not modify the track - return what to change and do it afterward instead
+     * - Lanes are run one at a time when verbose logging, so that the log stays in order, and for small tracks
+     * @param laneFunction - The function to run for each lane
+     * @return The result of each lane, indexed by channel (null for the lanes without events)
+     */
+    public <T> ArrayList<T> processLanes(LaneFunction<T> laneFunction) {
+        ArrayList<T> results = new ArrayList<>();
+        for (int channel = 0; channel < NUMBER_OF_CHANNELS; channel++) {
+            results.add(null);
+        }
+
+        IntStream channels = IntStream.range(0, NUMBER_OF_CHANNELS)
+            .filter(channel -> !lanes.get(channel).isEmpty());
+        if (!MIDITools.verboseLogging && numberOfEvents >= PARALLEL_EVENT_THRESHOLD) {
+            channels = channels.parallel();
+        }
+
+        // Each lane only sets its own index, so this is safe to do in parallel
+        channels.forEach(channel -> results.set(channel, laneFunction.apply(channel, lanes.get(channel))));
+        return results;
+    }
+
+    /**
+     * Gets the channel of the given message
+     * @param msg - The message
+     * @return The 0-indexed channel, or -1 if the message doesn't belong to a channel (meta, sysex, etc.)
+     */
+    public static int getChannel(MidiMessage msg) {
+        if (msg instanceof ShortMessage) {
+            ShortMessage shortMsg = (ShortMessage) msg;
+            if (shortMsg.getCommand() < SYSTEM_MESSAGE_COMMAND) {
+                return shortMsg.getChannel();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A function to run on a single lane
+     */
+    public interface LaneFunction<T> {
+        /**
+         * @param channel - The 0-indexed channel of the lane
+         * @param lane - The events of the lane, in track order
+         * @return The result for this lane
+         */
+        T apply(int channel, ArrayList<MidiEvent> lane);
+    }
+}
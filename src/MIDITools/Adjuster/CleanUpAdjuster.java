@@ -1,7 +1,14 @@
 package MIDITools.Adjuster;
 
+import MIDITools.IO.StreamEvent;
+import MIDITools.IO.StreamStage;
+
 import javax.sound.midi.*;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
 
 public class CleanUpAdjuster extends MIDIAdjuster {
     /**
@@ -22,38 +29,91 @@ public class CleanUpAdjuster extends MIDIAdjuster {
     private static final int INDEX_TICK_TOLERANCE_ARG = 2;
 
 
+    /**
+     * Returned by getNewBaseValue for events that should be deleted
+     */
+    private static final int DELETE_EVENT = Integer.MIN_VALUE;
+
+    /**
+     * The parsed args - the event number is -1 for pitch bends
+     */
+    private int eventNumber;
+    private int tolerance;
+    private TickSpan tickTolerance;
+
     /**
      * {@inheritDoc}
      * Expected usage: -c [event number] [tolerance = 10] [tick tolerance = 240]
+     * - The tick tolerance can be given in milliseconds instead, i.e. 120ms
      */
     @Override
     public int execute(String[] args, int currentIndex, Sequence sequence) {
         ArrayList<String> transformationArgs = getAllArgs(args, currentIndex);
+        if (!parseArgs(transformationArgs)) {
+            return -1;
+        }
 
+        TickSpan sequenceTickTolerance = tickTolerance.forSequence(sequence);
+        if (eventNumber == -1) {
+            cleanUpMidiPitchBends(sequence, tolerance, sequenceTickTolerance);
+        } else {
+            cleanUpMidiShortMessageEvents(sequence, eventNumber, tolerance, sequenceTickTolerance);
+        }
+
+        return currentIndex + transformationArgs.size() + 1;
+    }
+
+    @Override
+    public boolean isStreamable() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Whether an event is the last of its group isn't known until the next one (or a gap of the tick tolerance),
+     * so events are held back for at most the tick tolerance
+     */
+    @Override
+    public StreamStage createStreamStage(String[] args, int currentIndex) {
+        if (!parseArgs(getAllArgs(args, currentIndex))) {
+            return null;
+        }
+
+        // The tempo can change in any track, so it isn't known while streaming one
+        if (tickTolerance.isInMilliseconds()) {
+            System.out.println("ERROR: -c can't be streamed with a tick tolerance in milliseconds - give it in ticks instead");
+            return null;
+        }
+        return new CleanUpStreamStage();
+    }
+
+    /**
+     * Parses the args into the event number, tolerance and tick tolerance
+     * @param transformationArgs - The args after the flag
+     * @return True if the args are valid; false otherwise
+     */
+    private boolean parseArgs(ArrayList<String> transformationArgs) {
         if (transformationArgs.isEmpty() || transformationArgs.size() > 3) {
             System.out.println("ERROR: Incorrect number of args passed to -c (expected 1-3)");
-            return -1;
+            return false;
         }
 
-        int tolerance = DEFAULT_TOLERANCE;
+        tolerance = DEFAULT_TOLERANCE;
         if (transformationArgs.size() > INDEX_TOLERANCE_ARG) {
             tolerance = Integer.parseInt(transformationArgs.get(INDEX_TOLERANCE_ARG));
         }
 
-        long tickTolerance = DEFAULT_TICK_TOLERANCE;
+        tickTolerance = TickSpan.ofTicks(DEFAULT_TICK_TOLERANCE);
         if (transformationArgs.size() > INDEX_TICK_TOLERANCE_ARG) {
-            tickTolerance = Long.parseLong(transformationArgs.get(INDEX_TICK_TOLERANCE_ARG));
+            tickTolerance = TickSpan.parse(transformationArgs.get(INDEX_TICK_TOLERANCE_ARG));
         }
 
         String eventNumberString = transformationArgs.get(INDEX_EVENT_NUMBER_ARG);
-        if (eventNumberString.equals(PITCH_BEND_ARG)) {
-            cleanUpMidiPitchBends(sequence, tolerance, tickTolerance);
-        } else {
-            int eventNumber = Integer.parseInt(eventNumberString);
-            cleanUpMidiShortMessageEvents(sequence, eventNumber, tolerance, tickTolerance);
-        }
+        eventNumber = eventNumberString.equals(PITCH_BEND_ARG)
+            ? -1
+            : Integer.parseInt(eventNumberString);
 
-        return currentIndex + transformationArgs.size() + 1;
+        return true;
     }
 
     /**
@@ -67,7 +127,7 @@ public class CleanUpAdjuster extends MIDIAdjuster {
             Sequence sequence,
             int eventNumber,
             int tolerance,
-            long tickTolerance) {
+            TickSpan tickTolerance) {
         cleanUpMidiEvent(sequence, eventNumber, tolerance, tickTolerance);
     }
 
@@ -80,13 +140,15 @@ public class CleanUpAdjuster extends MIDIAdjuster {
     private static void cleanUpMidiPitchBends(
             Sequence sequence,
             int tolerance,
-            long tickTolerance) {
+            TickSpan tickTolerance) {
         cleanUpMidiEvent(sequence, -1, tolerance, tickTolerance);
     }
 
     /**
      * Cleans up midi events by deleting events that are too close to their previous value
      * within a given tolerance
+     * - Each channel of a track is cleaned up on its own (see ChannelLanes), so that type 0 midis
+     *   don't compare values across channels
      * @param sequence - The sequence to modify
      * @param eventNumber - The number of the event to modify (pass in -1 if cleaning up pitch bends)
      * @param tolerance - The tolerance
@@ -96,7 +158,7 @@ public class CleanUpAdjuster extends MIDIAdjuster {
             Sequence sequence,
             int eventNumber,
             int tolerance,
-            long tickTolerance) {
+            TickSpan tickTolerance) {
         // This is a pitch bend if we're not given a valid event
         boolean cleanUpPitchBends = eventNumber == -1;
 
@@ -105,84 +167,114 @@ public class CleanUpAdjuster extends MIDIAdjuster {
             : "Event " + eventNumber;
 
         for (Track track : sequence.getTracks()) {
-            int channel = -1;
-
-            ArrayList<MidiEvent> eventsToDelete = new ArrayList<>();
-            ArrayList<MidiEvent> events = getRelevantEvents(track, cleanUpPitchBends, eventNumber);
-            ArrayList<ArrayList<MidiEvent>> groupedEvents = getGroupedEvents(events, tickTolerance);
-
-            for (ArrayList<MidiEvent> eventGroup : groupedEvents) {
-                int lastBaseValue = -1;
-                for (MidiEvent e : eventGroup) {
-                    MidiMessage msg = e.getMessage();
-                    if (msg instanceof ShortMessage) {
-                        ShortMessage shortMsg = (ShortMessage) msg;
-                        int command = shortMsg.getCommand();
-                        channel = shortMsg.getChannel();
-                        int data1 = shortMsg.getData1();
-                        int data2 = shortMsg.getData2();
-                        int value = -1;
-
-                        if (cleanUpPitchBends) {
-                            if (command == ShortMessage.PITCH_BEND) {
-                                value = PitchBendAdjuster.getPitchBendValue(data1, data2);
-                            } else {
-                                // We're only looking for pitch bend commands here
-                                continue;
-                            }
-                        } else if (command == ShortMessage.CONTROL_CHANGE && data1 == eventNumber) {
-                            value = data2;
-                        } else {
-                            // This is not the event we're looking for
-                            continue;
-                        }
-
-                        // We never want two events in a row with the same value
-                        // It also says nothing about the current direction, so just continue
-                        if (value == lastBaseValue) {
-                            eventsToDelete.add(e);
-                            continue;
-                        }
-
-                        // The very first time this runs - just set the base value
-                        if (lastBaseValue == -1) {
-                            lastBaseValue = value;
-                            continue;
-                        }
-
-                        // If the value is outside the allowed tolerance, mark it for deletion
-                        if (!isValueWithinTolerance(lastBaseValue, value, tolerance)) {
-                            eventsToDelete.add(e);
-
-                            String eventDelString = cleanUpPitchBends
-                                    ? "Pitch Bend event"
-                                    : "event " + eventNumber;
-                            verboseLog("Deleted " + eventDelString + " at tick " + e.getTick(), channel);
-                        }
-
-                        // Otherwise, we've kept the event, so update the base value
-                        else {
-                            lastBaseValue = value;
-                        }
-                    }
+            ChannelLanes lanes = new ChannelLanes(track);
+            ArrayList<ArrayList<MidiEvent>> eventsToDeleteByChannel = lanes.processLanes(
+                (channel, lane) -> getEventsToCleanUp(lane, channel, eventNumber, tolerance, tickTolerance));
+
+            for (int channel = 0; channel < ChannelLanes.NUMBER_OF_CHANNELS; channel++) {
+                ArrayList<MidiEvent> eventsToDelete = eventsToDeleteByChannel.get(channel);
+                if (eventsToDelete == null || eventsToDelete.isEmpty()) {
+                    continue;
                 }
-            }
 
-            int numberOfEventsToDelete = eventsToDelete.size();
-            deleteEventsFromTrack(track, eventsToDelete);
-            if (numberOfEventsToDelete > 0) {
+                deleteEventsFromTrack(track, eventsToDelete);
                 System.out.println("Channel " + (channel + 1) + ": " + eventsToDelete.size() + " " + eventString + " cleaned up.");
             }
         }
     }
 
-    private static ArrayList<MidiEvent> getRelevantEvents(Track track, boolean cleanUpPitchBends, int eventNumber) {
+    /**
+     * Gets the events of a single channel that should be cleaned up
+     * - Does not modify the track, so this can run for several channels at once
+     * - Groups don't affect each other, so long lanes are split into windows between groups, which are
+     *   cleaned up at the same time
+     * @param lane - The events of the channel, in track order
+     * @param channel - The channel
+     * @param eventNumber - The number of the event to modify (pass in -1 if cleaning up pitch bends)
+     * @param tolerance - The tolerance
+     * @param tickTolerance - The tick tolerance - the amount of space between groups of cleaned up notes
+     * @return The events to delete
+     */
+    private static ArrayList<MidiEvent> getEventsToCleanUp(
+            ArrayList<MidiEvent> lane,
+            int channel,
+            int eventNumber,
+            int tolerance,
+            TickSpan tickTolerance) {
+        boolean cleanUpPitchBends = eventNumber == -1;
+        ArrayList<MidiEvent> events = getRelevantEvents(lane, cleanUpPitchBends, eventNumber);
+
+        // Only split where a new group would start anyway
+        TickWindows windows = new TickWindows(events, (previous, next) -> tickTolerance.hasPassed(previous.getTick(), next.getTick()));
+        ArrayList<ArrayList<MidiEvent>> eventsToDeleteByWindow = windows.processWindows(
+            (windowStart, window) -> getEventsToCleanUpInWindow(window, channel, eventNumber, tolerance, tickTolerance));
+
+        ArrayList<MidiEvent> eventsToDelete = new ArrayList<>();
+        for (ArrayList<MidiEvent> windowEventsToDelete : eventsToDeleteByWindow) {
+            eventsToDelete.addAll(windowEventsToDelete);
+        }
+        return eventsToDelete;
+    }
+
+    /**
+     * Gets the events of a window of a single channel that should be cleaned up
+     * @param events - The events to clean up, in track order - only whole groups
+     * @param channel - The channel
+     * @param eventNumber - The number of the event to modify (pass in -1 if cleaning up pitch bends)
+     * @param tolerance - The tolerance
+     * @param tickTolerance - The tick tolerance - the amount of space between groups of cleaned up notes
+     * @return The events to delete
+     */
+    private static ArrayList<MidiEvent> getEventsToCleanUpInWindow(
+            List<MidiEvent> events,
+            int channel,
+            int eventNumber,
+            int tolerance,
+            TickSpan tickTolerance) {
+        boolean cleanUpPitchBends = eventNumber == -1;
+
+        ArrayList<MidiEvent> eventsToDelete = new ArrayList<>();
+        ArrayList<ArrayList<MidiEvent>> groupedEvents = getGroupedEvents(events, tickTolerance);
+
+        for (ArrayList<MidiEvent> eventGroup : groupedEvents) {
+            int lastBaseValue = -1;
+            for (MidiEvent e : eventGroup) {
+                ShortMessage shortMsg = (ShortMessage) e.getMessage();
+                int data1 = shortMsg.getData1();
+                int data2 = shortMsg.getData2();
+                int value = cleanUpPitchBends
+                    ? PitchBendAdjuster.getPitchBendValue(data1, data2)
+                    : data2;
+
+                int newBaseValue = getNewBaseValue(lastBaseValue, value, tolerance);
+                if (newBaseValue != DELETE_EVENT) {
+                    lastBaseValue = newBaseValue;
+                    continue;
+                }
+
+                eventsToDelete.add(e);
+                if (value != lastBaseValue) {
+                    verboseLog("Deleted " + getEventDeletedString(eventNumber) + " at tick " + e.getTick(), channel);
+                }
+            }
+        }
+
+        return eventsToDelete;
+    }
+
+    /**
+     * Gets the events to clean up out of the given events - either pitch bends or the given event number
+     * @param laneEvents - The events to look through
+     * @param cleanUpPitchBends - Whether we're cleaning up pitch bends
+     * @param eventNumber - The number of the event to clean up (not used if cleaning up pitch bends)
+     * @return The matching events, in order
+     */
+    private static ArrayList<MidiEvent> getRelevantEvents(ArrayList<MidiEvent> laneEvents, boolean cleanUpPitchBends, int eventNumber) {
         ArrayList<MidiEvent> events = new ArrayList<>();
         int expectedCommand = cleanUpPitchBends
             ? ShortMessage.PITCH_BEND
             : ShortMessage.CONTROL_CHANGE;
-        for (int i = 0; i < track.size(); i++) {
-            MidiEvent e = track.get(i);
+        for (MidiEvent e : laneEvents) {
             MidiMessage msg = e.getMessage();
             if (msg instanceof ShortMessage) {
                 ShortMessage shortMsg = (ShortMessage) msg;
@@ -205,7 +297,7 @@ public class CleanUpAdjuster extends MIDIAdjuster {
      * @param events - The list of events we're comparing
      * @param tickTolerance - The tick tolerance
      */
-    private static ArrayList<ArrayList<MidiEvent>> getGroupedEvents(ArrayList<MidiEvent> events, long tickTolerance) {
+    private static ArrayList<ArrayList<MidiEvent>> getGroupedEvents(List<MidiEvent> events, TickSpan tickTolerance) {
         // Nothing to do if there's no events
         if (events.isEmpty()) {
             return new ArrayList<>();
@@ -219,7 +311,7 @@ public class CleanUpAdjuster extends MIDIAdjuster {
 
             // Start a new group if it's the first event being looked at OR
             // If it does not pass tolerance
-            if (lastTick == -1 || lastTick + tickTolerance <= tick) {
+            if (lastTick == -1 || tickTolerance.hasPassed(lastTick, tick)) {
                 currentGroup = new ArrayList<>();
                 groupsOfEvents.add(currentGroup);
             }
@@ -239,6 +331,231 @@ public class CleanUpAdjuster extends MIDIAdjuster {
         return groupsOfEvents;
     }
 
+    /**
+     * Decides whether an event that isn't the last of its group should be kept
+     * @param lastBaseValue - The value of the last kept event in the group (-1 if there isn't one yet)
+     * @param value - The value of the event
+     * @param tolerance - The tolerance
+     * @return The new base value if the event is kept; DELETE_EVENT if it should be deleted
+     */
+    private static int getNewBaseValue(int lastBaseValue, int value, int tolerance) {
+        // We never want two events in a row with the same value
+        // It also says nothing about the current direction, so just continue
+        if (value == lastBaseValue) {
+            return DELETE_EVENT;
+        }
+
+        // The very first time this runs - just set the base value
+        if (lastBaseValue == -1) {
+            return value;
+        }
+
+        // If the value is outside the allowed tolerance, mark it for deletion
+        // Otherwise, we've kept the event, so update the base value
+        return isValueWithinTolerance(lastBaseValue, value, tolerance)
+            ? value
+            : DELETE_EVENT;
+    }
+
+    /**
+     * Gets the name of the event to show when it's deleted
+     * @param eventNumber - The event number (-1 for pitch bends)
+     */
+    private static String getEventDeletedString(int eventNumber) {
+        return eventNumber == -1
+            ? "Pitch Bend event"
+            : "event " + eventNumber;
+    }
+
+    /**
+     * Runs the clean up on a stream of events
+     * - Each channel holds back its last matching event until it knows whether that's the last of its group:
+     *   either the next matching event arrives, or any event arrives at least the tick tolerance later
+     * - Every event after a held one is held too, so that events still go out in order
+     */
+    private class CleanUpStreamStage implements StreamStage {
+        private final ArrayDeque<HeldEvent> heldEvents = new ArrayDeque<>();
+        private final HeldEvent[] undecidedEvents = new HeldEvent[ChannelLanes.NUMBER_OF_CHANNELS];
+        private final int[] lastBaseValues = new int[ChannelLanes.NUMBER_OF_CHANNELS];
+        private final int[] eventsCleanedUp = new int[ChannelLanes.NUMBER_OF_CHANNELS];
+
+        private CleanUpStreamStage() {
+            Arrays.fill(lastBaseValues, -1);
+        }
+
+        @Override
+        public void processEvent(StreamEvent event, Consumer<StreamEvent> output) {
+            // Anything held back this long ago was the last of its group
+            for (int channel = 0; channel < ChannelLanes.NUMBER_OF_CHANNELS; channel++) {
+                HeldEvent undecidedEvent = undecidedEvents[channel];
+                if (undecidedEvent != null && tickTolerance.hasPassed(undecidedEvent.event.tick, event.tick)) {
+                    endGroup(channel);
+                }
+            }
+
+            HeldEvent heldEvent = new HeldEvent(event);
+            if (isEventToCleanUp(event)) {
+                int channel = event.getChannel();
+                if (undecidedEvents[channel] != null) {
+                    decide(channel, undecidedEvents[channel]);
+                }
+                undecidedEvents[channel] = heldEvent;
+            } else {
+                heldEvent.isDecided = true;
+            }
+
+            heldEvents.add(heldEvent);
+            passOnDecidedEvents(output);
+        }
+
+        @Override
+        public void endTrack(Consumer<StreamEvent> output) {
+            for (int channel = 0; channel < ChannelLanes.NUMBER_OF_CHANNELS; channel++) {
+                if (undecidedEvents[channel] != null) {
+                    endGroup(channel);
+                }
+            }
+            passOnDecidedEvents(output);
+
+            String eventString = eventNumber == -1
+                ? "Pitch Bend events"
+                : "Event " + eventNumber;
+            for (int channel = 0; channel < ChannelLanes.NUMBER_OF_CHANNELS; channel++) {
+                if (eventsCleanedUp[channel] > 0) {
+                    System.out.println("Channel " + (channel + 1) + ": " + eventsCleanedUp[channel] + " " + eventString + " cleaned up.");
+                }
+            }
+            Arrays.fill(eventsCleanedUp, 0);
+        }
+
+        /**
+         * Whether the event is one of the ones being cleaned up
+         */
+        private boolean isEventToCleanUp(StreamEvent event) {
+            if (!event.isChannelMessage()) {
+                return false;
+            }
+
+            int command = event.getCommand();
+            return eventNumber == -1
+                ? command == ShortMessage.PITCH_BEND
+                : command == ShortMessage.CONTROL_CHANGE && event.data1 == eventNumber;
+        }
+
+        /**
+         * Keeps the channel's held event, since it's the last of its group, and starts a new group
+         */
+        private void endGroup(int channel) {
+            undecidedEvents[channel].isDecided = true;
+            undecidedEvents[channel] = null;
+            lastBaseValues[channel] = -1;
+        }
+
+        /**
+         * Decides whether to keep the held event, now that it's known not to be the last of its group
+         */
+        private void decide(int channel, HeldEvent heldEvent) {
+            StreamEvent event = heldEvent.event;
+            int value = eventNumber == -1
+                ? PitchBendAdjuster.getPitchBendValue(event.data1, event.data2)
+                : event.data2;
+
+            int newBaseValue = getNewBaseValue(lastBaseValues[channel], value, tolerance);
+            if (newBaseValue == DELETE_EVENT) {
+                heldEvent.isDeleted = true;
+                eventsCleanedUp[channel]++;
+                if (value != lastBaseValues[channel]) {
+                    verboseLog("Deleted " + getEventDeletedString(eventNumber) + " at tick " + event.tick, channel);
+                }
+            } else {
+                lastBaseValues[channel] = newBaseValue;
+            }
+            heldEvent.isDecided = true;
+        }
+
+        /**
+         * Passes on every held event up to the first one that's still undecided
+         */
+        private void passOnDecidedEvents(Consumer<StreamEvent> output) {
+            while (!heldEvents.isEmpty() && heldEvents.peekFirst().isDecided) {
+                HeldEvent heldEvent = heldEvents.removeFirst();
+                if (!heldEvent.isDeleted) {
+                    output.accept(heldEvent.event);
+                }
+            }
+        }
+    }
+
+    /**
+     * An event held back by the stream stage
+     */
+    private static class HeldEvent {
+        private final StreamEvent event;
+        private boolean isDecided = false;
+        private boolean isDeleted = false;
+
+        private HeldEvent(StreamEvent event) {
+            this.event = event;
+        }
+    }
+
+    /**
+     * Counts how many events a clean up would delete, without deleting anything
+     * - Given the values of a single channel's events in track order, the same way the clean up sees them
+     * - Only holds onto the last value, so it can be fed straight from a stream (see CorpusAnalyzer)
+     */
+    public static class CleanUpCounter {
+        private final int tolerance;
+        private final long tickTolerance;
+
+        private boolean hasHeldEvent = false;
+        private long heldTick;
+        private int heldValue;
+        private int lastBaseValue = -1;
+        private long eventsDeleted = 0;
+
+        /**
+         * @param tolerance - The tolerance
+         * @param tickTolerance - The tick tolerance - the amount of space between groups of cleaned up notes
+         */
+        public CleanUpCounter(int tolerance, long tickTolerance) {
+            this.tolerance = tolerance;
+            this.tickTolerance = tickTolerance;
+        }
+
+        /**
+         * Adds the next event to clean up
+         * - The event before it is decided now; the last of a group is always kept
+         * @param tick - The tick of the event
+         * @param value - The value of the event (the whole value, for pitch bends)
+         */
+        public void add(long tick, int value) {
+            if (hasHeldEvent) {
+                if (heldTick + tickTolerance <= tick) {
+                    lastBaseValue = -1;
+                } else {
+                    int newBaseValue = getNewBaseValue(lastBaseValue, heldValue, tolerance);
+                    if (newBaseValue == DELETE_EVENT) {
+                        eventsDeleted++;
+                    } else {
+                        lastBaseValue = newBaseValue;
+                    }
+                }
+            }
+
+            hasHeldEvent = true;
+            heldTick = tick;
+            heldValue = value;
+        }
+
+        /**
+         * Gets how many of the events added so far would be deleted
+         */
+        public long getEventsDeleted() {
+            return eventsDeleted;
+        }
+    }
+
     /**
      * Checks whether the current value is in range of the base value, within a certain tolerance
      * - Example: Base value is 100; current is 110; tolerance is 15
@@ -1,5 +1,7 @@
 package MIDITools.Adjuster;
 
+import MIDITools.IO.SharedShortMessage;
+
 import javax.sound.midi.*;
 import java.util.ArrayList;
 
@@ -130,7 +132,7 @@ public class EventMover extends MIDIAdjuster {
         int data1 = msg.getData1();
         int data2 = msg.getData2();
 
-        ShortMessage shortMessage = new ShortMessage();
+        ShortMessage shortMessage = new SharedShortMessage();
         setShortMessage(shortMessage, command, channel, data1, data2);
         track.add(new MidiEvent(shortMessage, 0));
     }
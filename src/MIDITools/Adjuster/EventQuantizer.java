@@ -0,0 +1,232 @@
+package MIDITools.Adjuster;
+
+import javax.sound.midi.*;
+import java.util.ArrayList;
+
+/**
+ * Moves the given event onto a grid of ticks, so that there's at most one of it per grid point
+ * - Each event goes to the nearest grid point; when several land on the same point, the last one's value is used
+ * - Grid points that would set the value it's already at get no event
+ * - DAW automation tends to write controllers at very high rates on arbitrary ticks, which this brings
+ *   down to a predictable number of events per beat
+ */
+public class EventQuantizer extends MIDIAdjuster {
+    /**
+     * The default grid - a 32nd note
+     */
+    private static final int DEFAULT_NOTE_DIVISION = 32;
+
+    /**
+     * How many of the note division make up a whole note
+     * i.e. a quarter note is a beat, so there are 4 per whole note
+     */
+    private static final int BEATS_PER_WHOLE_NOTE = 4;
+
+    private static final int INDEX_EVENT_NUMBER_ARG = 0;
+    private static final int INDEX_NOTE_DIVISION_ARG = 1;
+    private static final int INDEX_CHANNEL_ARG = 2;
+
+    /**
+     * The parsed args - the event number is -1 for pitch bends, and the channel is -1 for all channels
+     */
+    private int eventNumber;
+    private TickSpan gridTicks;
+    private int channelToModify;
+
+    /**
+     * {@inheritDoc}
+     * Expected usage: -q [event number] [note division = 32] [channel = -1]
+     * - The grid can be given in milliseconds instead of a note division, i.e. 20ms
+     */
+    @Override
+    public int execute(String[] args, int currentIndex, Sequence sequence) {
+        ArrayList<String> transformationArgs = getAllArgs(args, currentIndex);
+        if (transformationArgs.isEmpty() || transformationArgs.size() > 3) {
+            System.out.println("ERROR: Incorrect number of args passed to -q (expected 1-3)");
+            return -1;
+        }
+
+        String eventNumberString = transformationArgs.get(INDEX_EVENT_NUMBER_ARG);
+        eventNumber = eventNumberString.equals(PITCH_BEND_ARG)
+            ? -1
+            : Integer.parseInt(eventNumberString);
+
+        String gridString = transformationArgs.size() > INDEX_NOTE_DIVISION_ARG
+            ? transformationArgs.get(INDEX_NOTE_DIVISION_ARG)
+            : String.valueOf(DEFAULT_NOTE_DIVISION);
+        gridTicks = getGrid(gridString, sequence);
+        if (gridTicks == null) {
+            return -1;
+        }
+
+        channelToModify = -1;
+        if (transformationArgs.size() > INDEX_CHANNEL_ARG) {
+            channelToModify = Integer.parseInt(transformationArgs.get(INDEX_CHANNEL_ARG));
+        }
+
+        quantizeMidiEvents(sequence);
+
+        return currentIndex + transformationArgs.size() + 1;
+    }
+
+    /**
+     * Quantizes the event in every channel of every track
+     * - Each channel of a track is quantized on its own (see ChannelLanes)
+     * @param sequence - The sequence to modify
+     */
+    private void quantizeMidiEvents(Sequence sequence) {
+        String eventString = eventNumber == -1
+            ? "Pitch Bend events"
+            : "Event " + eventNumber + " events";
+
+        for (Track track : sequence.getTracks()) {
+            ChannelLanes lanes = new ChannelLanes(track);
+            ArrayList<LaneResult> results = lanes.processLanes(this::getQuantizedEvents);
+
+            for (int channel = 0; channel < ChannelLanes.NUMBER_OF_CHANNELS; channel++) {
+                LaneResult result = results.get(channel);
+                if (result == null || result.eventsToDelete.isEmpty()) {
+                    continue;
+                }
+
+                deleteEventsFromTrack(track, result.eventsToDelete);
+                for (MidiEvent e : result.eventsToAdd) {
+                    track.add(e);
+                }
+
+                System.out.println("Channel " + (channel + 1) + ": " + result.numberOfEvents + " " + eventString +
+                    " quantized to " + result.numberOfQuantizedEvents + " on a grid of " + gridTicks + ".");
+            }
+        }
+    }
+
+    /**
+     * Gets the changes needed to quantize a single channel, in a single pass
+     * - Does not modify the track, so this can run for several channels at once
+     * @param channel - The channel
+     * @param lane - The events of the channel, in track order
+     * @return The events to delete and add - null if this channel isn't being quantized
+     */
+    private LaneResult getQuantizedEvents(int channel, ArrayList<MidiEvent> lane) {
+        if (channelToModify >= 0 && channel + 1 != channelToModify) {
+            return null;
+        }
+
+        LaneResult result = new LaneResult();
+        MidiEvent lastEventInCell = null;
+        long currentGridTick = -1;
+        int lastValue = -1;
+        for (MidiEvent e : lane) {
+            if (!isEventToQuantize(e)) {
+                continue;
+            }
+
+            long gridTick = gridTicks.getNearestGridTick(e.getTick());
+            if (lastEventInCell != null && gridTick != currentGridTick) {
+                lastValue = endCell(lastEventInCell, currentGridTick, lastValue, channel, result);
+            }
+
+            // Only the last event of each grid point is kept, so every other one is replaced by it
+            if (lastEventInCell != null && gridTick == currentGridTick) {
+                result.eventsToDelete.add(lastEventInCell);
+            }
+
+            lastEventInCell = e;
+            currentGridTick = gridTick;
+            result.numberOfEvents++;
+        }
+
+        if (lastEventInCell != null) {
+            endCell(lastEventInCell, currentGridTick, lastValue, channel, result);
+        }
+        return result;
+    }
+
+    /**
+     * Places the last event of a grid point on the grid point
+     * @param e - The last event that goes to the grid point
+     * @param gridTick - The tick of the grid point
+     * @param lastValue - The value the channel is at before this grid point (-1 if not set yet)
+     * @param channel - The channel
+     * @param result - The lane result to add to
+     * @return The value the channel is at after this grid point
+     */
+    private int endCell(MidiEvent e, long gridTick, int lastValue, int channel, LaneResult result) {
+        ShortMessage shortMsg = (ShortMessage) e.getMessage();
+        int value = getValue(shortMsg);
+        if (value == lastValue) {
+            result.eventsToDelete.add(e);
+            return lastValue;
+        }
+
+        result.numberOfQuantizedEvents++;
+        if (e.getTick() != gridTick) {
+            result.eventsToDelete.add(e);
+            result.eventsToAdd.add(new MidiEvent(shortMsg, gridTick));
+            verboseLog("Moved event at tick " + e.getTick() + " to " + gridTick, channel);
+        }
+        return value;
+    }
+
+    /**
+     * Gets the grid to quantize to
+     * @param gridString - A note division (i.e. 32 for 32nd notes), or a length of time in milliseconds
+     * @param sequence - The sequence being quantized
+     * @return The grid; null if it can't be used
+     */
+    private static TickSpan getGrid(String gridString, Sequence sequence) {
+        if (TickSpan.isMillisecondsArg(gridString)) {
+            TickSpan grid = TickSpan.parse(gridString);
+            if (!grid.isPositive()) {
+                System.out.println("ERROR: The grid passed to -q must be longer than nothing");
+                return null;
+            }
+            return grid.forSequence(sequence);
+        }
+
+        if (sequence.getDivisionType() != Sequence.PPQ) {
+            System.out.println("ERROR: -q needs a grid in milliseconds for midis timed in frames, since they have no beats");
+            return null;
+        }
+
+        int noteDivision = Integer.parseInt(gridString);
+        if (noteDivision < 1) {
+            System.out.println("ERROR: The note division passed to -q must be at least 1");
+            return null;
+        }
+
+        // Grids finer than a tick would only round every event to where it already is
+        return TickSpan.ofTicks(Math.max(1, Math.round((double)sequence.getResolution() * BEATS_PER_WHOLE_NOTE / noteDivision)));
+    }
+
+    /**
+     * Whether the event is one of the ones being quantized
+     */
+    private boolean isEventToQuantize(MidiEvent e) {
+        ShortMessage shortMsg = (ShortMessage) e.getMessage();
+        int command = shortMsg.getCommand();
+        return eventNumber == -1
+            ? command == ShortMessage.PITCH_BEND
+            : command == ShortMessage.CONTROL_CHANGE && shortMsg.getData1() == eventNumber;
+    }
+
+    /**
+     * Gets the value the event sets
+     * @return The data2, or the whole value for pitch bends
+     */
+    private int getValue(ShortMessage shortMsg) {
+        return eventNumber == -1
+            ? PitchBendAdjuster.getPitchBendValue(shortMsg.getData1(), shortMsg.getData2())
+            : shortMsg.getData2();
+    }
+
+    /**
+     * The changes to make to a single channel
+     */
+    private static class LaneResult {
+        private final ArrayList<MidiEvent> eventsToDelete = new ArrayList<>();
+        private final ArrayList<MidiEvent> eventsToAdd = new ArrayList<>();
+        private int numberOfEvents = 0;
+        private int numberOfQuantizedEvents = 0;
+    }
+}
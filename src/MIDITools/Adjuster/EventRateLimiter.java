@@ -0,0 +1,344 @@
+package MIDITools.Adjuster;
+
+import javax.sound.midi.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Limits how many non-note events each channel can have within any window of the given number of ticks
+ * - The sequence player can only run so many commands per frame, so dense automation
+ *   (i.e. a controller written every tick by a DAW) causes hiccups in game
+ * - Windows slide along the channel: every event's window is the ticks before it, up to the window size
+ * - When a window is over the limit, the event that changes its value the least is dropped - it's merged
+ *   into the next event of the same kind, which comes within the window and sets the value it ends up at
+ * - The last value of each burst (no event of the same kind follows within the window) is always kept,
+ *   as are events that can't be merged (program changes, pedals, RPNs, data entry, etc.)
+ */
+public class EventRateLimiter extends MIDIAdjuster {
+    private static final int DEFAULT_MAX_EVENTS = 4;
+
+    /**
+     * The default window - 120 is a 16th note at 480 ticks per beat
+     */
+    private static final int DEFAULT_WINDOW_TICKS = 120;
+
+    private static final int INDEX_MAX_EVENTS_ARG = 0;
+    private static final int INDEX_WINDOW_TICKS_ARG = 1;
+
+    /**
+     * Each kind of event is tracked by its own key: controllers are 0-127, then these
+     * - Poly pressure gets a key per note, from POLY_PRESSURE_KEY up
+     */
+    private static final int PITCH_BEND_KEY = 128;
+    private static final int CHANNEL_PRESSURE_KEY = 129;
+    private static final int POLY_PRESSURE_KEY = 130;
+    private static final int NUMBER_OF_KEYS = POLY_PRESSURE_KEY + 128;
+
+    /**
+     * Used as the key for events that are counted, but can never be dropped
+     */
+    private static final int KEEP_KEY = -1;
+
+    /**
+     * Controllers that can never be dropped - bank select, data entry, pedals, (N)RPNs and channel modes
+     * - Each event of these means something on its own, so it can't be merged into a later one
+     */
+    private static final int[][] KEPT_CONTROLLER_RANGES = { { 0, 0 }, { 6, 6 }, { 32, 32 }, { 38, 38 }, { 64, 69 }, { 96, 101 }, { 120, 127 } };
+
+    /**
+     * How many of the shed ranges to show per channel
+     */
+    private static final int MAX_RANGES_SHOWN = 5;
+
+    private int maxEvents;
+    private TickSpan windowTicks;
+
+    /**
+     * {@inheritDoc}
+     * Expected usage: -l [max events = 4] [window ticks = 120]
+     * - The window can be given in milliseconds instead, i.e. 50ms
+     */
+    @Override
+    public int execute(String[] args, int currentIndex, Sequence sequence) {
+        ArrayList<String> transformationArgs = getAllArgs(args, currentIndex);
+        if (transformationArgs.size() > 2) {
+            System.out.println("ERROR: Incorrect number of args passed to -l (expected 0-2)");
+            return -1;
+        }
+
+        maxEvents = DEFAULT_MAX_EVENTS;
+        if (transformationArgs.size() > INDEX_MAX_EVENTS_ARG) {
+            maxEvents = Integer.parseInt(transformationArgs.get(INDEX_MAX_EVENTS_ARG));
+        }
+
+        windowTicks = TickSpan.ofTicks(DEFAULT_WINDOW_TICKS);
+        if (transformationArgs.size() > INDEX_WINDOW_TICKS_ARG) {
+            windowTicks = TickSpan.parse(transformationArgs.get(INDEX_WINDOW_TICKS_ARG));
+        }
+
+        if (maxEvents < 1 || !windowTicks.isPositive()) {
+            System.out.println("ERROR: -l needs at least 1 event and a window longer than nothing");
+            return -1;
+        }
+        windowTicks = windowTicks.forSequence(sequence);
+
+        limitMidiEvents(sequence);
+
+        return currentIndex + transformationArgs.size() + 1;
+    }
+
+    /**
+     * Limits the events of every channel of every track
+     * - Each channel of a track is limited on its own (see ChannelLanes)
+     * @param sequence - The sequence to modify
+     */
+    private void limitMidiEvents(Sequence sequence) {
+        for (Track track : sequence.getTracks()) {
+            ChannelLanes lanes = new ChannelLanes(track);
+            ArrayList<LaneResult> results = lanes.processLanes(this::getEventsToShed);
+
+            for (int channel = 0; channel < ChannelLanes.NUMBER_OF_CHANNELS; channel++) {
+                LaneResult result = results.get(channel);
+                if (result == null) {
+                    continue;
+                }
+
+                if (!result.eventsToShed.isEmpty()) {
+                    deleteEventsFromTrack(track, result.eventsToShed);
+                    System.out.println("Channel " + (channel + 1) + ": " + result.eventsToShed.size() + " events shed at ticks " + getShedRangesString(result.eventsToShed) + ".");
+                }
+
+                if (result.eventsOverLimit > 0) {
+                    System.out.println("WARNING: Channel " + (channel + 1) + ": " + result.eventsOverLimit +
+                        " events are still over the limit, since every event around them had to be kept.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the events of a single channel to shed
+     * - Does not modify the track, so this can run for several channels at once
+     * - The window is a deque of the kept events - it only grows past the limit if none of them can be dropped
+     * @param channel - The channel
+     * @param lane - The events of the channel, in track order
+     * @return The events to shed, and how often the limit couldn't be met
+     */
+    private LaneResult getEventsToShed(int channel, ArrayList<MidiEvent> lane) {
+        ArrayList<LimitedEvent> events = getLimitedEvents(lane);
+        markBurstEnds(events);
+
+        LaneResult result = new LaneResult();
+        LimitedEvent[] lastKeptEvents = new LimitedEvent[NUMBER_OF_KEYS];
+        ArrayDeque<LimitedEvent> window = new ArrayDeque<>(maxEvents + 1);
+        for (LimitedEvent event : events) {
+            while (!window.isEmpty() && windowTicks.hasPassed(window.peekFirst().tick, event.tick)) {
+                window.removeFirst();
+            }
+
+            if (event.key != KEEP_KEY) {
+                event.previous = lastKeptEvents[event.key];
+                if (event.previous != null) {
+                    event.previous.next = event;
+                }
+                lastKeptEvents[event.key] = event;
+            }
+            window.addLast(event);
+
+            if (window.size() <= maxEvents) {
+                continue;
+            }
+
+            LimitedEvent eventToShed = getLeastSignificantEvent(window);
+            if (eventToShed == null) {
+                result.eventsOverLimit++;
+                continue;
+            }
+
+            window.remove(eventToShed);
+            eventToShed.unlink();
+            if (lastKeptEvents[eventToShed.key] == eventToShed) {
+                lastKeptEvents[eventToShed.key] = eventToShed.previous;
+            }
+            result.eventsToShed.add(eventToShed.event);
+            verboseLog("Shed event at tick " + eventToShed.tick, channel);
+        }
+
+        // Shed events were found in window order, not track order
+        result.eventsToShed.sort((a, b) -> Long.compare(a.getTick(), b.getTick()));
+        return result;
+    }
+
+    /**
+     * Gets the events of the lane that count toward the limit - everything but notes
+     * @param lane - The events of the channel, in track order
+     * @return The events, in track order
+     */
+    private static ArrayList<LimitedEvent> getLimitedEvents(ArrayList<MidiEvent> lane) {
+        ArrayList<LimitedEvent> events = new ArrayList<>();
+        for (MidiEvent e : lane) {
+            ShortMessage shortMsg = (ShortMessage) e.getMessage();
+            int data1 = shortMsg.getData1();
+            int data2 = shortMsg.getData2();
+
+            // Values are compared in pitch bend units, so that every kind of event is on the same scale
+            switch (shortMsg.getCommand()) {
+                case ShortMessage.CONTROL_CHANGE:
+                    events.add(new LimitedEvent(e, isKeptController(data1) ? KEEP_KEY : data1, data2 << 7));
+                    break;
+                case ShortMessage.PITCH_BEND:
+                    events.add(new LimitedEvent(e, PITCH_BEND_KEY, PitchBendAdjuster.getPitchBendValue(data1, data2)));
+                    break;
+                case ShortMessage.CHANNEL_PRESSURE:
+                    events.add(new LimitedEvent(e, CHANNEL_PRESSURE_KEY, data1 << 7));
+                    break;
+                case ShortMessage.POLY_PRESSURE:
+                    events.add(new LimitedEvent(e, POLY_PRESSURE_KEY + data1, data2 << 7));
+                    break;
+                case ShortMessage.PROGRAM_CHANGE:
+                    events.add(new LimitedEvent(e, KEEP_KEY, 0));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return events;
+    }
+
+    private static boolean isKeptController(int controller) {
+        for (int[] range : KEPT_CONTROLLER_RANGES) {
+            if (controller >= range[0] && controller <= range[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Marks the events that end a burst - no event of the same kind follows within the window
+     * @param events - The events, in track order
+     */
+    private void markBurstEnds(ArrayList<LimitedEvent> events) {
+        long[] nextTicks = new long[NUMBER_OF_KEYS];
+        boolean[] hasNext = new boolean[NUMBER_OF_KEYS];
+        for (int i = events.size() - 1; i >= 0; i--) {
+            LimitedEvent event = events.get(i);
+            if (event.key == KEEP_KEY) {
+                continue;
+            }
+
+            event.isBurstEnd = !hasNext[event.key] || windowTicks.hasPassed(event.tick, nextTicks[event.key]);
+            hasNext[event.key] = true;
+            nextTicks[event.key] = event.tick;
+        }
+    }
+
+    /**
+     * Gets the event in the window that's best to drop - the one that changes its value the least
+     * - Ties go to the earliest, since the ones after it make up for it sooner
+     * @param window - The events in the window
+     * @return The event; null if none of them can be dropped
+     */
+    private static LimitedEvent getLeastSignificantEvent(ArrayDeque<LimitedEvent> window) {
+        LimitedEvent leastSignificantEvent = null;
+        int leastSignificance = Integer.MAX_VALUE;
+        for (LimitedEvent event : window) {
+            if (event.key == KEEP_KEY || event.isBurstEnd) {
+                continue;
+            }
+
+            int significance = event.getSignificance();
+            if (significance < leastSignificance) {
+                leastSignificance = significance;
+                leastSignificantEvent = event;
+            }
+        }
+        return leastSignificantEvent;
+    }
+
+    /**
+     * Gets the ticks the events were shed at, with events close together shown as a range
+     * @param eventsShed - The events shed, in track order
+     * @return i.e. "960-1440, 3840"
+     */
+    private String getShedRangesString(ArrayList<MidiEvent> eventsShed) {
+        ArrayList<String> ranges = new ArrayList<>();
+        long rangeStart = eventsShed.get(0).getTick();
+        long rangeEnd = rangeStart;
+        for (int i = 1; i <= eventsShed.size(); i++) {
+            long tick = i < eventsShed.size() ? eventsShed.get(i).getTick() : -1;
+            if (tick != -1 && !windowTicks.hasPassed(rangeEnd, tick)) {
+                rangeEnd = tick;
+                continue;
+            }
+
+            ranges.add(rangeStart == rangeEnd ? String.valueOf(rangeStart) : rangeStart + "-" + rangeEnd);
+            rangeStart = tick;
+            rangeEnd = tick;
+        }
+
+        if (ranges.size() > MAX_RANGES_SHOWN) {
+            int rangesHidden = ranges.size() - MAX_RANGES_SHOWN;
+            ranges.subList(MAX_RANGES_SHOWN, ranges.size()).clear();
+            ranges.add("and " + rangesHidden + " more");
+        }
+        return String.join(", ", ranges);
+    }
+
+    /**
+     * The events to shed from a single channel
+     */
+    private static class LaneResult {
+        private final ArrayList<MidiEvent> eventsToShed = new ArrayList<>();
+
+        /**
+         * How many events were kept even though the window was already at the limit
+         */
+        private int eventsOverLimit = 0;
+    }
+
+    /**
+     * An event that counts toward the limit
+     * - Kept events of the same kind are linked together, so that dropping one lets the next
+     *   be compared to the one before it
+     */
+    private static class LimitedEvent {
+        private final MidiEvent event;
+        private final long tick;
+        private final int key;
+        private final int value;
+
+        private LimitedEvent previous;
+        private LimitedEvent next;
+        private boolean isBurstEnd = false;
+
+        private LimitedEvent(MidiEvent event, int key, int value) {
+            this.event = event;
+            this.tick = event.getTick();
+            this.key = key;
+            this.value = value;
+        }
+
+        /**
+         * How much this event changes the value from the last kept event of the same kind
+         * - The first of its kind always matters, since there's nothing to compare it to
+         */
+        private int getSignificance() {
+            return previous == null
+                ? Integer.MAX_VALUE
+                : Math.abs(value - previous.value);
+        }
+
+        /**
+         * Removes this event from the kept events of its kind
+         */
+        private void unlink() {
+            if (previous != null) {
+                previous.next = next;
+            }
+            if (next != null) {
+                next.previous = previous;
+            }
+        }
+    }
+}
@@ -2,6 +2,7 @@ package MIDITools.Adjuster;
 
 import javax.sound.midi.*;
 import java.util.ArrayList;
+import java.util.List;
 
 public abstract class EventReplacer extends MIDIAdjuster {
     /**
@@ -29,6 +30,7 @@ public abstract class EventReplacer extends MIDIAdjuster {
             int newEventNumber,
             double divisionAmount,
             String eventDisplayName) {
+        int[] newEventValues = getNewEventValues(divisionAmount);
         ArrayList<NewMIDIEvent> eventsToAdd = new ArrayList<>();
         ArrayList<String> channelsAffected = new ArrayList<>();
         for (Track track : sequence.getTracks()) {
@@ -36,68 +38,60 @@ public abstract class EventReplacer extends MIDIAdjuster {
                 continue;
             }
 
+            // Each window finds its own changes in value; a window can't know the value the one before it ended on,
+            // so its first change is dropped afterward if it turns out to be the same value
+            TickWindows windows = new TickWindows(TickWindows.getEvents(track));
+            ArrayList<WindowReplacements> replacementsByWindow = windows.processWindows(
+                (windowStart, window) -> getWindowReplacements(window, oldEventNumber, newEventValues));
+
             boolean addedNewEventAtBeginning = false;
             int lastNewEventValue = -1;
             int lastChannel = -1;
-            for (int i = 0; i < track.size(); i++) {
-                boolean isLastItem = i + 1 >= track.size();
-                MidiEvent e = track.get(i);
-                MidiMessage msg = e.getMessage();
-
-                if (msg instanceof ShortMessage) {
-                    ShortMessage shortMsg = (ShortMessage) msg;
-                    int command = shortMsg.getCommand();
+            for (WindowReplacements replacements : replacementsByWindow) {
+                addedNewEventAtBeginning |= replacements.hasEventAtBeginning;
+                if (replacements.lastChannel != -1) {
+                    lastChannel = replacements.lastChannel;
+                }
+
+                for (MidiEvent e : replacements.oldEvents) {
+                    ShortMessage shortMsg = (ShortMessage) e.getMessage();
                     int channel = shortMsg.getChannel();
-                    lastChannel = channel;
-
-                    if (command == ShortMessage.CONTROL_CHANGE) {
-                        int data1 = shortMsg.getData1();
-                        int data2 = shortMsg.getData2();
-
-                        if (data1 == oldEventNumber) {
-                            // Set the flag if we're adding a new event at the start so that we know
-                            // NOT to insert one with a value of 0 later on
-                            if (e.getTick() == 0) {
-                                addedNewEventAtBeginning = true;
-                            }
-
-                            // Add a new event if needed, divided by the amount given
-                            int newEventValue = (int)Math.ceil(divisionAmount * ((double)data2 / (double)MAX_EVENT_VALUE));
-                            if (lastNewEventValue != newEventValue) {
-                                // Only list the message once; do so before the first new event is added
-                                if (lastNewEventValue == -1) {
-                                    channelsAffected.add(String.valueOf(channel + 1));
-                                }
-
-                                lastNewEventValue = newEventValue;
-                                eventsToAdd.add(
-                                        new NewMIDIEvent(
-                                                track,
-                                                channel,
-                                                newEventNumber,
-                                                newEventValue,
-                                                e.getTick(),
-                                                eventDisplayName)
-                                    );
-                            }
-                        }
+                    int newEventValue = newEventValues[shortMsg.getData2()];
+                    if (lastNewEventValue == newEventValue) {
+                        continue;
+                    }
+
+                    // Only list the message once; do so before the first new event is added
+                    if (lastNewEventValue == -1) {
+                        channelsAffected.add(String.valueOf(channel + 1));
                     }
-                }
 
-                // If we're on the last item, insert a beginning event with the value 0 if needed
-                if (!addedNewEventAtBeginning && isLastItem && lastChannel != -1) {
+                    lastNewEventValue = newEventValue;
                     eventsToAdd.add(
                             new NewMIDIEvent(
                                     track,
-                                    lastChannel,
+                                    channel,
                                     newEventNumber,
-                                    0,
-                                    0,
+                                    newEventValue,
+                                    e.getTick(),
                                     eventDisplayName)
                         );
                 }
             }
 
+            // Insert a beginning event with the value 0 if needed
+            if (!addedNewEventAtBeginning && lastChannel != -1) {
+                eventsToAdd.add(
+                        new NewMIDIEvent(
+                                track,
+                                lastChannel,
+                                newEventNumber,
+                                0,
+                                0,
+                                eventDisplayName)
+                    );
+            }
+
             // We've processed this track and know what events to add,
             // so we're good to delete the old ones now
             deleteEventsFromTrack(track, eventsToDelete);
@@ -114,6 +108,58 @@ public abstract class EventReplacer extends MIDIAdjuster {
         }
     }
 
+    /**
+     * Gets the old events of a window of a track that change the new event's value
+     * - Does not modify the track, so this can run for several windows at once
+     * @param window - The events of the window, in track order
+     * @param oldEventNumber - The event to replace
+     * @param newEventValues - The table of new values, indexed by the old value
+     * @return The old events to replace, and what the window found out about the track
+     */
+    private static WindowReplacements getWindowReplacements(List<MidiEvent> window, int oldEventNumber, int[] newEventValues) {
+        WindowReplacements replacements = new WindowReplacements();
+        int lastNewEventValue = -1;
+        for (MidiEvent e : window) {
+            MidiMessage msg = e.getMessage();
+            if (msg instanceof ShortMessage) {
+                ShortMessage shortMsg = (ShortMessage) msg;
+                int command = shortMsg.getCommand();
+                replacements.lastChannel = shortMsg.getChannel();
+
+                if (command == ShortMessage.CONTROL_CHANGE && shortMsg.getData1() == oldEventNumber) {
+                    // Set the flag if we're adding a new event at the start so that we know
+                    // NOT to insert one with a value of 0 later on
+                    if (e.getTick() == 0) {
+                        replacements.hasEventAtBeginning = true;
+                    }
+
+                    int newEventValue = newEventValues[shortMsg.getData2()];
+                    if (lastNewEventValue != newEventValue) {
+                        lastNewEventValue = newEventValue;
+                        replacements.oldEvents.add(e);
+                    }
+                }
+            }
+        }
+        return replacements;
+    }
+
+    /**
+     * Gets a table of what each old event value converts to, so that we don't need to
+     * redo the division for every event in the sequence
+     * - Values are clamped to the max, in case the given range is larger than it
+     * @param divisionAmount - The amount to divide the old event by when creating the new event
+     * @return The table of new values, indexed by the old value
+     */
+    private static int[] getNewEventValues(double divisionAmount) {
+        int[] newEventValues = new int[MAX_EVENT_VALUE + 1];
+        for (int oldValue = 0; oldValue <= MAX_EVENT_VALUE; oldValue++) {
+            int newValue = (int)Math.ceil(divisionAmount * ((double)oldValue / (double)MAX_EVENT_VALUE));
+            newEventValues[oldValue] = clampValue(newValue, 0, MAX_EVENT_VALUE);
+        }
+        return newEventValues;
+    }
+
     /**
      * Checks whether we will be adding events and marks any existing ones as deleted if necessary
      * Supports passing the same event in old/new to modify its value
@@ -159,6 +205,19 @@ public abstract class EventReplacer extends MIDIAdjuster {
         return foundEventToReplace;
     }
 
+    /**
+     * The old events of a window that change the new event's value, in order
+     */
+    private static class WindowReplacements {
+        private final ArrayList<MidiEvent> oldEvents = new ArrayList<>();
+        private boolean hasEventAtBeginning = false;
+
+        /**
+         * The channel of the window's last short message (-1 if there isn't one)
+         */
+        private int lastChannel = -1;
+    }
+
     /**
      * Represents a new MIDI Event to insert
      * This is used when we're going through a loop and adding events, but we don't want the new
@@ -1,60 +1,286 @@
 package MIDITools.Adjuster;
 
+import MIDITools.IO.StreamEvent;
+import MIDITools.IO.StreamStage;
+
+import MIDITools.MIDITools;
+
 import javax.sound.midi.*;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 
 public class ExpressionAdjuster extends MIDIAdjuster {
     private static final int VOLUME_EVENT = 7;
     private static final int EXPRESSION_EVENT = 11;
 
+    private static final String REPLACE_ARG = "replace";
+    private static final String MERGE_ARG = "merge";
+
     /**
      * {@inheritDoc}
-     * Expected usage: -e
+     * Expected usage: -e [replace|merge = replace]
      */
     @Override
     public int execute(String[] args, int currentIndex, Sequence sequence) {
         ArrayList<String> transformationArgs = getAllArgs(args, currentIndex);
-
-        if (!transformationArgs.isEmpty()) {
-            System.out.println("ERROR: Incorrect number of args passed (expected 0)");
+        String mode = getMode(transformationArgs);
+        if (mode == null) {
             return -1;
         }
 
-        editMidiExpression(sequence);
+        if (mode.equals(MERGE_ARG)) {
+            mergeMidiExpression(sequence);
+        } else {
+            editMidiExpression(sequence);
+        }
 
         return currentIndex + transformationArgs.size() + 1;
     }
 
+    /**
+     * Gets the mode to run in
+     * @param transformationArgs - The args after the flag
+     * @return The mode; null if the args are invalid
+     */
+    private static String getMode(ArrayList<String> transformationArgs) {
+        if (transformationArgs.size() > 1) {
+            System.out.println("ERROR: Incorrect number of args passed to -e (expected 0-1)");
+            return null;
+        }
+
+        String mode = transformationArgs.isEmpty()
+            ? REPLACE_ARG
+            : transformationArgs.get(0);
+        if (!mode.equals(REPLACE_ARG) && !mode.equals(MERGE_ARG)) {
+            System.out.println("ERROR: Invalid arg passed to -e: " + mode + " (expected replace or merge)");
+            return null;
+        }
+        return mode;
+    }
+
+    @Override
+    public boolean isStreamable() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Each expression event is converted on its own, so this streams without holding anything back
+     */
+    @Override
+    public StreamStage createStreamStage(String[] args, int currentIndex) {
+        String mode = getMode(getAllArgs(args, currentIndex));
+        if (mode == null) {
+            return null;
+        }
+
+        // A channel's volume and expression can be in different tracks, which are streamed one at a time
+        if (mode.equals(MERGE_ARG)) {
+            System.out.println("ERROR: -e merge can't be streamed, since a channel's volume and expression can be in different tracks");
+            return null;
+        }
+
+        HashSet<String> channelsAffected = new HashSet<>();
+        return new StreamStage() {
+            @Override
+            public void processEvent(StreamEvent event, Consumer<StreamEvent> output) {
+                if (event.isChannelMessage() &&
+                        event.getCommand() == ShortMessage.CONTROL_CHANGE &&
+                        event.data1 == EXPRESSION_EVENT) {
+                    event.setShortMessage(ShortMessage.CONTROL_CHANGE, event.getChannel(), VOLUME_EVENT, event.data2);
+                    channelsAffected.add((event.getChannel() + 1) + "");
+                }
+                output.accept(event);
+            }
+
+            @Override
+            public void endStream() {
+                showSummary(channelsAffected);
+            }
+        };
+    }
+
     /**
      * Converts expression events into volume events
+     * - Each event is converted on its own, so long tracks are split into windows that are converted at the same time
      * @param sequence - The sequence to modify
      */
     public void editMidiExpression(Sequence sequence) {
         HashSet<String> channelsAffected = new HashSet<>();
         for (Track track : sequence.getTracks()) {
-            for (int i = 0; i < track.size(); i++) {
-                MidiEvent e = track.get(i);
-                MidiMessage msg = e.getMessage();
-                if (msg instanceof ShortMessage) {
-                    ShortMessage shortMsg = (ShortMessage)msg;
-
-                    int command = shortMsg.getCommand();
-                    int channel = shortMsg.getChannel();
-
-                    if (command == ShortMessage.CONTROL_CHANGE) {
-                        int data1 = shortMsg.getData1();
-                        int data2 = shortMsg.getData2();
-                        if (data1 == EXPRESSION_EVENT) {
-                            setShortMessage(shortMsg, command, channel, VOLUME_EVENT, data2);
-                            channelsAffected.add((channel + 1) + "");
-                        }
+            TickWindows windows = new TickWindows(TickWindows.getEvents(track));
+            for (HashSet<String> windowChannels : windows.processWindows((windowStart, window) -> editWindowExpression(window))) {
+                channelsAffected.addAll(windowChannels);
+            }
+        }
+
+        showSummary(channelsAffected);
+    }
+
+    /**
+     * Converts the expression events of a window of a track into volume events
+     * @param window - The events of the window, in track order
+     * @return The channels that were converted
+     */
+    private static HashSet<String> editWindowExpression(List<MidiEvent> window) {
+        HashSet<String> channelsAffected = new HashSet<>();
+        for (MidiEvent e : window) {
+            MidiMessage msg = e.getMessage();
+            if (msg instanceof ShortMessage) {
+                ShortMessage shortMsg = (ShortMessage)msg;
+
+                int command = shortMsg.getCommand();
+                int channel = shortMsg.getChannel();
+
+                if (command == ShortMessage.CONTROL_CHANGE) {
+                    int data1 = shortMsg.getData1();
+                    int data2 = shortMsg.getData2();
+                    if (data1 == EXPRESSION_EVENT) {
+                        setShortMessage(shortMsg, command, channel, VOLUME_EVENT, data2);
+                        channelsAffected.add((channel + 1) + "");
                     }
                 }
             }
         }
+        return channelsAffected;
+    }
+
+    /**
+     * Merges the volume and expression events of every channel into volume events of the two multiplied together
+     * - The channels are read at the same time, and nothing is changed until they've all been read
+     * @param sequence - The sequence to modify
+     */
+    private static void mergeMidiExpression(Sequence sequence) {
+        int numberOfEvents = 0;
+        for (Track track : sequence.getTracks()) {
+            numberOfEvents += track.size();
+        }
+
+        ArrayList<MergeResult> results = new ArrayList<>();
+        for (int channel = 0; channel < ChannelLanes.NUMBER_OF_CHANNELS; channel++) {
+            results.add(null);
+        }
+
+        IntStream channels = IntStream.range(0, ChannelLanes.NUMBER_OF_CHANNELS);
+        if (!MIDITools.verboseLogging && numberOfEvents >= ChannelLanes.PARALLEL_EVENT_THRESHOLD) {
+            channels = channels.parallel();
+        }
+
+        // Each channel only sets its own index, so this is safe to do in parallel
+        channels.forEach(channel -> results.set(channel, getMergedVolume(sequence, channel)));
+
+        System.out.println();
+        boolean mergedAnyChannels = false;
+        for (int channel = 0; channel < ChannelLanes.NUMBER_OF_CHANNELS; channel++) {
+            MergeResult result = results.get(channel);
+            if (result.numberOfEvents == 0) {
+                continue;
+            }
+
+            for (int i = 0; i < result.eventsToSet.size(); i++) {
+                setShortMessage(result.eventsToSet.get(i), ShortMessage.CONTROL_CHANGE, channel, VOLUME_EVENT, result.newValues.get(i));
+            }
+            for (ChannelEventIterator.ChannelEvent e : result.eventsToDelete) {
+                e.track.remove(e.event);
+            }
+
+            System.out.println("Channel " + (channel + 1) + ": Merged " + result.numberOfEvents +
+                " volume and expression events into " + result.eventsToSet.size() + " volume events.");
+            mergedAnyChannels = true;
+        }
+
+        if (!mergedAnyChannels) {
+            System.out.println("Did not find any volume or expression events.");
+        }
+        System.out.println();
+    }
+
+    /**
+     * Gets the changes needed to merge the volume and expression of a single channel, in a single pass
+     * - Both are read together in the order they play (see ChannelEventIterator), and each change to either one
+     *   becomes a volume event of volume * expression / 127 - one that hasn't been set yet counts as 127
+     * - Only the last change on each tick is kept, and only if it changes the merged volume
+     * - Does not modify the tracks, so this can run for several channels at once
+     * @param sequence - The sequence
+     * @param channel - The channel
+     * @return The changes to make to the channel
+     */
+    private static MergeResult getMergedVolume(Sequence sequence, int channel) {
+        MergeResult result = new MergeResult();
+        int volume = MAX_DATA_VALUE;
+        int expression = MAX_DATA_VALUE;
+        int lastMergedVolume = -1;
+
+        // The last change on the current tick, which is only kept once the tick is over
+        ChannelEventIterator.ChannelEvent pendingEvent = null;
+
+        ChannelEventIterator channelEvents = new ChannelEventIterator(sequence, channel);
+        while (channelEvents.hasNext()) {
+            ChannelEventIterator.ChannelEvent channelEvent = channelEvents.next();
+            ShortMessage shortMsg = channelEvent.getShortMessage();
+            int data1 = shortMsg.getData1();
+            if (shortMsg.getCommand() != ShortMessage.CONTROL_CHANGE || (data1 != VOLUME_EVENT && data1 != EXPRESSION_EVENT)) {
+                continue;
+            }
+
+            if (pendingEvent != null) {
+                if (pendingEvent.event.getTick() == channelEvent.event.getTick()) {
+                    result.eventsToDelete.add(pendingEvent);
+                } else {
+                    lastMergedVolume = keepMergedVolume(pendingEvent, volume * expression, lastMergedVolume, channel, result);
+                }
+            }
+
+            if (data1 == VOLUME_EVENT) {
+                volume = shortMsg.getData2();
+            } else {
+                expression = shortMsg.getData2();
+            }
+            pendingEvent = channelEvent;
+            result.numberOfEvents++;
+        }
+
+        if (pendingEvent != null) {
+            keepMergedVolume(pendingEvent, volume * expression, lastMergedVolume, channel, result);
+        }
+        return result;
+    }
 
-        // Print out a summary
+    /**
+     * Turns the last change of a tick into a volume event of the merged volume, if it changes it
+     * @param channelEvent - The event
+     * @param product - The volume and expression multiplied together
+     * @param lastMergedVolume - The merged volume before this tick (-1 if not set yet)
+     * @param channel - The channel
+     * @param result - The merge result to add to
+     * @return The merged volume after this tick
+     */
+    private static int keepMergedVolume(
+            ChannelEventIterator.ChannelEvent channelEvent,
+            int product,
+            int lastMergedVolume,
+            int channel,
+            MergeResult result) {
+        int mergedVolume = Math.round((float)product / MAX_DATA_VALUE);
+        if (mergedVolume == lastMergedVolume) {
+            result.eventsToDelete.add(channelEvent);
+            return lastMergedVolume;
+        }
+
+        result.eventsToSet.add(channelEvent.getShortMessage());
+        result.newValues.add(mergedVolume);
+        verboseLog("Set volume to " + mergedVolume + " at tick " + channelEvent.event.getTick(), channel);
+        return mergedVolume;
+    }
+
+    /**
+     * Prints out a summary of the channels that had expression events converted
+     * @param channelsAffected - The channels that were converted
+     */
+    private static void showSummary(HashSet<String> channelsAffected) {
         System.out.println();
 
         if (channelsAffected.isEmpty()) {
@@ -65,4 +291,14 @@ public class ExpressionAdjuster extends MIDIAdjuster {
 
         System.out.println();
     }
+
+    /**
+     * The changes to make to the volume and expression of a single channel
+     */
+    private static class MergeResult {
+        private final ArrayList<ShortMessage> eventsToSet = new ArrayList<>();
+        private final ArrayList<Integer> newValues = new ArrayList<>();
+        private final ArrayList<ChannelEventIterator.ChannelEvent> eventsToDelete = new ArrayList<>();
+        private int numberOfEvents = 0;
+    }
 }
@@ -1,5 +1,7 @@
 package MIDITools.Adjuster;
 
+import MIDITools.IO.SharedShortMessage;
+import MIDITools.IO.StreamStage;
 import MIDITools.MIDITools;
 
 import javax.sound.midi.*;
@@ -16,6 +18,11 @@ public abstract class MIDIAdjuster {
      */
     public static final String PROGRAM_CHANGE_ARG = "program-change";
 
+    /**
+     * The max value of a short message data byte (control change values, note numbers, etc.)
+     */
+    public static final int MAX_DATA_VALUE = 127;
+
     /**
      * Executes the transformation and returns the index of the next one (or the end of the list)
      * @param args - All the args passed via command line
@@ -25,6 +32,25 @@ public abstract class MIDIAdjuster {
      */
     public abstract int execute(String[] args, int currentIndex, Sequence sequence);
 
+    /**
+     * Whether this transformation can run in the streaming mode (see StreamingRunner)
+     * - Only transformations that never need to see more than a small window of a track at once can
+     * - Anything that needs the whole track first (such as finding the pitch bend range) can't
+     */
+    public boolean isStreamable() {
+        return false;
+    }
+
+    /**
+     * Creates a stage that runs this transformation on a stream of events - only call this if isStreamable
+     * @param args - All the args passed via command line
+     * @param currentIndex The index to start looking (the one at the current transformation flag)
+     * @return The stage (or null if there was a problem with the args)
+     */
+    public StreamStage createStreamStage(String[] args, int currentIndex) {
+        return null;
+    }
+
     /**
      * Gets all the arguments from the current index and returns them in a list
      * - Flags are currently found by checking whether the string stars with a hyphen (-)
@@ -67,6 +93,18 @@ public abstract class MIDIAdjuster {
         }
     }
 
+    /**
+     * Clamps the given value so it stays within the given bounds
+     * - Values outside the range would otherwise throw when set on a short message
+     * @param value - The value to clamp
+     * @param min - The smallest allowed value
+     * @param max - The largest allowed value
+     * @return The clamped value
+     */
+    protected static int clampValue(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
     /**
      * Adds a new event short message to the midi for a given command
      * @param track - The track to add to
@@ -84,7 +122,7 @@ public abstract class MIDIAdjuster {
             int data2,
             long tick,
             String eventDisplayName) {
-        ShortMessage shortMessage = new ShortMessage();
+        ShortMessage shortMessage = new SharedShortMessage();
         setShortMessage(shortMessage, commandNumber, channel, data1, data2);
         track.add(new MidiEvent(shortMessage, tick));
 
@@ -107,7 +145,7 @@ public abstract class MIDIAdjuster {
             int eventValue,
             long tick,
             String eventDisplayName) {
-        ShortMessage shortMessage = new ShortMessage();
+        ShortMessage shortMessage = new SharedShortMessage();
         setShortMessage(shortMessage, ShortMessage.CONTROL_CHANGE, channel, eventNumber, eventValue);
         track.add(new MidiEvent(shortMessage, tick));
 
@@ -25,6 +25,12 @@ public class MIDIAdjusterFactory {
                 return new EventMover();
             case "-n":
                 return new NotePitchAdjuster();
+            case "-t":
+                return new TrackSplitter();
+            case "-l":
+                return new EventRateLimiter();
+            case "-q":
+                return new EventQuantizer();
             default:
                 return null;
         }
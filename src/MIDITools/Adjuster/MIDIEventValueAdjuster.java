@@ -1,47 +1,131 @@
 package MIDITools.Adjuster;
 
+import MIDITools.IO.StreamEvent;
+import MIDITools.IO.StreamStage;
+
 import javax.sound.midi.*;
 import java.util.*;
+import java.util.function.Consumer;
 
 public class MIDIEventValueAdjuster extends MIDIAdjuster {
     private static final int INDEX_EVENT_NUMBER_ARG = 0;
     private static final int INDEX_AMOUNT_ARG = 1;
     private static final int INDEX_CHANNEL_ARG = 2;
 
+    /**
+     * The parsed args - the event number is -1 for pitch bends, and the channel is -1 for all channels
+     */
+    private int eventNumber;
+    private int amount;
+    private int channelToModify;
+
     /**
      * {@inheritDoc}
      * Expected usage: [-a|-s] [event number] [amount] [channel = -1]
      */
     @Override
     public int execute(String[] args, int currentIndex, Sequence sequence) {
-        String currentFlag = args[currentIndex];
         ArrayList<String> transformationArgs = getAllArgs(args, currentIndex);
+        if (!parseArgs(args[currentIndex], transformationArgs)) {
+            return -1;
+        }
+
+        if (eventNumber == -1) {
+            addOrSubtractPitchBendValue(sequence, amount, channelToModify);
+        } else {
+            addOrSubtractShortMessageValue(sequence, eventNumber, amount, channelToModify);
+        }
+
+        return currentIndex + transformationArgs.size() + 1;
+    }
+
+    @Override
+    public boolean isStreamable() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Each event is adjusted on its own, so this streams without holding anything back
+     */
+    @Override
+    public StreamStage createStreamStage(String[] args, int currentIndex) {
+        if (!parseArgs(args[currentIndex], getAllArgs(args, currentIndex))) {
+            return null;
+        }
+
+        boolean modifyPitchBendEvent = eventNumber == -1;
+        Set<String> channelsAdjusted = new HashSet<>();
+        return new StreamStage() {
+            @Override
+            public void processEvent(StreamEvent event, Consumer<StreamEvent> output) {
+                if (event.isChannelMessage()) {
+                    int command = event.getCommand();
+                    int channel = event.getChannel();
+                    int anvilStudioChannel = channel + 1;
+
+                    if (channelToModify < 0 || anvilStudioChannel == channelToModify) {
+                        if (modifyPitchBendEvent && command == ShortMessage.PITCH_BEND) {
+                            channelsAdjusted.add(String.valueOf(anvilStudioChannel));
+                            int oldPitchBendValue = PitchBendAdjuster.getPitchBendValue(event.data1, event.data2);
+                            int newPitchBendValue = clampValue(oldPitchBendValue + amount, 0, PitchBendAdjuster.MAX_VALUE);
+                            event.setShortMessage(command, channel, newPitchBendValue % 128, newPitchBendValue / 128);
+                        } else if (!modifyPitchBendEvent && command == ShortMessage.CONTROL_CHANGE && event.data1 == eventNumber) {
+                            channelsAdjusted.add(String.valueOf(anvilStudioChannel));
+                            int newEventValue = clampValue(event.data2 + amount, 0, MAX_DATA_VALUE);
+                            event.setShortMessage(command, channel, eventNumber, newEventValue);
+                        }
+                    }
+                }
+                output.accept(event);
+            }
 
+            @Override
+            public void endStream() {
+                showChannelsModifiedMessage(new ArrayList<>(channelsAdjusted), getEventString(eventNumber) + " changed by " + amount + " on channels");
+            }
+        };
+    }
+
+    /**
+     * Parses the args into the event number, amount and channel
+     * @param currentFlag - The flag - either -a or -s
+     * @param transformationArgs - The args after the flag
+     * @return True if the args are valid; false otherwise
+     */
+    private boolean parseArgs(String currentFlag, ArrayList<String> transformationArgs) {
         if (transformationArgs.size() < 2 || transformationArgs.size() > 3) {
             System.out.println("ERROR: Incorrect number of args passed to -a or -s (expected 2-3)");
-            return -1;
+            return false;
         }
 
         // Grab the amount - make it negative if it's subtraction
-        int amount = Integer.parseInt(transformationArgs.get(INDEX_AMOUNT_ARG));
-        amount = currentFlag.equals("-s")
+        amount = Integer.parseInt(transformationArgs.get(INDEX_AMOUNT_ARG));
+        amount = currentFlag.trim().equals("-s")
             ? -amount
             : amount;
 
-        int channel = -1;
+        channelToModify = -1;
         if (transformationArgs.size() > INDEX_CHANNEL_ARG) {
-            channel = Integer.parseInt(transformationArgs.get(INDEX_CHANNEL_ARG));
+            channelToModify = Integer.parseInt(transformationArgs.get(INDEX_CHANNEL_ARG));
         }
 
         String eventNumberString = transformationArgs.get(INDEX_EVENT_NUMBER_ARG);
-        if (eventNumberString.equals(PITCH_BEND_ARG)) {
-            addOrSubtractPitchBendValue(sequence, amount, channel);
-        } else {
-            int eventNumber = Integer.parseInt(eventNumberString);
-            addOrSubtractShortMessageValue(sequence, eventNumber, amount, channel);
-        }
+        eventNumber = eventNumberString.equals(PITCH_BEND_ARG)
+            ? -1
+            : Integer.parseInt(eventNumberString);
 
-        return currentIndex + transformationArgs.size() + 1;
+        return true;
+    }
+
+    /**
+     * Gets the name of the event to show in the summary
+     * @param eventNumber - The event number (-1 for pitch bends)
+     */
+    private static String getEventString(int eventNumber) {
+        return eventNumber == -1
+            ? "Pitch Bend events"
+            : "Event " + eventNumber;
     }
 
     /**
@@ -73,6 +157,7 @@ public class MIDIEventValueAdjuster extends MIDIAdjuster {
 
     /**
      * Adds or subtracts the given amount from all the given midi events
+     * - Values are clamped to the valid range of the event, rather than failing to be set
      * @param sequence - The sequence to modify
      * @param eventNumber - The event number (if not modifying pitch bends)
      * @param amount - The amount to modify by - negative number to subtract
@@ -88,51 +173,82 @@ public class MIDIEventValueAdjuster extends MIDIAdjuster {
 
         Set<String> channelsAdjusted = new HashSet<>();
         for (Track track : sequence.getTracks()) {
-            for (int i = 0; i < track.size(); i++) {
-                MidiEvent e = track.get(i);
-                MidiMessage msg = e.getMessage();
-
-                if (msg instanceof ShortMessage) {
-                    ShortMessage shortMsg = (ShortMessage) msg;
-                    int command = shortMsg.getCommand();
-                    int channel = shortMsg.getChannel();
-                    int anvilStudioChannel = channel + 1;
-                    int data1 = shortMsg.getData1();
-                    int data2 = shortMsg.getData2();
+            // Each lane only changes the messages on its own channel, so they can be adjusted at the same time
+            ChannelLanes lanes = new ChannelLanes(track);
+            ArrayList<Boolean> lanesAdjusted = lanes.processLanes((channel, lane) -> {
+                int anvilStudioChannel = channel + 1;
+                if (channelToModify >= 0 && anvilStudioChannel != channelToModify) {
+                    return false;
+                }
+                return addOrSubtractLaneValue(lane, eventNumber, amount);
+            });
 
-                    if (channelToModify >= 0 && anvilStudioChannel != channelToModify) {
-                        continue;
-                    }
+            for (int channel = 0; channel < ChannelLanes.NUMBER_OF_CHANNELS; channel++) {
+                if (Boolean.TRUE.equals(lanesAdjusted.get(channel))) {
+                    channelsAdjusted.add(String.valueOf(channel + 1));
+                }
+            }
+        }
 
-                    if (modifyPitchBendEvent) {
-                        if (command == ShortMessage.PITCH_BEND) {
-                            channelsAdjusted.add(String.valueOf(channel + 1));
-                            int oldPitchBendValue = PitchBendAdjuster.getPitchBendValue(data1, data2);
-                            int newPitchBendValue = oldPitchBendValue + amount;
+        showChannelsModifiedMessage(new ArrayList<>(channelsAdjusted), getEventString(eventNumber) + " changed by " + amount + " on channels");
+    }
 
-                            int newData1 = newPitchBendValue % 128;
-                            int newData2 = newPitchBendValue / 128;
-                            setShortMessage(shortMsg, ShortMessage.PITCH_BEND, channel, newData1, newData2);
+    /**
+     * Adds or subtracts the given amount from the given midi events of a single channel
+     * - Each event is adjusted on its own, so long lanes are split into windows that are adjusted at the same time
+     * @param lane - The events of the channel, in track order
+     * @param eventNumber - The event number (-1 if modifying pitch bends)
+     * @param amount - The amount to modify by - negative number to subtract
+     * @return True if any event was adjusted; false otherwise
+     */
+    private static boolean addOrSubtractLaneValue(ArrayList<MidiEvent> lane, int eventNumber, int amount) {
+        ArrayList<Boolean> windowsAdjusted = new TickWindows(lane).processWindows(
+            (windowStart, window) -> addOrSubtractWindowValue(window, eventNumber, amount));
+        return windowsAdjusted.contains(true);
+    }
 
-                            String valueString = oldPitchBendValue + " -> " + newPitchBendValue;
-                            verboseLog("Pitch Bend event " + valueString + " at tick " + e.getTick(), channel);
-                        }
-                    } else if (command == ShortMessage.CONTROL_CHANGE && data1 == eventNumber) {
-                        channelsAdjusted.add(String.valueOf(channel + 1));
-                        int oldEventValue = data2;
-                        int newEventValue = oldEventValue + amount;
-                        setShortMessage(shortMsg, ShortMessage.CONTROL_CHANGE, channel, eventNumber, newEventValue);
-
-                        String valueString = oldEventValue + " -> " + newEventValue;
-                        verboseLog("Event " + eventNumber + " - " + valueString + " at tick " + e.getTick(), channel);
-                    }
+    /**
+     * Adds or subtracts the given amount from the given midi events of a window of a single channel
+     * @param window - The events of the window, in track order
+     * @param eventNumber - The event number (-1 if modifying pitch bends)
+     * @param amount - The amount to modify by - negative number to subtract
+     * @return True if any event was adjusted; false otherwise
+     */
+    private static boolean addOrSubtractWindowValue(List<MidiEvent> window, int eventNumber, int amount) {
+        boolean modifyPitchBendEvent = eventNumber == -1;
+        boolean adjustedAnyEvents = false;
+
+        for (MidiEvent e : window) {
+            ShortMessage shortMsg = (ShortMessage) e.getMessage();
+            int command = shortMsg.getCommand();
+            int channel = shortMsg.getChannel();
+            int data1 = shortMsg.getData1();
+            int data2 = shortMsg.getData2();
+
+            if (modifyPitchBendEvent) {
+                if (command == ShortMessage.PITCH_BEND) {
+                    adjustedAnyEvents = true;
+                    int oldPitchBendValue = PitchBendAdjuster.getPitchBendValue(data1, data2);
+                    int newPitchBendValue = clampValue(oldPitchBendValue + amount, 0, PitchBendAdjuster.MAX_VALUE);
+
+                    int newData1 = newPitchBendValue % 128;
+                    int newData2 = newPitchBendValue / 128;
+                    setShortMessage(shortMsg, ShortMessage.PITCH_BEND, channel, newData1, newData2);
+
+                    String valueString = oldPitchBendValue + " -> " + newPitchBendValue;
+                    verboseLog("Pitch Bend event " + valueString + " at tick " + e.getTick(), channel);
                 }
+            } else if (command == ShortMessage.CONTROL_CHANGE && data1 == eventNumber) {
+                adjustedAnyEvents = true;
+                int oldEventValue = data2;
+                int newEventValue = clampValue(oldEventValue + amount, 0, MAX_DATA_VALUE);
+                setShortMessage(shortMsg, ShortMessage.CONTROL_CHANGE, channel, eventNumber, newEventValue);
+
+                String valueString = oldEventValue + " -> " + newEventValue;
+                verboseLog("Event " + eventNumber + " - " + valueString + " at tick " + e.getTick(), channel);
             }
         }
 
-        String eventString = modifyPitchBendEvent
-                ? "Pitch Bend events"
-                : "Event " + eventNumber;
-        showChannelsModifiedMessage(new ArrayList<>(channelsAdjusted), eventString + " changed by " + amount + " on channels");
+        return adjustedAnyEvents;
     }
 }
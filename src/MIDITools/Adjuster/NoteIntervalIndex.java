@@ -0,0 +1,235 @@
+package MIDITools.Adjuster;
+
+import javax.sound.midi.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Every note of one channel across all tracks, as intervals of ticks, for finding which notes sound when
+ * - Built in one pass over the channel (see ChannelEventIterator): each note off (or note on with a velocity of 0)
+ *   ends the earliest note still sounding on its key
+ * - A note sounds from its start up to, but not including, its end - notes that never end sound until the last tick
+ *   of the sequence
+ * - Notes are kept in the order they start, in primitive arrays, along with a tree of the largest end of each
+ *   range of them - a query binary searches for the last note starting in range, then only goes down the parts of
+ *   the tree where a note is still sounding, so a long note doesn't slow down the queries after it
+ *
+ * Like ChannelEventIterator, the tracks must not be modified while the index is used.
+ */
+public class NoteIntervalIndex {
+    private final long[] startTicks;
+    private final long[] endTicks;
+    private final int[] pitches;
+    private final int[] velocities;
+
+    /**
+     * The note on events, so that changes can be made next to them
+     */
+    private final ChannelEventIterator.ChannelEvent[] noteOns;
+
+    /**
+     * The largest end tick of each range of notes, as a binary tree in an array - the root is at 1, the children
+     * of each node are at 2n and 2n + 1, and the notes themselves are the leaves, from treeSize on
+     */
+    private final long[] maxEndTree;
+    private final int treeSize;
+
+    /**
+     * @param sequence - The sequence to index
+     * @param channel - The 0-indexed channel to index the notes of
+     */
+    public NoteIntervalIndex(Sequence sequence, int channel) {
+        ArrayList<ChannelEventIterator.ChannelEvent> noteOnList = new ArrayList<>();
+        ArrayList<Long> endTickList = new ArrayList<>();
+
+        // The notes still sounding on each key, earliest first
+        ArrayList<ArrayList<Integer>> soundingNotes = new ArrayList<>();
+        for (int i = 0; i <= MIDIAdjuster.MAX_DATA_VALUE; i++) {
+            soundingNotes.add(new ArrayList<>());
+        }
+
+        ChannelEventIterator channelEvents = new ChannelEventIterator(sequence, channel);
+        while (channelEvents.hasNext()) {
+            ChannelEventIterator.ChannelEvent channelEvent = channelEvents.next();
+            ShortMessage shortMsg = channelEvent.getShortMessage();
+            int command = shortMsg.getCommand();
+            int key = shortMsg.getData1();
+
+            if (command == ShortMessage.NOTE_ON && shortMsg.getData2() > 0) {
+                soundingNotes.get(key).add(noteOnList.size());
+                noteOnList.add(channelEvent);
+                endTickList.add(-1L);
+            } else if (command == ShortMessage.NOTE_ON || command == ShortMessage.NOTE_OFF) {
+                ArrayList<Integer> sounding = soundingNotes.get(key);
+                if (!sounding.isEmpty()) {
+                    endTickList.set(sounding.remove(0), channelEvent.event.getTick());
+                }
+            }
+        }
+
+        int numberOfNotes = noteOnList.size();
+        noteOns = noteOnList.toArray(new ChannelEventIterator.ChannelEvent[0]);
+        startTicks = new long[numberOfNotes];
+        endTicks = new long[numberOfNotes];
+        pitches = new int[numberOfNotes];
+        velocities = new int[numberOfNotes];
+
+        long lastTick = sequence.getTickLength();
+        for (int i = 0; i < numberOfNotes; i++) {
+            ShortMessage shortMsg = noteOns[i].getShortMessage();
+            startTicks[i] = noteOns[i].event.getTick();
+            endTicks[i] = endTickList.get(i) == -1 ? Math.max(lastTick, startTicks[i]) : endTickList.get(i);
+            pitches[i] = shortMsg.getData1();
+            velocities[i] = shortMsg.getData2();
+        }
+
+        treeSize = Integer.highestOneBit(Math.max(1, numberOfNotes - 1)) << 1;
+        maxEndTree = new long[treeSize * 2];
+        Arrays.fill(maxEndTree, Long.MIN_VALUE);
+        System.arraycopy(endTicks, 0, maxEndTree, treeSize, numberOfNotes);
+        for (int node = treeSize - 1; node > 0; node--) {
+            maxEndTree[node] = Math.max(maxEndTree[2 * node], maxEndTree[2 * node + 1]);
+        }
+    }
+
+    public int size() {
+        return startTicks.length;
+    }
+
+    public long getStartTick(int note) {
+        return startTicks[note];
+    }
+
+    public long getEndTick(int note) {
+        return endTicks[note];
+    }
+
+    public int getPitch(int note) {
+        return pitches[note];
+    }
+
+    public int getVelocity(int note) {
+        return velocities[note];
+    }
+
+    /**
+     * Gets the note on event of the note, along with its track
+     */
+    public ChannelEventIterator.ChannelEvent getNoteOn(int note) {
+        return noteOns[note];
+    }
+
+    /**
+     * Gets the notes sounding at the given tick
+     * @param tick - The tick
+     * @return The indexes of the notes, in the order they start
+     */
+    public int[] getNotesSoundingAt(long tick) {
+        return getNotesOverlapping(tick, tick + 1);
+    }
+
+    /**
+     * Gets the notes that sound at any point in the given range of ticks
+     * @param fromTick - The first tick of the range
+     * @param toTick - The tick after the last tick of the range
+     * @return The indexes of the notes, in the order they start
+     */
+    public int[] getNotesOverlapping(long fromTick, long toTick) {
+        NoteList notes = new NoteList();
+        addNotesEndingAfter(1, 0, treeSize - 1, getLastNoteStartingBefore(toTick), fromTick, notes);
+        return Arrays.copyOf(notes.notes, notes.size);
+    }
+
+    /**
+     * Gets the last note to start of the ones sounding at the given tick
+     * @param tick - The tick
+     * @return The index of the note; -1 if nothing is sounding
+     */
+    public int getLastNoteSoundingAt(long tick) {
+        return getLastNoteEndingAfter(1, 0, treeSize - 1, getLastNoteStartingBefore(tick + 1), tick);
+    }
+
+    /**
+     * Adds the notes under the node, up to the given one, that end after the given tick
+     * @param node - The node of the tree
+     * @param firstNote - The first note under the node
+     * @param lastNote - The last note under the node
+     * @param lastNoteInRange - The last note that can be added
+     * @param tick - The tick
+     * @param notes - The list to add the notes to, in the order they start
+     */
+    private void addNotesEndingAfter(
+        int node, int firstNote, int lastNote, int lastNoteInRange, long tick, NoteList notes)
+    {
+        if (firstNote > lastNoteInRange || maxEndTree[node] <= tick) {
+            return;
+        }
+        if (firstNote == lastNote) {
+            notes.add(firstNote);
+            return;
+        }
+
+        int middleNote = (firstNote + lastNote) >>> 1;
+        addNotesEndingAfter(2 * node, firstNote, middleNote, lastNoteInRange, tick, notes);
+        addNotesEndingAfter(2 * node + 1, middleNote + 1, lastNote, lastNoteInRange, tick, notes);
+    }
+
+    /**
+     * Gets the last note under the node, up to the given one, that ends after the given tick
+     * @param node - The node of the tree
+     * @param firstNote - The first note under the node
+     * @param lastNote - The last note under the node
+     * @param lastNoteInRange - The last note that can be returned
+     * @param tick - The tick
+     * @return The index of the note; -1 if there isn't one
+     */
+    private int getLastNoteEndingAfter(int node, int firstNote, int lastNote, int lastNoteInRange, long tick) {
+        if (firstNote > lastNoteInRange || maxEndTree[node] <= tick) {
+            return -1;
+        }
+        if (firstNote == lastNote) {
+            return firstNote;
+        }
+
+        int middleNote = (firstNote + lastNote) >>> 1;
+        int note = getLastNoteEndingAfter(2 * node + 1, middleNote + 1, lastNote, lastNoteInRange, tick);
+        return note != -1
+            ? note
+            : getLastNoteEndingAfter(2 * node, firstNote, middleNote, lastNoteInRange, tick);
+    }
+
+    /**
+     * Gets the last note that starts before the given tick
+     * @return The index of the note; -1 if there isn't one
+     */
+    private int getLastNoteStartingBefore(long tick) {
+        int low = 0;
+        int high = startTicks.length - 1;
+        int result = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (startTicks[middle] < tick) {
+                result = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A growable list of note indexes, so queries don't box every note
+     */
+    private static class NoteList {
+        private int[] notes = new int[8];
+        private int size = 0;
+
+        private void add(int note) {
+            if (size == notes.length) {
+                notes = Arrays.copyOf(notes, notes.length * 2);
+            }
+            notes[size++] = note;
+        }
+    }
+}
@@ -11,8 +11,9 @@ import java.util.ArrayList;
  * then sound like it did before.
  *
  *  Due to note overlap concerns, this will NOT adjust the note values automatically.
- *  It also will not care about chords, so it's important to ensure the channel is
- *  compatible with this before using it.
+ *  Only one pitch can be bent to at a time, so when notes overlap, the one that started
+ *  last is followed (the top note, for chords), and when it ends, the bend goes back to
+ *  whichever note is still sounding. Bends only change where the sounding pitch does.
  *
  * i.e. If given a base value of midi 60, a found note of midi 62 will get a pitch
  * bend up 2 half steps so that if moved to 60, it would play midi 62.
@@ -71,45 +72,110 @@ public class NotePitchAdjuster extends MIDIAdjuster {
     private void editMidiPitches(
         Sequence sequence, int channelNumber, int baseNote, double pitchBendRange)
     {
+        int channel = channelNumber - 1;
+
+        // Go through the channel in the order it plays, even if it's spread over several tracks
+        NoteIntervalIndex notes = new NoteIntervalIndex(sequence, channel);
+        ArrayList<MidiEvent> noteEvents = new ArrayList<>(notes.size());
+        for (int i = 0; i < notes.size(); i++) {
+            noteEvents.add(notes.getNoteOn(i).event);
+        }
+
+        // Each window finds the sounding note at the starts and ends of its own notes; the index is only read,
+        // so the windows can run at the same time, and the ticks they share are dropped afterward
+        TickWindows windows = new TickWindows(noteEvents);
+        ArrayList<ArrayList<PitchChange>> changesByWindow = windows.processWindows(
+            (windowStart, window) -> getSoundingNotes(notes, windowStart, window.size()));
+
+        ArrayList<PitchChange> changes = new ArrayList<>();
+        for (ArrayList<PitchChange> windowChanges : changesByWindow) {
+            changes.addAll(windowChanges);
+        }
+        changes.sort((a, b) -> Long.compare(a.tick, b.tick));
+
         int currentAdjustment = Integer.MIN_VALUE; // Used so we don't enter dup events
-        for (Track track : sequence.getTracks()) {
-            for (int i = 0; i < track.size(); i++) {
-                MidiEvent e = track.get(i);
-                MidiMessage msg = e.getMessage();
-
-                if (msg instanceof ShortMessage) {
-                    ShortMessage shortMsg = (ShortMessage) msg;
-                    int command = shortMsg.getCommand();
-                    int channel = shortMsg.getChannel();
-                    int anvilStudioChannel = channel + 1;
-
-                    if (anvilStudioChannel != channelNumber || command != ShortMessage.NOTE_ON) {
-                        continue;
-                    }
-
-                    int noteValue = shortMsg.getData1();
-                    long tick = e.getTick();
-
-                    // Don't do anything if we're already bending by this much
-                    if (currentAdjustment == noteValue - baseNote)  {
-                        continue;
-                    }
-                    currentAdjustment = noteValue - baseNote;
-
-                    int pitchBendValue = getPitchBendAdjustment(pitchBendRange, currentAdjustment, tick);
-                    int pitchBendData1 = pitchBendValue % 128;
-                    int pitchBendData2 = pitchBendValue / 128;
-                    addNewShortMessage(
-                        track,
-                        ShortMessage.PITCH_BEND,
-                        channel,
-                        pitchBendData1,
-                        pitchBendData2,
-                        tick,
-                        "Pitch Bend");
-                }
+        int numberOfChords = 0;
+        long lastTick = -1;
+        for (PitchChange change : changes) {
+            if (change.tick == lastTick) {
+                continue;
+            }
+            lastTick = change.tick;
+            if (change.isChord) {
+                numberOfChords++;
+            }
+
+            // Don't do anything if we're already bending by this much
+            int adjustment = notes.getPitch(change.note) - baseNote;
+            if (currentAdjustment == adjustment) {
+                continue;
             }
+            currentAdjustment = adjustment;
+
+            int pitchBendValue = getPitchBendAdjustment(pitchBendRange, adjustment, change.tick);
+            int pitchBendData1 = pitchBendValue % 128;
+            int pitchBendData2 = pitchBendValue / 128;
+            addNewShortMessage(
+                notes.getNoteOn(change.note).track,
+                ShortMessage.PITCH_BEND,
+                channel,
+                pitchBendData1,
+                pitchBendData2,
+                change.tick,
+                "Pitch Bend");
+        }
+
+        if (numberOfChords > 0) {
+            System.out.println("WARNING: Channel " + channelNumber + " has " + numberOfChords +
+                " chords - only the top note of each can be bent to.");
+        }
+    }
+
+    /**
+     * Gets the note that sounds at every tick where a note of the window starts or ends
+     * - Ticks where nothing is sounding are left out, so the bend stays where it was
+     * @param notes - The notes of the channel
+     * @param windowStart - The index of the window's first note
+     * @param windowSize - The number of notes in the window
+     * @return The note sounding at each tick, in no particular order
+     */
+    private static ArrayList<PitchChange> getSoundingNotes(NoteIntervalIndex notes, int windowStart, int windowSize) {
+        ArrayList<PitchChange> changes = new ArrayList<>();
+        for (int i = windowStart; i < windowStart + windowSize; i++) {
+            addSoundingNote(notes, notes.getStartTick(i), changes);
+            addSoundingNote(notes, notes.getEndTick(i), changes);
         }
+        return changes;
+    }
+
+    /**
+     * Finds the note that sounds at the tick - the one that started last, or the highest of those that
+     * started together
+     * @param notes - The notes of the channel
+     * @param tick - The tick
+     * @param changes - The list to add the note to, if any is sounding
+     */
+    private static void addSoundingNote(NoteIntervalIndex notes, long tick, ArrayList<PitchChange> changes) {
+        int lastNote = notes.getLastNoteSoundingAt(tick);
+        if (lastNote == -1) {
+            return;
+        }
+
+        // Notes are in the order they start, so the ones that started with it are right before it
+        int topNote = lastNote;
+        int notesStartingTogether = 0;
+        for (int i = lastNote; i >= 0 && notes.getStartTick(i) == notes.getStartTick(lastNote); i--) {
+            if (notes.getEndTick(i) <= tick) {
+                continue;
+            }
+            if (notes.getPitch(i) > notes.getPitch(topNote)) {
+                topNote = i;
+            }
+            notesStartingTogether++;
+        }
+
+        boolean isChord = notesStartingTogether > 1 && notes.getStartTick(topNote) == tick;
+        changes.add(new PitchChange(tick, topNote, isChord));
     }
 
     /**
@@ -131,4 +197,23 @@ public class NotePitchAdjuster extends MIDIAdjuster {
             ? 0 // No adjustment for a perfect match, we don't want to return -1
             : result - 1; // -1 because it's essentially 0-indexed
     }
+
+    /**
+     * The note that sounds from a tick on
+     */
+    private static class PitchChange {
+        private final long tick;
+        private final int note;
+
+        /**
+         * Whether several notes start together at this tick
+         */
+        private final boolean isChord;
+
+        private PitchChange(long tick, int note, boolean isChord) {
+            this.tick = tick;
+            this.note = note;
+            this.isChord = isChord;
+        }
+    }
 }
@@ -1,8 +1,15 @@
 package MIDITools.Adjuster;
 
+import MIDITools.IO.SharedShortMessage;
+import MIDITools.MIDITools;
+
 import javax.sound.midi.*;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.stream.IntStream;
 
 public class PitchBendAdjuster extends MIDIAdjuster {
     /**
@@ -18,6 +25,11 @@ public class PitchBendAdjuster extends MIDIAdjuster {
      */
     public static final int BASE_VALUE = 8192;
 
+    /**
+     * The largest value a pitch bend can have (both data bytes at 127)
+     */
+    public static final int MAX_VALUE = 16383;
+
     /**
      * Anvil Studio uses the "Data Slider" event for this
      * It uses the CONTROL_CHANGE message, with a Data 1 value of 6
@@ -33,6 +45,15 @@ public class PitchBendAdjuster extends MIDIAdjuster {
     private static final int DATA_SLIDER_LSB = 38;
     private static final int DEFAULT_DATA_2 = 0;
 
+    /**
+     * The other events that change a registered param, and the ones that select a non-registered param instead
+     * - Needed to tell which data events are actually setting the pitch bend range
+     */
+    private static final int DATA_INCREMENT = 96;
+    private static final int DATA_DECREMENT = 97;
+    private static final int NON_REGISTERED_PARAM_LSB = 98;
+    private static final int NON_REGISTERED_PARAM_MSB = 99;
+
     /**
      * OoT assumes the pitch bend range is the full octave (a range of 12)
      * Anvil Studio assumes it's 2 if no range is explicitly set
@@ -64,60 +85,56 @@ public class PitchBendAdjuster extends MIDIAdjuster {
     }
 
     /**
-     * Modifies the pitch bends
-     * - This does not handle pitch bend range changes in the middle of the track very well
-     * - Try to scan for this and adjust the midi accordingly before running this
+     * Modifies the pitch bends of every channel, following the pitch bend range as it changes through the song
+     * - Each channel is read in the order it plays (see ChannelEventIterator), so a range change applies to the
+     *   bends after it, even when they're in another track
+     * - The channels are read at the same time, and nothing is changed until they've all been read
      * @param sequence - The sequence to modify
      */
     private void editMidiPitchBends(Sequence sequence) {
+        int numberOfEvents = 0;
+        for (Track track : sequence.getTracks()) {
+            numberOfEvents += track.size();
+        }
+
+        ArrayList<ChannelResult> results = new ArrayList<>();
+        for (int channel = 0; channel < ChannelLanes.NUMBER_OF_CHANNELS; channel++) {
+            results.add(null);
+        }
+
+        IntStream channels = IntStream.range(0, ChannelLanes.NUMBER_OF_CHANNELS);
+        if (!MIDITools.verboseLogging && numberOfEvents >= ChannelLanes.PARALLEL_EVENT_THRESHOLD) {
+            channels = channels.parallel();
+        }
+
+        // Each channel only sets its own index, so this is safe to do in parallel
+        channels.forEach(channel -> results.set(channel, getChannelChanges(sequence, channel)));
+
         ArrayList<String> pitchBendRangeMessages = new ArrayList<>();
         ArrayList<String> channelsWithAdjustments = new ArrayList<>();
+        for (int channel = 0; channel < ChannelLanes.NUMBER_OF_CHANNELS; channel++) {
+            ChannelResult result = results.get(channel);
+            pitchBendRangeMessages.addAll(result.pitchBendRangeMessages);
 
-        boolean adjustedAnyBends = false;
-        for (Track track : sequence.getTracks()) {
-            // If the channel already has the desired pitch bend range, then go to the next track
-
-            double bendFactor = tryGetNewPitchBendRangeFactor(track, pitchBendRangeMessages);
-            if (bendFactor == 0) {
-                // In this case, we're already using the default, so no need to continue
+            // We're choosing not to display bend values that didn't actually change
+            if (!result.adjustedAnyBends || result.isAlreadyDesiredRange()) {
                 continue;
             }
 
-            // Default to this and then change it as the change events are found
-            int lastChannelAdjusted = -1;
-            boolean adjustedBendForThisTrack = false;
-
-            for (int i = 0; i < track.size(); i++) {
-                MidiEvent e = track.get(i);
-                MidiMessage msg = e.getMessage();
-                if (msg instanceof ShortMessage) {
-                    ShortMessage shortMsg = (ShortMessage)msg;
-
-                    int command = shortMsg.getCommand();
-                    int channel = shortMsg.getChannel();
-                    int anvilStudioChannel = channel + 1;
-
-                    if (command == ShortMessage.PITCH_BEND) {
-                        // We're choosing not to display bend values that didn't actually change
-                        if (adjustPitchBend(shortMsg, bendFactor) && !adjustedBendForThisTrack) {
-                            channelsWithAdjustments.add(anvilStudioChannel + "");
-                            lastChannelAdjusted = channel;
-                            adjustedBendForThisTrack = true;
-                            adjustedAnyBends = true;
-                        }
-                    }
-                }
+            for (int i = 0; i < result.bendsToSet.size(); i++) {
+                int newValue = result.newBendValues.get(i);
+                MIDIAdjuster.setShortMessage(result.bendsToSet.get(i), ShortMessage.PITCH_BEND, channel, newValue % 128, newValue / 128);
             }
+            channelsWithAdjustments.add((channel + 1) + "");
 
-            // If we have adjustments, but haven't fixed the range, we need to add the data event to set
-            // the value to 12 so that it will sound correct
-            if (adjustedBendForThisTrack && lastChannelAdjusted >= 0) {
-                cleanUpPitchBendRangeEvents(track);
-                createPitchBendRangeEvents(track, lastChannelAdjusted, pitchBendRangeMessages);
+            // The bends are all at the desired range now, so every range event is replaced with one that sets it
+            for (ChannelEventIterator.ChannelEvent rangeEvent : result.rangeEventsToRemove) {
+                rangeEvent.track.remove(rangeEvent.event);
             }
+            createPitchBendRangeEvents(result.firstBendTrack, channel, pitchBendRangeMessages);
         }
 
-        if (!adjustedAnyBends) {
+        if (channelsWithAdjustments.isEmpty()) {
             MIDIAdjuster.printMessages(pitchBendRangeMessages);
             System.out.println("Did not find any pitch bends to adjust.");
             return;
@@ -131,69 +148,137 @@ public class PitchBendAdjuster extends MIDIAdjuster {
     }
 
     /**
-     * Attempts to get the new pitch bend range factor, based on the first pitch bend range event we find
-     * - If we find no event, return the default
-     * - If it's the current desired range, then return 0
-     * @param track - The track to check
-     * @param pitchBendRangeMessages - A list of messages to display for pitch bends - adds to it if we're skipping
-     * @return A double indicating the new pitch bend range factor, or 0 if we're not adjusting
+     * Gets the changes needed for the pitch bends of a single channel, in a single pass
+     * - Keeps track of the registered param that the data entry events are setting, so that only the ones
+     *   for the pitch bend range change it - before the song selects any, they're taken as the pitch bend range,
+     *   like Anvil Studio does
+     * - Each bend is rescaled by the range in effect at its tick
+     * - Does not modify the tracks, so this can run for several channels at once
+     * @param sequence - The sequence
+     * @param channel - The channel
+     * @return The changes to make to the channel
      */
-    private double tryGetNewPitchBendRangeFactor(
-            Track track,
-            ArrayList<String> pitchBendRangeMessages) {
-        for (int i = 0; i < track.size(); i++) {
-            MidiEvent e = track.get(i);
-            MidiMessage msg = e.getMessage();
-
-            if (msg instanceof ShortMessage) {
-                ShortMessage shortMsg = (ShortMessage)msg;
-                int command = shortMsg.getCommand();
-                int data1 = shortMsg.getData1();
-                int data2 = shortMsg.getData2();
-
-                // Adjust the bend factor both for this program and in Anvil Studio
-                if (command == ShortMessage.CONTROL_CHANGE && data1 == PITCH_BEND_RANGE_DATA) {
-                    if (data2 == DESIRED_PITCH_BEND_RANGE) {
-                        return 0;
-                    } else {
-                        return getNewPitchBendRangeFactor(shortMsg, pitchBendRangeMessages);
-                    }
+    private ChannelResult getChannelChanges(Sequence sequence, int channel) {
+        ChannelResult result = new ChannelResult();
+        double bendFactor = (double)DESIRED_PITCH_BEND_RANGE / defaultPitchBendRange;
+        int rangeSemitones = (int)defaultPitchBendRange;
+        int rangeCents = (int)Math.round((defaultPitchBendRange - rangeSemitones) * 100);
+        double currentRange = -1; // Not set by the song yet
+
+        int paramMSB = -1;
+        int paramLSB = -1;
+        boolean isNonRegisteredParam = false;
+        ChannelEventIterator.ChannelEvent paramMSBEvent = null;
+        ChannelEventIterator.ChannelEvent paramLSBEvent = null;
+
+        // Param selections are only removed if the pitch bend range was the only thing they were used for
+        ArrayList<ChannelEventIterator.ChannelEvent> paramEventsUsedForRange = new ArrayList<>();
+        HashSet<MidiEvent> paramEventsToKeep = new HashSet<>();
+
+        ChannelEventIterator channelEvents = new ChannelEventIterator(sequence, channel);
+        while (channelEvents.hasNext()) {
+            ChannelEventIterator.ChannelEvent channelEvent = channelEvents.next();
+            ShortMessage shortMsg = channelEvent.getShortMessage();
+            int command = shortMsg.getCommand();
+            int data1 = shortMsg.getData1();
+            int data2 = shortMsg.getData2();
+
+            if (command == ShortMessage.PITCH_BEND) {
+                if (result.firstBendTrack == null) {
+                    result.firstBendTrack = channelEvent.track;
+                }
+                if (bendFactor != 1) {
+                    result.rescaledAnyBends = true;
+                }
+
+                int value = getPitchBendValue(data1, data2);
+                int newValue = getAdjustedPitchBend(value, bendFactor);
+                if (newValue != value) {
+                    result.bendsToSet.add(shortMsg);
+                    result.newBendValues.add(newValue);
+                    MIDIAdjuster.verboseLog("Adjusting pitch bend value " + value + " to be " + newValue, channel);
+                }
+                if (newValue != BASE_VALUE) {
+                    result.adjustedAnyBends = true;
                 }
+                continue;
             }
-        }
 
-        // If it gets here, no message was found, so adjust by the default factor
-        // The bend factor is equal to the desired range divided by what the range is now
-        // - So, if both are the same, the bend factor is 1, meaning no adjustments needed
-        return (double)DESIRED_PITCH_BEND_RANGE / defaultPitchBendRange;
-    }
+            if (command != ShortMessage.CONTROL_CHANGE) {
+                continue;
+            }
 
-    /**
-     * CLeans up all pitch bend range events, as songs often have dups of these
-     * @param track - The track to clean up
-     */
-    private static void cleanUpPitchBendRangeEvents(Track track) {
-        ArrayList<MidiEvent> eventsToRemove = new ArrayList<>();
-        for (int i = 0; i < track.size(); i++) {
-            MidiEvent e = track.get(i);
-            MidiMessage msg = e.getMessage();
-
-            if (msg instanceof ShortMessage) {
-                ShortMessage shortMsg = (ShortMessage)msg;
-                int command = shortMsg.getCommand();
-                int data1 = shortMsg.getData1();
-
-                // Adjust the bend factor both for this program and in Anvil Studio
-                if ((command == ShortMessage.CONTROL_CHANGE && data1 == PITCH_BEND_RANGE_DATA) ||
-                        (command == ShortMessage.CONTROL_CHANGE && data1 == REGISTERED_PARAM_MSB) ||
-                        (command == ShortMessage.CONTROL_CHANGE && data1 == REGISTERED_PARAM_LSB) ||
-                        (command == ShortMessage.CONTROL_CHANGE && data1 == DATA_SLIDER_LSB)) {
-                    eventsToRemove.add(e);
+            switch (data1) {
+                case REGISTERED_PARAM_MSB:
+                    paramMSB = data2;
+                    paramMSBEvent = channelEvent;
+                    isNonRegisteredParam = false;
+                    continue;
+                case REGISTERED_PARAM_LSB:
+                    paramLSB = data2;
+                    paramLSBEvent = channelEvent;
+                    isNonRegisteredParam = false;
+                    continue;
+                case NON_REGISTERED_PARAM_MSB:
+                case NON_REGISTERED_PARAM_LSB:
+                    isNonRegisteredParam = true;
+                    continue;
+                case PITCH_BEND_RANGE_DATA:
+                case DATA_SLIDER_LSB:
+                case DATA_INCREMENT:
+                case DATA_DECREMENT:
+                    break;
+                default:
+                    continue;
+            }
+
+            // Data entry for some other param - keep whatever selected it
+            boolean isPitchBendRangeParam = !isNonRegisteredParam && paramMSB <= 0 && paramLSB <= 0;
+            if (!isPitchBendRangeParam) {
+                if (paramMSBEvent != null) {
+                    paramEventsToKeep.add(paramMSBEvent.event);
+                }
+                if (paramLSBEvent != null) {
+                    paramEventsToKeep.add(paramLSBEvent.event);
                 }
+                continue;
+            }
+
+            if (data1 == PITCH_BEND_RANGE_DATA) {
+                rangeSemitones = data2;
+                rangeCents = 0;
+            } else if (data1 == DATA_SLIDER_LSB) {
+                rangeCents = data2;
+            } else {
+                rangeSemitones = MIDIAdjuster.clampValue(rangeSemitones + (data1 == DATA_INCREMENT ? 1 : -1), 0, MAX_DATA_VALUE);
+            }
+            if (data1 != DATA_SLIDER_LSB) {
+                result.numberOfRangeSettings++;
+            }
+
+            result.rangeEventsToRemove.add(channelEvent);
+            if (paramMSBEvent != null) {
+                paramEventsUsedForRange.add(paramMSBEvent);
+            }
+            if (paramLSBEvent != null) {
+                paramEventsUsedForRange.add(paramLSBEvent);
+            }
+
+            double newRange = rangeSemitones + (rangeCents / 100.0);
+            if (newRange != currentRange) {
+                currentRange = newRange;
+                bendFactor = getNewPitchBendRangeFactor(newRange, channel, channelEvent.event.getTick(), result.pitchBendRangeMessages);
+            }
+        }
+
+        HashSet<MidiEvent> paramEventsRemoved = new HashSet<>();
+        for (ChannelEventIterator.ChannelEvent paramEvent : paramEventsUsedForRange) {
+            if (!paramEventsToKeep.contains(paramEvent.event) && paramEventsRemoved.add(paramEvent.event)) {
+                result.rangeEventsToRemove.add(paramEvent);
             }
         }
 
-        MIDIAdjuster.deleteEventsFromTrack(track, eventsToRemove);
+        return result;
     }
 
     /**
@@ -206,10 +291,10 @@ public class PitchBendAdjuster extends MIDIAdjuster {
             Track track,
             int lastChannelAdjusted,
             ArrayList<String> pitchBendRangeMessages) {
-        ShortMessage pitchBendRangeMessage = new ShortMessage();
-        ShortMessage registeredParamMSB = new ShortMessage();
-        ShortMessage registeredParamLSB = new ShortMessage();
-        ShortMessage dataSliderLSBMessage = new ShortMessage();
+        ShortMessage pitchBendRangeMessage = new SharedShortMessage();
+        ShortMessage registeredParamMSB = new SharedShortMessage();
+        ShortMessage registeredParamLSB = new SharedShortMessage();
+        ShortMessage dataSliderLSBMessage = new SharedShortMessage();
 
         MIDIAdjuster.setShortMessage(pitchBendRangeMessage, ShortMessage.CONTROL_CHANGE, lastChannelAdjusted, PITCH_BEND_RANGE_DATA, DESIRED_PITCH_BEND_RANGE);
         MIDIAdjuster.setShortMessage(registeredParamMSB, ShortMessage.CONTROL_CHANGE, lastChannelAdjusted, REGISTERED_PARAM_MSB, DEFAULT_DATA_2);
@@ -226,56 +311,62 @@ public class PitchBendAdjuster extends MIDIAdjuster {
 
     /**
      * Gets what the new pitch bend range factor should be
-     * @param shortMsg - the message to base the range factor off of
+     * @param pitchBendRange - the range the song changes to
+     * @param channel - the channel the range is for
+     * @param tick - when the range changes
      * @param pitchBendRangeMessages - an array of messages to potentially add to
      * @return The bend factor to use
      */
-    private double getNewPitchBendRangeFactor(ShortMessage shortMsg, ArrayList<String> pitchBendRangeMessages) {
-        int channel = shortMsg.getChannel();
+    private double getNewPitchBendRangeFactor(double pitchBendRange, int channel, long tick, ArrayList<String> pitchBendRangeMessages) {
         int anvilStudioChannel = channel + 1;
-        int oldPitchBendRange = shortMsg.getData2();
 
         // Some MIDIs have a value greater than 12, which is invalid
         // Same story for those with a value less than 1
         // Anvil Studio treats it as a 2, so we will do the same
-        double bendFactor = (oldPitchBendRange > DESIRED_PITCH_BEND_RANGE) && (oldPitchBendRange > 0)
+        double bendFactor = (pitchBendRange > DESIRED_PITCH_BEND_RANGE) && (pitchBendRange > 0)
                 ? (double)DESIRED_PITCH_BEND_RANGE / defaultPitchBendRange
-                : (double)DESIRED_PITCH_BEND_RANGE / oldPitchBendRange;
+                : (double)DESIRED_PITCH_BEND_RANGE / pitchBendRange;
 
-        DecimalFormat df = new DecimalFormat();
-        df.setMaximumFractionDigits(2);
-        pitchBendRangeMessages.add("Channel " + anvilStudioChannel + ": Adjusted pitch bend range from " + oldPitchBendRange + " to " + DESIRED_PITCH_BEND_RANGE + " which is a factor of " + df.format(bendFactor));
+        String tickString = tick > 0 ? " at tick " + tick : "";
+        if (bendFactor != 1) {
+            pitchBendRangeMessages.add("Channel " + anvilStudioChannel + ": Adjusted pitch bend range from " + formatFactor(pitchBendRange) + " to " + DESIRED_PITCH_BEND_RANGE + tickString + " which is a factor of " + formatFactor(bendFactor));
+        } else if (tick > 0) {
+            pitchBendRangeMessages.add("Channel " + anvilStudioChannel + ": Pitch bend range is already " + DESIRED_PITCH_BEND_RANGE + tickString);
+        }
 
         return bendFactor;
     }
 
     /**
-     * Adjusts the pitch bend value on the message
-     * @param shortMsg - the message to adjust
+     * Formats the factor with at most 2 decimal places
+     * - DecimalFormat is only used for infinity (a range of 0), since the locale data it loads is slow to start up
+     * @param bendFactor - The factor
+     * @return The formatted factor, i.e. 6 or 1.71
+     */
+    private static String formatFactor(double bendFactor) {
+        if (Double.isInfinite(bendFactor) || Double.isNaN(bendFactor)) {
+            return new DecimalFormat().format(bendFactor);
+        }
+
+        return BigDecimal.valueOf(bendFactor)
+            .setScale(2, RoundingMode.HALF_EVEN)
+            .stripTrailingZeros()
+            .toPlainString();
+    }
+
+    /**
+     * Gets the pitch bend value adjusted to the desired range
+     * @param value - the value to adjust
      * @param bendFactor - the amount to adjust the bend by - this is the desired value divided by the current one
      *                   Normally 12 divided by whatever it's set in Anvil Studio at the moment
-     * @return A boolean indicating whether we actually adjusted the value
+     * @return The adjusted value
      */
-    private static boolean adjustPitchBend(ShortMessage shortMsg, double bendFactor) {
-        int channel = shortMsg.getChannel();
-        int value = getPitchBendValue(shortMsg.getData1(), shortMsg.getData2());
-
+    private static int getAdjustedPitchBend(int value, double bendFactor) {
         int valueToAdjust = value - BASE_VALUE; // Get the difference of 8192 off the value
         int adjustedValue = (int)(valueToAdjust / bendFactor); // Adjust that difference
 
         int newValue = adjustedValue + BASE_VALUE; // Add the adjusted value back to the base
-        int newData2 = newValue / 128;
-        int newData1 = newValue % 128;
-
-        MIDIAdjuster.setShortMessage(shortMsg, ShortMessage.PITCH_BEND, channel, newData1, newData2);
-
-        int realNewValue = getPitchBendValue(newData1, newData2);
-        if (realNewValue != BASE_VALUE) {
-            MIDIAdjuster.verboseLog("Adjusting pitch bend value " + value + " to be " + realNewValue, channel);
-            return true;
-        }
-
-        return false;
+        return MIDIAdjuster.clampValue(newValue, 0, MAX_VALUE); // Ranges over 12 can push it out of bounds
     }
 
     /**
@@ -287,4 +378,34 @@ public class PitchBendAdjuster extends MIDIAdjuster {
     public static int getPitchBendValue(int data1, int data2) {
         return data1 + (data2 * 128);
     }
+
+    /**
+     * The changes to make to the pitch bends of a single channel
+     */
+    private static class ChannelResult {
+        private final ArrayList<ShortMessage> bendsToSet = new ArrayList<>();
+        private final ArrayList<Integer> newBendValues = new ArrayList<>();
+
+        /**
+         * Every event that set the pitch bend range, along with the param selections used only for them
+         */
+        private final ArrayList<ChannelEventIterator.ChannelEvent> rangeEventsToRemove = new ArrayList<>();
+        private final ArrayList<String> pitchBendRangeMessages = new ArrayList<>();
+
+        /**
+         * Where the new range events go
+         */
+        private Track firstBendTrack = null;
+
+        private boolean adjustedAnyBends = false;
+        private boolean rescaledAnyBends = false;
+        private int numberOfRangeSettings = 0;
+
+        /**
+         * Whether the channel already sets the desired range once, and every bend was made for it
+         */
+        private boolean isAlreadyDesiredRange() {
+            return !rescaledAnyBends && numberOfRangeSettings == 1;
+        }
+    }
 }
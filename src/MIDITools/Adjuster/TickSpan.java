@@ -0,0 +1,122 @@
+package MIDITools.Adjuster;
+
+import MIDITools.TempoMap;
+
+import javax.sound.midi.Sequence;
+
+/**
+ * A length of time given either in ticks or in milliseconds (i.e. "240" or "120ms")
+ * - Ticks are a different length of time in every song, and even within a song with tempo changes,
+ *   so milliseconds mean the same thing everywhere
+ * - Spans in milliseconds have to be bound to a sequence's tempo map (see forSequence) before they're used
+ */
+public class TickSpan {
+    private static final String MILLISECONDS_SUFFIX = "ms";
+
+    /**
+     * The length - only one of these is used, depending on whether it was given in milliseconds
+     */
+    private final long ticks;
+    private final long microseconds;
+    private final boolean isInMilliseconds;
+
+    /**
+     * The tempo map to convert milliseconds with - null for spans in ticks, or until bound to a sequence
+     */
+    private final TempoMap tempoMap;
+
+    private TickSpan(long ticks, long microseconds, boolean isInMilliseconds, TempoMap tempoMap) {
+        this.ticks = ticks;
+        this.microseconds = microseconds;
+        this.isInMilliseconds = isInMilliseconds;
+        this.tempoMap = tempoMap;
+    }
+
+    /**
+     * Parses a span from an arg
+     * @param arg - A number of ticks, or a number of milliseconds ending in "ms"
+     * @return The span
+     * @throws NumberFormatException - if it isn't either
+     */
+    public static TickSpan parse(String arg) {
+        if (arg.endsWith(MILLISECONDS_SUFFIX)) {
+            double milliseconds = Double.parseDouble(arg.substring(0, arg.length() - MILLISECONDS_SUFFIX.length()));
+            return new TickSpan(0, Math.round(milliseconds * 1000), true, null);
+        }
+        return ofTicks(Long.parseLong(arg));
+    }
+
+    /**
+     * @param ticks - The number of ticks
+     * @return A span of the given number of ticks
+     */
+    public static TickSpan ofTicks(long ticks) {
+        return new TickSpan(ticks, 0, false, null);
+    }
+
+    /**
+     * Whether the arg is a span in milliseconds, rather than a plain number
+     */
+    public static boolean isMillisecondsArg(String arg) {
+        return arg.endsWith(MILLISECONDS_SUFFIX);
+    }
+
+    public boolean isInMilliseconds() {
+        return isInMilliseconds;
+    }
+
+    /**
+     * Whether the span is longer than nothing
+     */
+    public boolean isPositive() {
+        return isInMilliseconds ? microseconds > 0 : ticks > 0;
+    }
+
+    /**
+     * Binds the span to the tempo of the given sequence - builds the tempo map only if it's in milliseconds
+     * @param sequence - The sequence the span will be used on
+     * @return The span to use on the sequence
+     */
+    public TickSpan forSequence(Sequence sequence) {
+        return isInMilliseconds
+            ? new TickSpan(0, microseconds, true, new TempoMap(sequence))
+            : this;
+    }
+
+    /**
+     * Whether at least this span has passed between the two ticks
+     * - Spans in milliseconds are two binary searches of the tempo map, so this is fine to call for every event
+     * @param fromTick - The earlier tick
+     * @param toTick - The later tick
+     */
+    public boolean hasPassed(long fromTick, long toTick) {
+        return isInMilliseconds
+            ? tempoMap.getMicroseconds(toTick) - tempoMap.getMicroseconds(fromTick) >= microseconds
+            : fromTick + ticks <= toTick;
+    }
+
+    /**
+     * Gets the nearest point to the tick on a grid of this span, starting from the start of the song
+     * - Halfway between two goes to the later one
+     * @param tick - The tick
+     * @return The tick of the grid point
+     */
+    public long getNearestGridTick(long tick) {
+        if (!isInMilliseconds) {
+            return (tick + ticks / 2) / ticks * ticks;
+        }
+
+        long gridPoint = (tempoMap.getMicroseconds(tick) + microseconds / 2) / microseconds;
+        return tempoMap.getTick(gridPoint * microseconds);
+    }
+
+    @Override
+    public String toString() {
+        if (!isInMilliseconds) {
+            return ticks + " ticks";
+        }
+        return microseconds % 1000 == 0
+            ? (microseconds / 1000) + MILLISECONDS_SUFFIX
+            : (microseconds / 1000.0) + MILLISECONDS_SUFFIX;
+    }
+}
@@ -0,0 +1,124 @@
+package MIDITools.Adjuster;
+
+import MIDITools.MIDITools;
+
+import javax.sound.midi.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Splits a long list of events (a track or a channel lane) into windows of ticks that are processed at the same time
+ * - Windows hold about WINDOW_SIZE events each, and never split events on the same tick
+ * - Adjusters that keep state across events pass a split condition, so that windows only break where the
+ *   state starts over (i.e. between clean up groups), or combine the window results with a fix-up step afterward
+ * - The results always come back in window order, so combining them in order gives the same result as a serial run
+ *
+ * Like ChannelLanes, the window function must not modify the track - return what to change and do it afterward instead.
+ */
+public class TickWindows {
+    /**
+     * Lists shorter than this aren't worth splitting
+     */
+    static final int WINDOW_SIZE = 16384;
+
+    private final List<MidiEvent> events;
+    private final ArrayList<Integer> windowStarts = new ArrayList<>();
+
+    /**
+     * Splits the events into windows, only ever splitting between different ticks
+     * @param events - The events, in tick order
+     */
+    public TickWindows(List<MidiEvent> events) {
+        this(events, (previous, next) -> previous.getTick() != next.getTick());
+    }
+
+    /**
+     * Splits the events into windows, only where the given condition allows it
+     * - Each split point is moved forward until the condition holds, so a list that can never be split is one window
+     * @param events - The events, in tick order
+     * @param splitCondition - Whether a window can end between two events
+     */
+    public TickWindows(List<MidiEvent> events, SplitCondition splitCondition) {
+        this.events = events;
+
+        windowStarts.add(0);
+        int nextStart = WINDOW_SIZE;
+        while (nextStart < events.size()) {
+            if (splitCondition.canSplitBetween(events.get(nextStart - 1), events.get(nextStart))) {
+                windowStarts.add(nextStart);
+                nextStart += WINDOW_SIZE;
+            } else {
+                nextStart++;
+            }
+        }
+    }
+
+    /**
+     * Gets a copy of the events of the track, so that it can be split into windows
+     * @param track - The track
+     * @return The events, in track order
+     */
+    public static ArrayList<MidiEvent> getEvents(Track track) {
+        ArrayList<MidiEvent> events = new ArrayList<>(track.size());
+        for (int i = 0; i < track.size(); i++) {
+            events.add(track.get(i));
+        }
+        return events;
+    }
+
+    public int getNumberOfWindows() {
+        return windowStarts.size();
+    }
+
+    /**
+     * Runs the given function on every window, at the same time
+     * - Windows are run one at a time when verbose logging, so that the log stays in order
+     * @param windowFunction - The function to run for each window
+     * @return The result of each window, in window order
+     */
+    public <T> ArrayList<T> processWindows(WindowFunction<T> windowFunction) {
+        int numberOfWindows = windowStarts.size();
+        ArrayList<T> results = new ArrayList<>();
+        for (int i = 0; i < numberOfWindows; i++) {
+            results.add(null);
+        }
+
+        IntStream windows = IntStream.range(0, numberOfWindows);
+        if (!MIDITools.verboseLogging && numberOfWindows > 1) {
+            windows = windows.parallel();
+        }
+
+        // Each window only sets its own index, so this is safe to do in parallel
+        windows.forEach(i -> {
+            int start = windowStarts.get(i);
+            int end = i + 1 < numberOfWindows ? windowStarts.get(i + 1) : events.size();
+            results.set(i, windowFunction.apply(start, events.subList(start, end)));
+        });
+        return results;
+    }
+
+    /**
+     * Decides where windows can be split
+     */
+    public interface SplitCondition {
+        /**
+         * @param previous - The last event of the window that would end
+         * @param next - The first event of the window that would start
+         * @return True if a window can end between the two events
+         */
+        boolean canSplitBetween(MidiEvent previous, MidiEvent next);
+    }
+
+    /**
+     * A function to run on a single window
+     */
+    public interface WindowFunction<T> {
+        /**
+         * @param windowStart - The index of the window's first event in the whole list
+         * @param window - The events of the window, in order
+         * @return The result for this window
+         */
+        T apply(int windowStart, List<MidiEvent> window);
+    }
+}
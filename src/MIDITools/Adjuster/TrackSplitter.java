@@ -0,0 +1,133 @@
+package MIDITools.Adjuster;
+
+import javax.sound.midi.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+
+public class TrackSplitter extends MIDIAdjuster {
+    private static final String SPLIT_ARG = "split";
+    private static final String MERGE_ARG = "merge";
+    private static final int END_OF_TRACK_TYPE = 0x2F;
+
+    /**
+     * {@inheritDoc}
+     * Expected usage: -t [split|merge = split]
+     */
+    @Override
+    public int execute(String[] args, int currentIndex, Sequence sequence) {
+        ArrayList<String> transformationArgs = getAllArgs(args, currentIndex);
+        if (transformationArgs.size() > 1) {
+            System.out.println("ERROR: Incorrect number of args passed to -t (expected 0-1)");
+            return -1;
+        }
+
+        String mode = transformationArgs.isEmpty()
+            ? SPLIT_ARG
+            : transformationArgs.get(0);
+        if (mode.equals(SPLIT_ARG)) {
+            splitTracksByChannel(sequence);
+        } else if (mode.equals(MERGE_ARG)) {
+            mergeTracks(sequence);
+        } else {
+            System.out.println("ERROR: Invalid arg passed to -t: " + mode + " (expected split or merge)");
+            return -1;
+        }
+
+        return currentIndex + transformationArgs.size() + 1;
+    }
+
+    /**
+     * Splits the sequence into one track per channel
+     * - Meta and sysex events (tempo, markers, etc.) all go into the first track, the conductor track
+     * - Each channel gets its own track after that, in channel order - channels without events get none
+     * - Events keep their order: by tick, then by the order of the tracks they came from
+     * @param sequence - The sequence to split
+     */
+    private static void splitTracksByChannel(Sequence sequence) {
+        Track[] oldTracks = sequence.getTracks();
+
+        // Index 0 is the conductor track, and the rest are the channels
+        ArrayList<ArrayList<MidiEvent>> newTrackEvents = new ArrayList<>();
+        for (int i = 0; i <= ChannelLanes.NUMBER_OF_CHANNELS; i++) {
+            newTrackEvents.add(new ArrayList<>());
+        }
+
+        for (Track track : oldTracks) {
+            for (int i = 0; i < track.size(); i++) {
+                MidiEvent e = track.get(i);
+                if (!isEndOfTrack(e)) {
+                    newTrackEvents.get(ChannelLanes.getChannel(e.getMessage()) + 1).add(e);
+                }
+            }
+        }
+
+        replaceTracks(sequence, newTrackEvents);
+
+        int numberOfChannelTracks = sequence.getTracks().length - 1;
+        System.out.println("Split " + oldTracks.length + " track(s) into a conductor track and " + numberOfChannelTracks + " channel track(s).");
+    }
+
+    /**
+     * Merges every track of the sequence into one
+     * - Events keep their order: by tick, then by the order of the tracks they came from
+     * @param sequence - The sequence to merge
+     */
+    private static void mergeTracks(Sequence sequence) {
+        Track[] oldTracks = sequence.getTracks();
+
+        ArrayList<MidiEvent> events = new ArrayList<>();
+        for (Track track : oldTracks) {
+            for (int i = 0; i < track.size(); i++) {
+                MidiEvent e = track.get(i);
+                if (!isEndOfTrack(e)) {
+                    events.add(e);
+                }
+            }
+        }
+
+        ArrayList<ArrayList<MidiEvent>> newTrackEvents = new ArrayList<>();
+        newTrackEvents.add(events);
+        replaceTracks(sequence, newTrackEvents);
+
+        System.out.println("Merged " + oldTracks.length + " track(s) into 1.");
+    }
+
+    /**
+     * Replaces every track in the sequence with new ones
+     * - Each track's events are sorted by tick first, keeping the given order for events on the same tick,
+     *   so that adding them only ever appends
+     * - The first list always becomes a track, even if it's empty; the other empty lists are skipped
+     * @param sequence - The sequence
+     * @param newTrackEvents - The events of each new track, in the order they came from the old tracks
+     */
+    private static void replaceTracks(Sequence sequence, ArrayList<ArrayList<MidiEvent>> newTrackEvents) {
+        long endTick = sequence.getTickLength();
+        for (Track track : sequence.getTracks()) {
+            sequence.deleteTrack(track);
+        }
+
+        for (int i = 0; i < newTrackEvents.size(); i++) {
+            ArrayList<MidiEvent> events = newTrackEvents.get(i);
+            if (i > 0 && events.isEmpty()) {
+                continue;
+            }
+
+            events.sort(Comparator.comparingLong(MidiEvent::getTick));
+            Track track = sequence.createTrack();
+            for (MidiEvent e : events) {
+                track.add(e);
+            }
+
+            // Every track still ends where the song did, rather than at its own last event
+            track.get(track.size() - 1).setTick(Math.max(endTick, track.ticks()));
+        }
+    }
+
+    /**
+     * Whether the event is an end of track - tracks make their own, so these aren't copied over
+     */
+    private static boolean isEndOfTrack(MidiEvent e) {
+        MidiMessage msg = e.getMessage();
+        return msg instanceof MetaMessage && ((MetaMessage) msg).getType() == END_OF_TRACK_TYPE;
+    }
+}
@@ -0,0 +1,414 @@
+package MIDITools;
+
+import MIDITools.Adjuster.ChannelEventIterator;
+import MIDITools.Adjuster.ChannelLanes;
+import MIDITools.IO.MIDIFileLoader;
+
+import javax.sound.midi.*;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Checks whether transformed midis still sound like the originals, without an audio device
+ * - Each channel of both versions is rendered offline with the JDK's software synthesizer, and the
+ *   spectra of the two renders are compared frame by frame
+ * - The difference is 0 when the channel sounds the same and 1 when nothing lines up at all
+ * - Every channel of a song is a separate task, so renders run on all cores at once
+ * - Only a few songs are in flight at a time, within the heap budget - each song's results are shown and
+ *   dropped before the next one is started, so memory stays flat no matter how many songs there are
+ *
+ * The synthesizer's offline rendering (AudioSynthesizer.openStream) isn't exported by the JDK, so this
+ * needs java.desktop/com.sun.media.sound exported - the jar's manifest does this when run with java -jar.
+ */
+public class AudioVerifier {
+    public static final double DEFAULT_THRESHOLD = 0.2;
+
+    private static final int NUMBER_OF_WORKERS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * How many songs can be loaded and rendering at once - enough to keep the workers busy between songs
+     */
+    private static final int MAX_SONGS_IN_FLIGHT = NUMBER_OF_WORKERS;
+
+    private static final float SAMPLE_RATE = 22050;
+    private static final int FRAME_SIZE = 2048;
+    private static final int BYTES_PER_SAMPLE = 2;
+
+    /**
+     * The spectrum is summed into bands spaced evenly in pitch between these frequencies, so that
+     * a pitch change moves energy between bands the way it's heard
+     */
+    private static final int NUMBER_OF_BANDS = 60;
+
+    /**
+     * The memory each frame of a render takes - its band energies, plus the array's header
+     */
+    private static final long BYTES_PER_SPECTRUM = NUMBER_OF_BANDS * Double.BYTES + 16;
+    private static final double LOWEST_BAND_FREQUENCY = 40;
+    private static final double HIGHEST_BAND_FREQUENCY = SAMPLE_RATE / 2;
+
+    /**
+     * How long to keep rendering after the last event, for notes to ring out
+     */
+    private static final long TAIL_MICROSECONDS = 1500000;
+
+    private final double threshold;
+    private final long heapBudgetBytes;
+    private final int[] bandOfBin = getBandOfBin();
+
+    /**
+     * @param threshold - The difference a channel has to go over to be flagged
+     * @param heapBudgetBytes - How much memory the songs in flight can take up at once (0 to use most of the max heap)
+     */
+    public AudioVerifier(double threshold, long heapBudgetBytes) {
+        this.threshold = threshold;
+        this.heapBudgetBytes = BatchRunner.getHeapBudgetBytes(heapBudgetBytes);
+    }
+
+    /**
+     * Renders and compares every pair of files, showing the difference of each channel
+     * @param originalFiles - The original midis
+     * @param transformedFiles - The transformed midis, in the same order
+     * @return The number of songs with a channel over the threshold, or -1 if rendering isn't available
+     */
+    public int verify(ArrayList<File> originalFiles, ArrayList<File> transformedFiles) {
+        if (!isRenderingAvailable()) {
+            System.out.println("ERROR: Verifying needs the JDK's software synthesizer. Run the jar with java -jar, " +
+                "or pass --add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED to java.");
+            return -1;
+        }
+
+        long startTime = System.nanoTime();
+        ExecutorService workers = Executors.newFixedThreadPool(NUMBER_OF_WORKERS);
+        ArrayDeque<SongComparison> songsInFlight = new ArrayDeque<>();
+        long bytesInFlight = 0;
+        int songsFlagged = 0;
+        long renderedMicroseconds = 0;
+        for (int i = 0; i <= originalFiles.size(); i++) {
+            boolean isDone = i == originalFiles.size();
+            long footprint = isDone
+                ? 0
+                : BatchRunner.estimateFootprint(originalFiles.get(i)) + BatchRunner.estimateFootprint(transformedFiles.get(i));
+
+            // Finish the oldest songs until this one fits - a song bigger than the whole budget just runs on its own
+            while (!songsInFlight.isEmpty() && (isDone ||
+                    songsInFlight.size() >= MAX_SONGS_IN_FLIGHT ||
+                    bytesInFlight + footprint > heapBudgetBytes)) {
+                SongComparison comparison = songsInFlight.poll();
+                renderedMicroseconds += comparison.showResults();
+                bytesInFlight -= comparison.footprint;
+                if (comparison.isFlagged) {
+                    songsFlagged++;
+                }
+            }
+
+            if (!isDone) {
+                SongComparison comparison = new SongComparison(originalFiles.get(i), transformedFiles.get(i), footprint, workers);
+                songsInFlight.add(comparison);
+                bytesInFlight += comparison.footprint;
+            }
+        }
+        workers.shutdown();
+
+        double elapsedSeconds = (System.nanoTime() - startTime) / 1e9;
+        double renderedSeconds = renderedMicroseconds / 1e6;
+        System.out.println(songsFlagged + " of " + originalFiles.size() + " songs went over the threshold of " + threshold + ".");
+        System.out.println(String.format("Rendered %.1fs of audio in %.1fs (%.1fx real time).",
+            renderedSeconds, elapsedSeconds, renderedSeconds / Math.max(elapsedSeconds, 0.001)));
+        return songsFlagged;
+    }
+
+    /**
+     * The comparison of one song, with a task per channel
+     */
+    private class SongComparison {
+        private final File originalFile;
+        private final ArrayList<Integer> channels = new ArrayList<>();
+        private final ArrayList<Future<double[][][]>> renders = new ArrayList<>();
+        private String error = null;
+        private boolean isFlagged = false;
+        private long renderedMicroseconds = 0;
+
+        /**
+         * Roughly how much memory the song takes until its results are shown - both sequences and every spectrum
+         */
+        private long footprint;
+
+        /**
+         * @param originalFile - The original midi
+         * @param transformedFile - The transformed midi
+         * @param sequencesFootprint - The estimated footprint of both sequences (see BatchRunner.estimateFootprint)
+         * @param workers - The workers to render the channels on
+         */
+        private SongComparison(File originalFile, File transformedFile, long sequencesFootprint, ExecutorService workers) {
+            this.originalFile = originalFile;
+            this.footprint = sequencesFootprint;
+
+            Sequence original;
+            Sequence transformed;
+            try {
+                original = MIDIFileLoader.load(originalFile);
+                transformed = MIDIFileLoader.load(transformedFile);
+            } catch (IOException | InvalidMidiDataException e) {
+                error = e.getMessage();
+                return;
+            }
+
+            TempoMap originalTempoMap = new TempoMap(original);
+            TempoMap transformedTempoMap = new TempoMap(transformed);
+            long length = Math.max(
+                originalTempoMap.getMicroseconds(original.getTickLength()),
+                transformedTempoMap.getMicroseconds(transformed.getTickLength())) + TAIL_MICROSECONDS;
+
+            for (int channel = 0; channel < ChannelLanes.NUMBER_OF_CHANNELS; channel++) {
+                if (!hasNotes(original, channel) && !hasNotes(transformed, channel)) {
+                    continue;
+                }
+
+                int renderChannel = channel;
+                channels.add(channel);
+                renders.add(workers.submit(() -> new double[][][] {
+                    render(original, originalTempoMap, renderChannel, length),
+                    render(transformed, transformedTempoMap, renderChannel, length)
+                }));
+                renderedMicroseconds += 2 * length;
+            }
+
+            long numberOfFrames = (long)Math.ceil(length / 1e6 * SAMPLE_RATE / FRAME_SIZE);
+            footprint += channels.size() * 2 * numberOfFrames * BYTES_PER_SPECTRUM;
+        }
+
+        /**
+         * Waits for the channels to finish rendering, then shows their differences
+         * - The renders are dropped afterward, since the song's results are all that's needed from then on
+         * @return How much audio was rendered, in microseconds
+         */
+        private long showResults() {
+            System.out.println("== " + originalFile.getName() + " ==");
+            if (error != null) {
+                System.out.println("ERROR: Could not read " + originalFile.getName() + ": " + error);
+                System.out.println();
+                return 0;
+            }
+
+            for (int i = 0; i < channels.size(); i++) {
+                String channelName = "Channel " + (channels.get(i) + 1) + ": ";
+                try {
+                    double[][][] spectra = renders.get(i).get();
+                    double difference = getDifference(spectra[0], spectra[1]);
+                    boolean isOverThreshold = difference > threshold;
+                    isFlagged |= isOverThreshold;
+                    System.out.println(channelName + String.format("%.3f", difference) + (isOverThreshold ? " <- over the threshold" : ""));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    System.out.println(channelName + "ERROR: Could not render: " + e.getCause());
+                }
+            }
+            renders.clear();
+            System.out.println();
+            return renderedMicroseconds;
+        }
+    }
+
+    /**
+     * Renders a single channel of the sequence and gets its spectrum over time
+     * @param sequence - The sequence
+     * @param tempoMap - The tempo map of the sequence
+     * @param channel - The 0-indexed channel to render
+     * @param length - How long to render, in microseconds
+     * @return The band energies of each frame - [frame][band]
+     */
+    private double[][] render(Sequence sequence, TempoMap tempoMap, int channel, long length) throws Exception {
+        Synthesizer synthesizer = (Synthesizer) Class.forName("com.sun.media.sound.SoftSynthesizer").getConstructor().newInstance();
+        AudioFormat format = new AudioFormat(SAMPLE_RATE, 8 * BYTES_PER_SAMPLE, 1, true, false);
+
+        // Effects just slow the render down and blur the comparison
+        Map<String, Object> info = new HashMap<>();
+        info.put("interpolation", "linear");
+        info.put("reverb", false);
+        info.put("chorus", false);
+
+        AudioInputStream stream = (AudioInputStream) getOpenStreamMethod().invoke(synthesizer, format, info);
+        try {
+            // Everything is queued up front by its time - the synthesizer plays it as the stream is read
+            Receiver receiver = synthesizer.getReceiver();
+            ChannelEventIterator events = new ChannelEventIterator(sequence, channel);
+            while (events.hasNext()) {
+                MidiEvent event = events.next().event;
+                receiver.send(event.getMessage(), tempoMap.getMicroseconds(event.getTick()));
+            }
+
+            int numberOfFrames = (int)Math.ceil(length / 1e6 * SAMPLE_RATE / FRAME_SIZE);
+            double[][] spectra = new double[numberOfFrames][];
+            byte[] buffer = new byte[FRAME_SIZE * BYTES_PER_SAMPLE];
+            for (int frame = 0; frame < numberOfFrames; frame++) {
+                int bytesRead = 0;
+                while (bytesRead < buffer.length) {
+                    int read = stream.read(buffer, bytesRead, buffer.length - bytesRead);
+                    if (read < 0) {
+                        break;
+                    }
+                    bytesRead += read;
+                }
+                spectra[frame] = getBandEnergies(buffer);
+            }
+            return spectra;
+        } finally {
+            stream.close();
+            synthesizer.close();
+        }
+    }
+
+    /**
+     * Gets the energy of each band in a frame of 16 bit samples
+     * @param buffer - The frame, as little endian 16 bit samples
+     * @return The energy of each band
+     */
+    private double[] getBandEnergies(byte[] buffer) {
+        double[] real = new double[FRAME_SIZE];
+        double[] imaginary = new double[FRAME_SIZE];
+        for (int i = 0; i < FRAME_SIZE; i++) {
+            int sample = (short)((buffer[2 * i] & 0xFF) | (buffer[2 * i + 1] << 8));
+
+            // Hann window, so the edges of the frame don't smear across the spectrum
+            double window = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / (FRAME_SIZE - 1));
+            real[i] = sample / 32768.0 * window;
+        }
+        fft(real, imaginary);
+
+        double[] bands = new double[NUMBER_OF_BANDS];
+        for (int bin = 1; bin < FRAME_SIZE / 2; bin++) {
+            int band = bandOfBin[bin];
+            if (band >= 0) {
+                bands[band] += real[bin] * real[bin] + imaginary[bin] * imaginary[bin];
+            }
+        }
+        return bands;
+    }
+
+    /**
+     * Gets how different two renders are
+     * - The sum of the differences of each band's magnitude, over the sum of both magnitudes
+     * @return 0 if they're identical, up to 1 if they have nothing in common
+     */
+    private static double getDifference(double[][] originalSpectra, double[][] transformedSpectra) {
+        double difference = 0;
+        double total = 0;
+        for (int frame = 0; frame < originalSpectra.length; frame++) {
+            for (int band = 0; band < NUMBER_OF_BANDS; band++) {
+                double originalMagnitude = Math.sqrt(originalSpectra[frame][band]);
+                double transformedMagnitude = Math.sqrt(transformedSpectra[frame][band]);
+                difference += Math.abs(originalMagnitude - transformedMagnitude);
+                total += originalMagnitude + transformedMagnitude;
+            }
+        }
+        return total == 0 ? 0 : difference / total;
+    }
+
+    /**
+     * Maps each frequency bin of the FFT to its band (-1 for bins outside every band)
+     */
+    private static int[] getBandOfBin() {
+        int[] bandOfBin = new int[FRAME_SIZE / 2];
+        double bandsPerOctave = NUMBER_OF_BANDS / (Math.log(HIGHEST_BAND_FREQUENCY / LOWEST_BAND_FREQUENCY) / Math.log(2));
+        for (int bin = 0; bin < bandOfBin.length; bin++) {
+            double frequency = bin * SAMPLE_RATE / FRAME_SIZE;
+            bandOfBin[bin] = frequency < LOWEST_BAND_FREQUENCY
+                ? -1
+                : Math.min(NUMBER_OF_BANDS - 1, (int)(Math.log(frequency / LOWEST_BAND_FREQUENCY) / Math.log(2) * bandsPerOctave));
+        }
+        return bandOfBin;
+    }
+
+    /**
+     * An in place radix-2 fast fourier transform - the length must be a power of 2
+     */
+    private static void fft(double[] real, double[] imaginary) {
+        int n = real.length;
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                double temp = real[i];
+                real[i] = real[j];
+                real[j] = temp;
+                temp = imaginary[i];
+                imaginary[i] = imaginary[j];
+                imaginary[j] = temp;
+            }
+        }
+
+        for (int length = 2; length <= n; length <<= 1) {
+            double angle = -2 * Math.PI / length;
+            double stepReal = Math.cos(angle);
+            double stepImaginary = Math.sin(angle);
+            for (int start = 0; start < n; start += length) {
+                double wReal = 1;
+                double wImaginary = 0;
+                for (int k = 0; k < length / 2; k++) {
+                    int even = start + k;
+                    int odd = even + length / 2;
+                    double oddReal = real[odd] * wReal - imaginary[odd] * wImaginary;
+                    double oddImaginary = real[odd] * wImaginary + imaginary[odd] * wReal;
+                    real[odd] = real[even] - oddReal;
+                    imaginary[odd] = imaginary[even] - oddImaginary;
+                    real[even] += oddReal;
+                    imaginary[even] += oddImaginary;
+
+                    double nextWReal = wReal * stepReal - wImaginary * stepImaginary;
+                    wImaginary = wReal * stepImaginary + wImaginary * stepReal;
+                    wReal = nextWReal;
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether the channel has any notes in the sequence
+     */
+    private static boolean hasNotes(Sequence sequence, int channel) {
+        ChannelEventIterator events = new ChannelEventIterator(sequence, channel);
+        while (events.hasNext()) {
+            if (events.next().getShortMessage().getCommand() == ShortMessage.NOTE_ON) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the synthesizer's offline rendering can be used
+     */
+    private static boolean isRenderingAvailable() {
+        try {
+            Synthesizer synthesizer = (Synthesizer) Class.forName("com.sun.media.sound.SoftSynthesizer").getConstructor().newInstance();
+            getOpenStreamMethod();
+            return synthesizer != null;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Gets AudioSynthesizer.openStream, which renders the synthesizer into a stream instead of a device
+     */
+    private static Method getOpenStreamMethod() throws ReflectiveOperationException {
+        return Class.forName("com.sun.media.sound.AudioSynthesizer").getMethod("openStream", AudioFormat.class, Map.class);
+    }
+}
@@ -0,0 +1,455 @@
+package MIDITools;
+
+import MIDITools.IO.MIDIChunkTable;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the transformations on every midi in a directory, as three stages that overlap:
+ * - A reader thread that loads and parses the files
+ * - A pool of workers that run the transformations
+ * - A writer thread that writes out the results
+ *
+ * The stages are connected by bounded queues, so a slow stage makes the ones before it wait
+ * rather than piling up loaded sequences - memory stays flat no matter how many files there are.
+ *
+ * Everything the adjusters print for a file is held back and printed by the writer, all together,
+ * so the output of files being transformed at the same time doesn't get mixed up.
+ *
+ * Files are also admitted against a heap budget: before loading a file, the reader estimates how much
+ * memory its sequence will take (see estimateFootprint) and waits until that much of the budget is free.
+ * The budget is given back once the file is written. The biggest files are loaded first, so the small
+ * ones can fill in the gaps around them at the end.
+ */
+public class BatchRunner {
+    private static final int NUMBER_OF_WORKERS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * How many files can wait between two stages
+     */
+    private static final int QUEUE_CAPACITY = NUMBER_OF_WORKERS;
+
+    /**
+     * Put in a queue to tell the next stage there's nothing left
+     */
+    private static final BatchItem END_OF_BATCH = new BatchItem(null, 0);
+
+    /**
+     * Roughly how much memory a loaded event takes: the MidiEvent, its message and data array, and
+     * its entries in the Track's list and set
+     * - Events take 3 bytes each on average in the file, with running status
+     */
+    private static final long BYTES_PER_EVENT = 160;
+    private static final long FILE_BYTES_PER_EVENT = 3;
+
+    /**
+     * The fixed cost of each track and sequence, on top of their events
+     */
+    private static final long BYTES_PER_TRACK = 1024;
+
+    /**
+     * The budget is counted in kilobytes, so that it fits in the semaphore's permits
+     */
+    private static final int BYTES_PER_PERMIT = 1024;
+
+    /**
+     * How much of the max heap to use if no budget is given
+     */
+    private static final double DEFAULT_HEAP_BUDGET_FRACTION = 0.6;
+
+    private final String[] args;
+    private final int startingIndex;
+    private final boolean useCache;
+
+    private final BlockingQueue<BatchItem> loadedMidis = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BlockingQueue<BatchItem> transformedMidis = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    private final Semaphore heapBudget;
+    private final int heapBudgetPermits;
+
+    private final AtomicInteger filesWritten = new AtomicInteger();
+    private final AtomicInteger filesFailed = new AtomicInteger();
+    private final AtomicInteger filesDone = new AtomicInteger();
+    private final AtomicLong committedBytes = new AtomicLong();
+
+    /**
+     * The midis that were written, in the order they were written - only touched by the writer stage
+     */
+    private final ArrayList<File> writtenFiles = new ArrayList<>();
+
+    /**
+     * @param args - The args passed in via command line
+     * @param startingIndex - The index of the first transformation
+     * @param useCache - Whether to cache each step (see PipelineCache)
+     * @param heapBudgetBytes - How much memory the loaded sequences can take up at once (0 to use most of the max heap)
+     */
+    public BatchRunner(String[] args, int startingIndex, boolean useCache, long heapBudgetBytes) {
+        this.args = args;
+        this.startingIndex = startingIndex;
+        this.useCache = useCache;
+
+        heapBudgetBytes = getHeapBudgetBytes(heapBudgetBytes);
+        heapBudgetPermits = (int)Math.max(1, Math.min(Integer.MAX_VALUE, heapBudgetBytes / BYTES_PER_PERMIT));
+        heapBudget = new Semaphore(heapBudgetPermits, true);
+    }
+
+    /**
+     * Runs the transformations on every midi in the directory
+     * @param directory - The directory with the midis
+     */
+    public void run(File directory) {
+        File[] midiFiles = getMidiFiles(directory);
+        if (midiFiles.length == 0) {
+            System.out.println("No midi files found in " + directory + ".");
+            return;
+        }
+
+        PrintStream originalOut = System.out;
+        System.setOut(new PrintStream(new PerThreadOutputStream(originalOut), true));
+        try {
+            Thread reader = new Thread(() -> readMidis(midiFiles), "MIDITools-reader");
+            Thread writer = new Thread(() -> writeMidis(midiFiles.length), "MIDITools-writer");
+            ExecutorService workers = Executors.newFixedThreadPool(NUMBER_OF_WORKERS);
+
+            reader.start();
+            writer.start();
+            for (int i = 0; i < NUMBER_OF_WORKERS; i++) {
+                workers.submit(this::transformMidis);
+            }
+
+            try {
+                reader.join();
+                workers.shutdown();
+                workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } finally {
+                // Even if something went wrong above, so the writer doesn't wait forever
+                transformedMidis.put(END_OF_BATCH);
+            }
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            System.setOut(originalOut);
+        }
+
+        System.out.println(filesWritten.get() + " of " + midiFiles.length + " files written; " + filesFailed.get() + " failed.");
+    }
+
+    /**
+     * Gets the heap budget to use
+     * @param heapBudgetBytes - The budget that was given (0 if none was)
+     * @return The budget, or most of the max heap if none was given
+     */
+    static long getHeapBudgetBytes(long heapBudgetBytes) {
+        return heapBudgetBytes > 0
+            ? heapBudgetBytes
+            : (long)(Runtime.getRuntime().maxMemory() * DEFAULT_HEAP_BUDGET_FRACTION);
+    }
+
+    /**
+     * Gets the midis that were written by run (the originals, not the results)
+     */
+    public ArrayList<File> getWrittenFiles() {
+        return writtenFiles;
+    }
+
+    /**
+     * Gets all the midis in the directory, skipping any results of a previous run
+     * @param directory - The directory to look in
+     * @return The midi files, sorted by name
+     */
+    static File[] getMidiFiles(File directory) {
+        File[] midiFiles = directory.listFiles((dir, name) -> {
+            String lowerCaseName = name.toLowerCase();
+            return (lowerCaseName.endsWith(".mid") || lowerCaseName.endsWith(".midi"))
+                && !lowerCaseName.endsWith(MIDITools.OUT_FILE_SUFFIX);
+        });
+
+        if (midiFiles == null) {
+            return new File[0];
+        }
+
+        Arrays.sort(midiFiles);
+        return midiFiles;
+    }
+
+    /**
+     * The reader stage - loads each file and passes it on to the workers
+     * @param midiFiles - The files to load
+     */
+    private void readMidis(File[] midiFiles) {
+        try {
+            // Estimate every file up front, so the biggest can go first
+            HashMap<File, Long> footprints = new HashMap<>();
+            for (File midiFile : midiFiles) {
+                footprints.put(midiFile, estimateFootprint(midiFile));
+            }
+            File[] filesBiggestFirst = midiFiles.clone();
+            Arrays.sort(filesBiggestFirst, Comparator.comparing(footprints::get, Comparator.reverseOrder()));
+
+            for (File midiFile : filesBiggestFirst) {
+                // A file bigger than the whole budget just has to run on its own
+                long footprint = footprints.get(midiFile);
+                int permits = (int)Math.min(heapBudgetPermits, Math.max(1, footprint / BYTES_PER_PERMIT));
+                heapBudget.acquire(permits);
+                committedBytes.addAndGet((long)permits * BYTES_PER_PERMIT);
+
+                BatchItem item = new BatchItem(midiFile, permits);
+                boolean isPassedOn = false;
+                try {
+                    try {
+                        item.midiFileType = MidiSystem.getMidiFileFormat(midiFile).getType();
+                        item.sequence = MIDITools.loadSequence(midiFile);
+                    } catch (IOException | InvalidMidiDataException e) {
+                        item.fail("ERROR: Could not read " + midiFile + ": " + e.getMessage());
+                    } catch (RuntimeException | Error e) {
+                        item.sequence = null;
+                        item.fail("ERROR: Could not read " + midiFile + ": " + e);
+                    }
+                    loadedMidis.put(item);
+                    isPassedOn = true;
+                } finally {
+                    if (!isPassedOn) {
+                        releaseHeapBudget(item);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // One for each worker, so they all stop - even if reading stopped early
+            try {
+                for (int i = 0; i < NUMBER_OF_WORKERS; i++) {
+                    loadedMidis.put(END_OF_BATCH);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The transform stage - runs the transformations on each loaded file and passes it on to the writer
+     */
+    private void transformMidis() {
+        try {
+            while (true) {
+                BatchItem item = loadedMidis.take();
+                if (item == END_OF_BATCH) {
+                    return;
+                }
+
+                boolean isPassedOn = false;
+                try {
+                    if (!item.failed) {
+                        transformMidi(item);
+                    }
+                    transformedMidis.put(item);
+                    isPassedOn = true;
+                } finally {
+                    if (!isPassedOn) {
+                        releaseHeapBudget(item);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs the transformations on a single file, holding onto everything printed while doing so
+     * @param item - The file to transform
+     */
+    private void transformMidi(BatchItem item) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PerThreadOutputStream.startCapture(output);
+        try {
+            boolean succeeded;
+            if (useCache) {
+                item.sequence = new PipelineCache().processTransformations(item.file, item.sequence, args, startingIndex);
+                succeeded = item.sequence != null;
+            } else {
+                succeeded = MIDITools.processTransformations(args, startingIndex, item.sequence);
+            }
+
+            if (!succeeded) {
+                item.failed = true;
+            }
+        } catch (RuntimeException e) {
+            System.out.println("ERROR: " + e.getMessage());
+            item.failed = true;
+        } catch (Error e) {
+            // Such as running out of stack on a huge file - the rest of the batch can still go on
+            System.out.println("ERROR: " + e);
+            item.sequence = null;
+            item.failed = true;
+        } finally {
+            PerThreadOutputStream.stopCapture();
+            item.output = output.toString();
+        }
+    }
+
+    /**
+     * The writer stage - writes each transformed file out, along with what was printed while transforming it
+     * @param totalFiles - The number of files in the batch, for the progress
+     */
+    private void writeMidis(int totalFiles) {
+        try {
+            while (true) {
+                BatchItem item = transformedMidis.take();
+                if (item == END_OF_BATCH) {
+                    return;
+                }
+
+                System.out.println("== " + item.file.getName() + " ==");
+                System.out.print(item.output);
+
+                try {
+                    if (item.failed) {
+                        filesFailed.incrementAndGet();
+                        System.out.println("Skipped writing " + item.file.getName() + ".");
+                        System.out.println();
+                    } else if (MIDITools.writeSequenceToFile(item.sequence, item.midiFileType, item.file.getPath() + MIDITools.OUT_FILE_SUFFIX)) {
+                        filesWritten.incrementAndGet();
+                        writtenFiles.add(item.file);
+                    } else {
+                        filesFailed.incrementAndGet();
+                    }
+                } catch (RuntimeException | Error e) {
+                    filesFailed.incrementAndGet();
+                    System.out.println("ERROR: Could not write " + item.file.getName() + ": " + e);
+                } finally {
+                    releaseHeapBudget(item);
+                }
+
+                System.out.println("[" + filesDone.incrementAndGet() + "/" + totalFiles + "] "
+                    + (committedBytes.get() / (1024 * 1024)) + " MB of the heap budget still in use");
+                System.out.println();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Gives the item's share of the heap budget back, once its sequence isn't needed anymore
+     * - Every item has to end up here exactly once, whether it was written or not, or the batch runs out of budget
+     * @param item - The item that's done
+     */
+    private void releaseHeapBudget(BatchItem item) {
+        item.sequence = null;
+        committedBytes.addAndGet(-(long)item.heapBudgetPermits * BYTES_PER_PERMIT);
+        heapBudget.release(item.heapBudgetPermits);
+    }
+
+    /**
+     * Estimates how much memory the sequence of the given file will take once it's loaded
+     * - Only the header and chunk lengths are read, not the events themselves
+     * - A file that can't be scanned is estimated from its size, and will fail properly when it's read
+     * @param midiFile - The midi file
+     * @return The estimated footprint, in bytes
+     */
+    static long estimateFootprint(File midiFile) {
+        long trackBytes = midiFile.length();
+        long numberOfTracks = 1;
+        try {
+            MIDIChunkTable chunkTable = MIDIChunkTable.read(midiFile);
+            trackBytes = chunkTable.getTotalTrackLength();
+            numberOfTracks = chunkTable.getTrackChunks().size();
+        } catch (IOException | InvalidMidiDataException e) {
+            // Fall back to the file size
+        }
+
+        // The file's own bytes are held while it's parsed, too
+        return midiFile.length()
+            + (trackBytes / FILE_BYTES_PER_EVENT) * BYTES_PER_EVENT
+            + (numberOfTracks + 1) * BYTES_PER_TRACK;
+    }
+
+    /**
+     * A midi file making its way through the stages
+     */
+    private static class BatchItem {
+        private final File file;
+        private final int heapBudgetPermits;
+        private int midiFileType;
+        private Sequence sequence;
+        private String output = "";
+        private boolean failed = false;
+
+        private BatchItem(File file, int heapBudgetPermits) {
+            this.file = file;
+            this.heapBudgetPermits = heapBudgetPermits;
+        }
+
+        /**
+         * Marks the item as failed, with the given message to show instead of its output
+         */
+        private void fail(String message) {
+            failed = true;
+            output = message + System.lineSeparator();
+        }
+    }
+
+    /**
+     * Sends everything written on a thread to that thread's capture buffer, if it has one;
+     * otherwise, to the original output
+     */
+    private static class PerThreadOutputStream extends OutputStream {
+        private static final ThreadLocal<OutputStream> capture = new ThreadLocal<>();
+
+        private final OutputStream originalOut;
+
+        private PerThreadOutputStream(OutputStream originalOut) {
+            this.originalOut = originalOut;
+        }
+
+        private static void startCapture(OutputStream buffer) {
+            capture.set(buffer);
+        }
+
+        private static void stopCapture() {
+            capture.remove();
+        }
+
+        private OutputStream getTarget() {
+            OutputStream buffer = capture.get();
+            return buffer != null ? buffer : originalOut;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            getTarget().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            getTarget().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            getTarget().flush();
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package MIDITools;
+
+import MIDITools.Adjuster.ChannelLanes;
+import MIDITools.Adjuster.TickSpan;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rewrites the transformations into an equivalent chain that does less work, before any of them run
+ * - Only rewrites that are known to give the exact same midi are made:
+ *   - Dropping -a/-s steps that change nothing (an amount of 0, or a channel that doesn't exist)
+ *   - Moving -c steps earlier, past -a/-s/-e steps that don't touch the events being cleaned up,
+ *     so that the events it deletes aren't adjusted first
+ *   - Folding -a/-s steps in a row on the same event and channel into one - only when they go the same way,
+ *     since values are clamped after each step (i.e. 127 + 3 - 1 is 126, but 127 + 2 is 127)
+ *   - Dropping an -e (or -e replace) when there's already been an -e of either mode, and nothing in between
+ *     could have added expression events
+ * - Steps with args that can't be parsed are left alone, so the adjuster can report the problem as usual
+ */
+public class ChainOptimizer {
+    private static final String ADD_FLAG = "-a";
+    private static final String SUBTRACT_FLAG = "-s";
+    private static final String CLEAN_UP_FLAG = "-c";
+    private static final String EXPRESSION_FLAG = "-e";
+    private static final String EXPRESSION_REPLACE_ARG = "replace";
+    private static final String EXPRESSION_MERGE_ARG = "merge";
+    private static final String PITCH_BEND_ARG = "pitch-bend";
+
+    private static final int VOLUME_EVENT = 7;
+    private static final int EXPRESSION_EVENT = 11;
+
+    private ArrayList<String[]> originalSteps = new ArrayList<>();
+    private ArrayList<String[]> optimizedSteps = new ArrayList<>();
+
+    /**
+     * A description of each rewrite, in the order they were made
+     */
+    private final ArrayList<String> changes = new ArrayList<>();
+
+    /**
+     * Optimizes the transformations in the given args
+     * @param args - The args passed in via command line
+     * @param startingIndex - The index of the first transformation
+     * @return The args with the optimized transformations in place of the original ones
+     */
+    public String[] optimize(String[] args, int startingIndex) {
+        originalSteps = MIDITools.getTransformationSteps(args, startingIndex);
+        optimizedSteps = new ArrayList<>(originalSteps);
+        changes.clear();
+
+        // Each rewrite can open up another (i.e. moving a -c out from between two -a steps lets them fold)
+        boolean changed = true;
+        while (changed) {
+            changed = dropNoOpOffsets()
+                || moveCleanUpEarlier()
+                || foldOffsets()
+                || dropRepeatedExpression();
+        }
+
+        ArrayList<String> optimizedArgs = new ArrayList<>();
+        for (int i = 0; i < startingIndex; i++) {
+            optimizedArgs.add(args[i]);
+        }
+        for (String[] step : optimizedSteps) {
+            optimizedArgs.addAll(List.of(step));
+        }
+        return optimizedArgs.toArray(new String[0]);
+    }
+
+    /**
+     * Whether any of the transformations were rewritten
+     */
+    public boolean hasChanges() {
+        return !changes.isEmpty();
+    }
+
+    /**
+     * Shows the transformations as given, as they'll be run, and why they differ
+     */
+    public void showPlan() {
+        System.out.println("Transformations as given:");
+        showSteps(originalSteps);
+        System.out.println();
+
+        if (!hasChanges()) {
+            System.out.println("Already optimized - they'll be run as given.");
+            System.out.println();
+            return;
+        }
+
+        System.out.println("Transformations as they'll be run:");
+        showSteps(optimizedSteps);
+        System.out.println();
+
+        System.out.println("Changes:");
+        for (String change : changes) {
+            System.out.println("\t- " + change);
+        }
+        System.out.println();
+    }
+
+    private static void showSteps(ArrayList<String[]> steps) {
+        for (int i = 0; i < steps.size(); i++) {
+            System.out.println("\t" + (i + 1) + ". " + getStepString(steps.get(i)));
+        }
+    }
+
+    private static String getStepString(String[] step) {
+        return String.join(" ", step);
+    }
+
+    //<editor-fold desc="Rewrites">
+
+    /**
+     * Drops the first -a/-s step that can't change anything
+     * @return True if a step was dropped
+     */
+    private boolean dropNoOpOffsets() {
+        for (int i = 0; i < optimizedSteps.size(); i++) {
+            Offset offset = Offset.parse(optimizedSteps.get(i));
+            if (offset == null) {
+                continue;
+            }
+
+            String reason = null;
+            if (offset.amount == 0) {
+                reason = "it changes by 0";
+            } else if (offset.channel != -1 && (offset.channel < 1 || offset.channel > ChannelLanes.NUMBER_OF_CHANNELS)) {
+                reason = "there's no channel " + offset.channel;
+            }
+
+            if (reason != null) {
+                changes.add("Dropped " + getStepString(optimizedSteps.get(i)) + ", since " + reason);
+                optimizedSteps.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves the first -c step that can go earlier back by one step
+     * @return True if a step was moved
+     */
+    private boolean moveCleanUpEarlier() {
+        for (int i = 1; i < optimizedSteps.size(); i++) {
+            String[] step = optimizedSteps.get(i);
+            Integer cleanUpEvent = getCleanUpEvent(step);
+            String[] previousStep = optimizedSteps.get(i - 1);
+            if (cleanUpEvent == null || !canCleanUpBefore(cleanUpEvent, previousStep)) {
+                continue;
+            }
+
+            changes.add("Moved " + getStepString(step) + " before " + getStepString(previousStep) + ", since they don't touch the same events");
+            optimizedSteps.set(i - 1, step);
+            optimizedSteps.set(i, previousStep);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether cleaning up the given event before the step gives the same result as after it
+     * @param cleanUpEvent - The event being cleaned up (-1 for pitch bends)
+     * @param step - The step that's currently before the clean up
+     */
+    private static boolean canCleanUpBefore(int cleanUpEvent, String[] step) {
+        Offset offset = Offset.parse(step);
+        if (offset != null) {
+            return offset.eventNumber != cleanUpEvent;
+        }
+
+        // -e turns expression events into volume events (either mode), so it changes both
+        return isExpressionStep(step) && cleanUpEvent != VOLUME_EVENT && cleanUpEvent != EXPRESSION_EVENT;
+    }
+
+    /**
+     * Folds the first two -a/-s steps in a row that can be run as one
+     * @return True if two steps were folded
+     */
+    private boolean foldOffsets() {
+        for (int i = 1; i < optimizedSteps.size(); i++) {
+            Offset previous = Offset.parse(optimizedSteps.get(i - 1));
+            Offset current = Offset.parse(optimizedSteps.get(i));
+            if (previous == null || current == null ||
+                    previous.eventNumber != current.eventNumber ||
+                    previous.channel != current.channel ||
+                    (previous.amount > 0) != (current.amount > 0)) {
+                continue;
+            }
+
+            long amount = (long)previous.amount + current.amount;
+            if (amount > Integer.MAX_VALUE || amount < -Integer.MAX_VALUE) {
+                continue;
+            }
+
+            String[] previousStep = optimizedSteps.get(i - 1);
+            String[] foldedStep = current.toStep((int)amount);
+            changes.add("Folded " + getStepString(previousStep) + " and " + getStepString(optimizedSteps.get(i)) + " into " + getStepString(foldedStep));
+            optimizedSteps.set(i - 1, foldedStep);
+            optimizedSteps.remove(i);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Drops the first -e that comes after another, with only -a/-s/-c steps between them
+     * - None of those can add expression events, so there are none left for it to convert
+     * - Only replacing steps are dropped, since merging still changes the volume events that are there
+     * @return True if a step was dropped
+     */
+    private boolean dropRepeatedExpression() {
+        for (int i = 1; i < optimizedSteps.size(); i++) {
+            if (!isReplaceExpressionStep(optimizedSteps.get(i))) {
+                continue;
+            }
+
+            for (int j = i - 1; j >= 0; j--) {
+                String[] step = optimizedSteps.get(j);
+                if (isExpressionStep(step)) {
+                    changes.add("Dropped " + getStepString(optimizedSteps.get(i)) + " (step " + (i + 1) + "), since the -e before it already converted every expression event");
+                    optimizedSteps.remove(i);
+                    return true;
+                }
+
+                if (Offset.parse(step) == null && getCleanUpEvent(step) == null) {
+                    break;
+                }
+            }
+        }
+        return false;
+    }
+
+    //</editor-fold>
+
+    //<editor-fold desc="Step Parsing">
+
+    private static boolean isExpressionStep(String[] step) {
+        return step[0].equals(EXPRESSION_FLAG) && (step.length == 1 || (step.length == 2 &&
+            (step[1].equals(EXPRESSION_REPLACE_ARG) || step[1].equals(EXPRESSION_MERGE_ARG))));
+    }
+
+    private static boolean isReplaceExpressionStep(String[] step) {
+        return isExpressionStep(step) && (step.length == 1 || step[1].equals(EXPRESSION_REPLACE_ARG));
+    }
+
+    /**
+     * Gets the event a -c step cleans up
+     * @param step - The step
+     * @return The event number (-1 for pitch bends); null if it isn't a valid -c step
+     */
+    private static Integer getCleanUpEvent(String[] step) {
+        if (!step[0].equals(CLEAN_UP_FLAG) || step.length < 2 || step.length > 4) {
+            return null;
+        }
+
+        try {
+            if (step.length > 2) {
+                Integer.parseInt(step[2]);
+            }
+            if (step.length > 3) {
+                TickSpan.parse(step[3]);
+            }
+            return parseEventNumber(step[1]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses an event number arg
+     * @return The event number (-1 for pitch bends)
+     * @throws NumberFormatException - if it isn't a number or pitch-bend
+     */
+    private static int parseEventNumber(String eventNumberString) {
+        return eventNumberString.equals(PITCH_BEND_ARG)
+            ? -1
+            : Integer.parseInt(eventNumberString);
+    }
+
+    /**
+     * A parsed -a or -s step
+     */
+    private static class Offset {
+        private final String eventNumberString;
+        private final int eventNumber;
+
+        /**
+         * The amount to add - negative for -s
+         */
+        private final int amount;
+
+        /**
+         * The channel to adjust (-1 for all channels)
+         */
+        private final int channel;
+        private final String channelString;
+
+        private Offset(String eventNumberString, int eventNumber, int amount, String channelString, int channel) {
+            this.eventNumberString = eventNumberString;
+            this.eventNumber = eventNumber;
+            this.amount = amount;
+            this.channelString = channelString;
+            this.channel = channel;
+        }
+
+        /**
+         * Parses the step, the same way MIDIEventValueAdjuster does
+         * @param step - The step
+         * @return The offset; null if it isn't a valid -a or -s step
+         */
+        private static Offset parse(String[] step) {
+            boolean isSubtraction = step[0].equals(SUBTRACT_FLAG);
+            if ((!step[0].equals(ADD_FLAG) && !isSubtraction) || step.length < 3 || step.length > 4) {
+                return null;
+            }
+
+            try {
+                int eventNumber = parseEventNumber(step[1]);
+                int amount = Integer.parseInt(step[2]);
+                int channel = step.length > 3
+                    ? Integer.parseInt(step[3])
+                    : -1;
+                return new Offset(step[1], eventNumber, isSubtraction ? -amount : amount, step.length > 3 ? step[3] : null, channel);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Makes a step for this event and channel with the given amount
+         * @param newAmount - The amount to add - negative to subtract
+         */
+        private String[] toStep(int newAmount) {
+            String flag = newAmount < 0 ? SUBTRACT_FLAG : ADD_FLAG;
+            String amountString = String.valueOf(Math.abs(newAmount));
+            return channelString == null
+                ? new String[] { flag, eventNumberString, amountString }
+                : new String[] { flag, eventNumberString, amountString, channelString };
+        }
+    }
+
+    //</editor-fold>
+}
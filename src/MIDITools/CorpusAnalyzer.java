@@ -0,0 +1,641 @@
+package MIDITools;
+
+import MIDITools.Adjuster.ChannelLanes;
+import MIDITools.Adjuster.CleanUpAdjuster;
+import MIDITools.Adjuster.PitchBendAdjuster;
+import MIDITools.IO.MIDIChunkTable;
+import MIDITools.IO.MIDIEventStreamReader;
+import MIDITools.IO.StreamEvent;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reports how dense each channel's controllers and pitch bends are, to help choose -c tolerances
+ * - Reads a single midi or every midi in a directory, several at a time, without changing anything
+ * - Files are streamed one event at a time (see MIDIEventStreamReader) and only counted, so nothing is loaded
+ * - For each channel and event: the count, events per beat, the densest beats, a histogram of how much
+ *   the value changes between events, and how many events -c would delete at a few tolerances
+ * - Also lists the pitch bend ranges each channel sets (RPN 0)
+ *
+ * Shown as a table, or as JSON to be read by other tools.
+ */
+public class CorpusAnalyzer {
+    /**
+     * Pitch bends are counted after the 128 controllers
+     */
+    private static final int PITCH_BEND_KEY = 128;
+    private static final int NUMBER_OF_KEYS = PITCH_BEND_KEY + 1;
+
+    /**
+     * Value changes are counted in powers of two: 0, 1, 2-3, 4-7, ... 8192-16383
+     */
+    private static final int NUMBER_OF_DELTA_BUCKETS = 15;
+
+    /**
+     * The tolerances to estimate the clean up with - pitch bends have a much bigger range than controllers
+     */
+    private static final int[] CONTROLLER_TOLERANCES = { 2, 5, 10, 16, 32 };
+    private static final int[] PITCH_BEND_TOLERANCES = { 16, 32, 64, 128, 256 };
+    private static final long[] TICK_TOLERANCES = { 120, 240, 480 };
+
+    /**
+     * The tick tolerance shown in the table - the same as -c's default
+     */
+    private static final int TABLE_TICK_TOLERANCE_INDEX = 1;
+
+    private static final int NUMBER_OF_DENSEST_BEATS = 3;
+
+    /**
+     * Events past this beat are counted in it, so a corrupt delta time can't make the beat counts huge
+     */
+    private static final int MAX_BEAT = 1 << 20;
+
+    private static final int SMPTE_DIVISION_FLAG = 0x8000;
+    private static final int DATA_ENTRY_EVENT = 6;
+    private static final int RPN_LSB_EVENT = 100;
+    private static final int RPN_MSB_EVENT = 101;
+
+    /**
+     * Analyzes the midi, or every midi in the directory
+     * @param fileOrDirectory - The midi or directory
+     * @param showJson - Whether to show the result as JSON rather than a table
+     * @return True if anything was analyzed; false otherwise
+     */
+    public boolean run(File fileOrDirectory, boolean showJson) {
+        if (!fileOrDirectory.exists()) {
+            System.out.println("ERROR: " + fileOrDirectory + " not found.");
+            return false;
+        }
+
+        File[] midiFiles = fileOrDirectory.isDirectory()
+            ? BatchRunner.getMidiFiles(fileOrDirectory)
+            : new File[] { fileOrDirectory };
+        if (midiFiles.length == 0) {
+            System.out.println("ERROR: No midis found in " + fileOrDirectory);
+            return false;
+        }
+
+        long startTime = System.nanoTime();
+        Report report = Arrays.stream(midiFiles)
+            .parallel()
+            .map(CorpusAnalyzer::analyzeFile)
+            .collect(Report::new, Report::add, Report::add);
+        double seconds = (System.nanoTime() - startTime) / 1000000000.0;
+
+        if (showJson) {
+            System.out.println(report.toJson());
+        } else {
+            report.showTable(seconds);
+        }
+        return report.filesAnalyzed > 0;
+    }
+
+    //<editor-fold desc="File Analysis">
+
+    /**
+     * Analyzes a single midi, one track at a time
+     * - Value changes and clean ups are counted per track, the same way -c sees the events
+     * @param midiFile - The midi
+     * @return The report for just this file
+     */
+    private static Report analyzeFile(File midiFile) {
+        Report report = new Report();
+        try (FileChannel channel = FileChannel.open(midiFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            MIDIChunkTable chunkTable = MIDIChunkTable.read(buffer);
+            long ticksPerBeat = getTicksPerBeat(chunkTable.getDivision());
+
+            // The events of each key in each beat, across every track
+            int[][] beatCounts = new int[ChannelLanes.NUMBER_OF_CHANNELS * NUMBER_OF_KEYS][];
+            long lastTick = 0;
+            for (MIDIChunkTable.TrackChunk trackChunk : chunkTable.getTrackChunks()) {
+                lastTick = Math.max(lastTick, analyzeTrack(buffer, trackChunk, ticksPerBeat, beatCounts, report));
+            }
+
+            double songBeats = Math.max(1, (double)lastTick / ticksPerBeat);
+            for (int index = 0; index < beatCounts.length; index++) {
+                KeyStats stats = report.keyStats[index];
+                if (stats != null) {
+                    stats.songBeats = songBeats;
+                    stats.addDensestBeats(midiFile.getName(), beatCounts[index], ticksPerBeat);
+                }
+            }
+            report.filesAnalyzed = 1;
+        } catch (IOException | InvalidMidiDataException e) {
+            report.failedFiles.add(midiFile.getName() + ": " + e.getMessage());
+        }
+        return report;
+    }
+
+    /**
+     * Analyzes a single track, adding its events to the report
+     * @return The tick of the last event in the track
+     */
+    private static long analyzeTrack(
+            ByteBuffer buffer,
+            MIDIChunkTable.TrackChunk trackChunk,
+            long ticksPerBeat,
+            int[][] beatCounts,
+            Report report) throws InvalidMidiDataException {
+        int[] lastValues = new int[ChannelLanes.NUMBER_OF_CHANNELS * NUMBER_OF_KEYS];
+        Arrays.fill(lastValues, -1);
+        CleanUpAdjuster.CleanUpCounter[][] cleanUpCounters = new CleanUpAdjuster.CleanUpCounter[lastValues.length][];
+        int[] rpnMsb = new int[ChannelLanes.NUMBER_OF_CHANNELS];
+        int[] rpnLsb = new int[ChannelLanes.NUMBER_OF_CHANNELS];
+        Arrays.fill(rpnMsb, -1);
+        Arrays.fill(rpnLsb, -1);
+
+        long tick = 0;
+        MIDIEventStreamReader reader = new MIDIEventStreamReader(buffer, trackChunk);
+        while (reader.hasNext()) {
+            StreamEvent event = reader.next();
+            tick = event.tick;
+            if (!event.isChannelMessage()) {
+                continue;
+            }
+
+            int command = event.getCommand();
+            int channel = event.getChannel();
+            int key;
+            int value;
+            if (command == ShortMessage.CONTROL_CHANGE) {
+                // Masked, in case a corrupt track has a status byte where a data byte should be
+                key = event.data1 & 0x7F;
+                value = event.data2 & 0x7F;
+                trackPitchBendRange(channel, key, value, rpnMsb, rpnLsb, report);
+            } else if (command == ShortMessage.PITCH_BEND) {
+                key = PITCH_BEND_KEY;
+                value = PitchBendAdjuster.getPitchBendValue(event.data1, event.data2);
+            } else {
+                continue;
+            }
+
+            int index = channel * NUMBER_OF_KEYS + key;
+            KeyStats stats = report.getKeyStats(index);
+            stats.count++;
+
+            if (lastValues[index] != -1) {
+                stats.deltaHistogram[getDeltaBucket(Math.abs(value - lastValues[index]))]++;
+            }
+            lastValues[index] = value;
+
+            if (cleanUpCounters[index] == null) {
+                cleanUpCounters[index] = createCleanUpCounters(key);
+            }
+            for (CleanUpAdjuster.CleanUpCounter counter : cleanUpCounters[index]) {
+                counter.add(tick, value);
+            }
+
+            int beat = (int)Math.min(MAX_BEAT, tick / ticksPerBeat);
+            beatCounts[index] = growToFit(beatCounts[index], beat);
+            beatCounts[index][beat]++;
+        }
+
+        for (int index = 0; index < cleanUpCounters.length; index++) {
+            if (cleanUpCounters[index] != null) {
+                for (int i = 0; i < cleanUpCounters[index].length; i++) {
+                    report.keyStats[index].eventsDeleted[i] += cleanUpCounters[index][i].getEventsDeleted();
+                }
+            }
+        }
+        return tick;
+    }
+
+    /**
+     * Follows the RPN events of a channel, and notes the pitch bend range whenever it's set
+     */
+    private static void trackPitchBendRange(int channel, int eventNumber, int value, int[] rpnMsb, int[] rpnLsb, Report report) {
+        if (eventNumber == RPN_MSB_EVENT) {
+            rpnMsb[channel] = value;
+        } else if (eventNumber == RPN_LSB_EVENT) {
+            rpnLsb[channel] = value;
+        } else if (eventNumber == DATA_ENTRY_EVENT && rpnMsb[channel] == 0 && rpnLsb[channel] == 0) {
+            report.pitchBendRanges[channel][value] = true;
+        }
+    }
+
+    /**
+     * Creates a counter for each tick tolerance and tolerance, in that order
+     */
+    private static CleanUpAdjuster.CleanUpCounter[] createCleanUpCounters(int key) {
+        int[] tolerances = getTolerances(key);
+        CleanUpAdjuster.CleanUpCounter[] counters = new CleanUpAdjuster.CleanUpCounter[TICK_TOLERANCES.length * tolerances.length];
+        for (int i = 0; i < TICK_TOLERANCES.length; i++) {
+            for (int j = 0; j < tolerances.length; j++) {
+                counters[i * tolerances.length + j] = new CleanUpAdjuster.CleanUpCounter(tolerances[j], TICK_TOLERANCES[i]);
+            }
+        }
+        return counters;
+    }
+
+    private static int[] getTolerances(int key) {
+        return key == PITCH_BEND_KEY
+            ? PITCH_BEND_TOLERANCES
+            : CONTROLLER_TOLERANCES;
+    }
+
+    /**
+     * Gets the length of a beat in ticks
+     * - SMPTE timing has no beats, so half a second is used - a beat at 120 bpm
+     * @param division - The raw division from the header
+     */
+    private static long getTicksPerBeat(int division) {
+        if ((division & SMPTE_DIVISION_FLAG) == 0) {
+            return Math.max(1, division);
+        }
+
+        int framesPerSecond = -(byte)(division >> 8);
+        int ticksPerFrame = division & 0xFF;
+        return Math.max(1, framesPerSecond * ticksPerFrame / 2);
+    }
+
+    private static int getDeltaBucket(int delta) {
+        return Math.min(NUMBER_OF_DELTA_BUCKETS - 1, 32 - Integer.numberOfLeadingZeros(delta));
+    }
+
+    /**
+     * Grows the array (doubling it) so that the given index fits
+     */
+    private static int[] growToFit(int[] array, int index) {
+        if (array == null) {
+            return new int[Math.max(64, index + 1)];
+        }
+        if (index < array.length) {
+            return array;
+        }
+        return Arrays.copyOf(array, Math.max(array.length * 2, index + 1));
+    }
+
+    //</editor-fold>
+
+    //<editor-fold desc="Report">
+
+    /**
+     * The totals for one channel and event, across every file
+     */
+    private static class KeyStats {
+        private final int channel;
+        private final int key;
+        private long count = 0;
+
+        /**
+         * The length of every file this key is in, in beats
+         */
+        private double songBeats = 0;
+        private final long[] deltaHistogram = new long[NUMBER_OF_DELTA_BUCKETS];
+
+        /**
+         * Indexed by tick tolerance, then tolerance (see createCleanUpCounters)
+         */
+        private final long[] eventsDeleted;
+        private final ArrayList<DenseBeat> densestBeats = new ArrayList<>();
+
+        private KeyStats(int channel, int key) {
+            this.channel = channel;
+            this.key = key;
+            eventsDeleted = new long[TICK_TOLERANCES.length * getTolerances(key).length];
+        }
+
+        /**
+         * Adds the densest beats of a file, keeping only the densest overall
+         * @param fileName - The name of the file
+         * @param beatCounts - The number of events in each beat of the file
+         * @param ticksPerBeat - The length of a beat in ticks
+         */
+        private void addDensestBeats(String fileName, int[] beatCounts, long ticksPerBeat) {
+            for (int beat = 0; beat < beatCounts.length; beat++) {
+                if (beatCounts[beat] > 0) {
+                    addDenseBeat(new DenseBeat(fileName, beat, beat * ticksPerBeat, beatCounts[beat]));
+                }
+            }
+        }
+
+        private void addDenseBeat(DenseBeat denseBeat) {
+            if (densestBeats.size() == NUMBER_OF_DENSEST_BEATS &&
+                    DenseBeat.DENSEST_FIRST.compare(denseBeat, densestBeats.get(NUMBER_OF_DENSEST_BEATS - 1)) >= 0) {
+                return;
+            }
+
+            densestBeats.add(denseBeat);
+            densestBeats.sort(DenseBeat.DENSEST_FIRST);
+            if (densestBeats.size() > NUMBER_OF_DENSEST_BEATS) {
+                densestBeats.remove(NUMBER_OF_DENSEST_BEATS);
+            }
+        }
+
+        private void add(KeyStats other) {
+            count += other.count;
+            songBeats += other.songBeats;
+            for (int i = 0; i < deltaHistogram.length; i++) {
+                deltaHistogram[i] += other.deltaHistogram[i];
+            }
+            for (int i = 0; i < eventsDeleted.length; i++) {
+                eventsDeleted[i] += other.eventsDeleted[i];
+            }
+            for (DenseBeat denseBeat : other.densestBeats) {
+                addDenseBeat(denseBeat);
+            }
+        }
+
+        private double getEventsPerBeat() {
+            return songBeats > 0 ? count / songBeats : 0;
+        }
+
+        private double getPercentDeleted(int tickToleranceIndex, int toleranceIndex) {
+            long deleted = eventsDeleted[tickToleranceIndex * getTolerances(key).length + toleranceIndex];
+            return count > 0 ? 100.0 * deleted / count : 0;
+        }
+
+        /**
+         * Gets the name of the event, the way -c takes it
+         */
+        private String getEventString() {
+            return key == PITCH_BEND_KEY
+                ? "pitch-bend"
+                : String.valueOf(key);
+        }
+    }
+
+    /**
+     * A single beat of a file, and how many events of a key are in it
+     */
+    private static class DenseBeat {
+        /**
+         * Densest first, then by file and beat, so that the order doesn't depend on which file finished first
+         */
+        private static final Comparator<DenseBeat> DENSEST_FIRST = Comparator
+            .comparingInt((DenseBeat denseBeat) -> -denseBeat.events)
+            .thenComparing(denseBeat -> denseBeat.fileName)
+            .thenComparingLong(denseBeat -> denseBeat.beat);
+
+        private final String fileName;
+        private final long beat;
+        private final long tick;
+        private final int events;
+
+        private DenseBeat(String fileName, long beat, long tick, int events) {
+            this.fileName = fileName;
+            this.beat = beat;
+            this.tick = tick;
+            this.events = events;
+        }
+    }
+
+    /**
+     * The totals for every file analyzed so far
+     */
+    private static class Report {
+        private int filesAnalyzed = 0;
+        private final ArrayList<String> failedFiles = new ArrayList<>();
+        private final KeyStats[] keyStats = new KeyStats[ChannelLanes.NUMBER_OF_CHANNELS * NUMBER_OF_KEYS];
+        private final boolean[][] pitchBendRanges = new boolean[ChannelLanes.NUMBER_OF_CHANNELS][128];
+
+        private KeyStats getKeyStats(int index) {
+            if (keyStats[index] == null) {
+                keyStats[index] = new KeyStats(index / NUMBER_OF_KEYS, index % NUMBER_OF_KEYS);
+            }
+            return keyStats[index];
+        }
+
+        private void add(Report other) {
+            filesAnalyzed += other.filesAnalyzed;
+            failedFiles.addAll(other.failedFiles);
+            for (int index = 0; index < keyStats.length; index++) {
+                if (other.keyStats[index] != null) {
+                    getKeyStats(index).add(other.keyStats[index]);
+                }
+            }
+            for (int channel = 0; channel < ChannelLanes.NUMBER_OF_CHANNELS; channel++) {
+                for (int range = 0; range < 128; range++) {
+                    pitchBendRanges[channel][range] |= other.pitchBendRanges[channel][range];
+                }
+            }
+        }
+
+        private List<Integer> getPitchBendRanges(int channel) {
+            ArrayList<Integer> ranges = new ArrayList<>();
+            for (int range = 0; range < 128; range++) {
+                if (pitchBendRanges[channel][range]) {
+                    ranges.add(range);
+                }
+            }
+            return ranges;
+        }
+
+        /**
+         * Shows the report as a table, one row per channel and event
+         * @param seconds - How long the analysis took
+         */
+        private void showTable(double seconds) {
+            System.out.println("Analyzed " + filesAnalyzed + " midi(s) in " + String.format("%.2f", seconds) + "s.");
+            for (String failedFile : failedFiles) {
+                System.out.println("WARNING: Couldn't analyze " + failedFile);
+            }
+            System.out.println();
+
+            StringBuilder header = new StringBuilder(String.format("%-4s %-11s %9s %9s %11s %13s   ", "Ch", "Event", "Count", "Per beat", "Peak beat", "Median change"));
+            header.append("Cleaned up at tolerance (tick tolerance ").append(TICK_TOLERANCES[TABLE_TICK_TOLERANCE_INDEX]).append(")");
+            System.out.println(header);
+
+            for (KeyStats stats : keyStats) {
+                if (stats == null) {
+                    continue;
+                }
+
+                StringBuilder row = new StringBuilder(String.format("%-4d %-11s %9d %9.2f %11d %13s   ",
+                    stats.channel + 1,
+                    stats.getEventString(),
+                    stats.count,
+                    stats.getEventsPerBeat(),
+                    stats.densestBeats.isEmpty() ? 0 : stats.densestBeats.get(0).events,
+                    getMedianDeltaString(stats.deltaHistogram)));
+
+                int[] tolerances = getTolerances(stats.key);
+                for (int i = 0; i < tolerances.length; i++) {
+                    row.append(String.format("%4d: %5.1f%%  ", tolerances[i], stats.getPercentDeleted(TABLE_TICK_TOLERANCE_INDEX, i)));
+                }
+                System.out.println(row.toString().trim());
+            }
+            System.out.println();
+
+            System.out.println("Densest beats:");
+            for (KeyStats stats : keyStats) {
+                if (stats != null && !stats.densestBeats.isEmpty()) {
+                    StringBuilder row = new StringBuilder("\tChannel " + (stats.channel + 1) + ", " + stats.getEventString() + ":");
+                    for (DenseBeat denseBeat : stats.densestBeats) {
+                        row.append(" ").append(denseBeat.events).append(" in ").append(denseBeat.fileName)
+                            .append(" at tick ").append(denseBeat.tick).append(";");
+                    }
+                    System.out.println(row.substring(0, row.length() - 1));
+                }
+            }
+            System.out.println();
+
+            System.out.println("Pitch bend ranges set:");
+            boolean foundRange = false;
+            for (int channel = 0; channel < ChannelLanes.NUMBER_OF_CHANNELS; channel++) {
+                List<Integer> ranges = getPitchBendRanges(channel);
+                if (!ranges.isEmpty()) {
+                    foundRange = true;
+                    System.out.println("\tChannel " + (channel + 1) + ": " + ranges);
+                }
+            }
+            if (!foundRange) {
+                System.out.println("\tNone - the default of 2 is used.");
+            }
+            System.out.println();
+        }
+
+        /**
+         * Gets the bucket the median change falls in, i.e. "4-7"
+         */
+        private static String getMedianDeltaString(long[] deltaHistogram) {
+            long total = Arrays.stream(deltaHistogram).sum();
+            if (total == 0) {
+                return "-";
+            }
+
+            long seen = 0;
+            for (int bucket = 0; bucket < deltaHistogram.length; bucket++) {
+                seen += deltaHistogram[bucket];
+                if (seen * 2 >= total) {
+                    return getDeltaBucketString(bucket);
+                }
+            }
+            return "-";
+        }
+
+        private static long getDeltaBucketMin(int bucket) {
+            return bucket == 0 ? 0 : 1L << (bucket - 1);
+        }
+
+        private static long getDeltaBucketMax(int bucket) {
+            return bucket == 0 ? 0 : (1L << bucket) - 1;
+        }
+
+        private static String getDeltaBucketString(int bucket) {
+            long min = getDeltaBucketMin(bucket);
+            long max = getDeltaBucketMax(bucket);
+            return min == max ? String.valueOf(min) : min + "-" + max;
+        }
+
+        /**
+         * Gets the report as JSON
+         */
+        private String toJson() {
+            StringBuilder json = new StringBuilder("{\n");
+            json.append("  \"filesAnalyzed\": ").append(filesAnalyzed).append(",\n");
+            json.append("  \"failedFiles\": [");
+            for (int i = 0; i < failedFiles.size(); i++) {
+                json.append(i == 0 ? "" : ", ").append(toJsonString(failedFiles.get(i)));
+            }
+            json.append("],\n");
+
+            json.append("  \"channels\": [");
+            boolean firstChannel = true;
+            for (int channel = 0; channel < ChannelLanes.NUMBER_OF_CHANNELS; channel++) {
+                List<Integer> ranges = getPitchBendRanges(channel);
+                ArrayList<KeyStats> channelStats = new ArrayList<>();
+                for (int key = 0; key < NUMBER_OF_KEYS; key++) {
+                    KeyStats stats = keyStats[channel * NUMBER_OF_KEYS + key];
+                    if (stats != null) {
+                        channelStats.add(stats);
+                    }
+                }
+                if (channelStats.isEmpty() && ranges.isEmpty()) {
+                    continue;
+                }
+
+                json.append(firstChannel ? "\n" : ",\n");
+                firstChannel = false;
+                json.append("    {\n");
+                json.append("      \"channel\": ").append(channel + 1).append(",\n");
+                json.append("      \"pitchBendRanges\": ").append(ranges).append(",\n");
+                json.append("      \"events\": [");
+                for (int i = 0; i < channelStats.size(); i++) {
+                    json.append(i == 0 ? "\n" : ",\n");
+                    appendKeyStatsJson(json, channelStats.get(i));
+                }
+                json.append(channelStats.isEmpty() ? "]\n" : "\n      ]\n");
+                json.append("    }");
+            }
+            json.append(firstChannel ? "]\n" : "\n  ]\n");
+            json.append("}");
+            return json.toString();
+        }
+
+        private static void appendKeyStatsJson(StringBuilder json, KeyStats stats) {
+            String indent = "          ";
+            json.append("        {\n");
+            json.append(indent).append("\"event\": ").append(toJsonString(stats.getEventString())).append(",\n");
+            json.append(indent).append("\"count\": ").append(stats.count).append(",\n");
+            json.append(indent).append("\"eventsPerBeat\": ").append(String.format(Locale.ROOT, "%.3f", stats.getEventsPerBeat())).append(",\n");
+
+            json.append(indent).append("\"densestBeats\": [");
+            for (int i = 0; i < stats.densestBeats.size(); i++) {
+                DenseBeat denseBeat = stats.densestBeats.get(i);
+                json.append(i == 0 ? "" : ", ")
+                    .append("{\"file\": ").append(toJsonString(denseBeat.fileName))
+                    .append(", \"beat\": ").append(denseBeat.beat)
+                    .append(", \"tick\": ").append(denseBeat.tick)
+                    .append(", \"events\": ").append(denseBeat.events).append("}");
+            }
+            json.append("],\n");
+
+            json.append(indent).append("\"changeHistogram\": [");
+            boolean firstBucket = true;
+            for (int bucket = 0; bucket < NUMBER_OF_DELTA_BUCKETS; bucket++) {
+                if (stats.deltaHistogram[bucket] == 0) {
+                    continue;
+                }
+                json.append(firstBucket ? "" : ", ")
+                    .append("{\"min\": ").append(getDeltaBucketMin(bucket))
+                    .append(", \"max\": ").append(getDeltaBucketMax(bucket))
+                    .append(", \"count\": ").append(stats.deltaHistogram[bucket]).append("}");
+                firstBucket = false;
+            }
+            json.append("],\n");
+
+            json.append(indent).append("\"cleanUp\": [");
+            int[] tolerances = getTolerances(stats.key);
+            for (int i = 0; i < TICK_TOLERANCES.length; i++) {
+                for (int j = 0; j < tolerances.length; j++) {
+                    json.append(i == 0 && j == 0 ? "" : ", ")
+                        .append("{\"tolerance\": ").append(tolerances[j])
+                        .append(", \"tickTolerance\": ").append(TICK_TOLERANCES[i])
+                        .append(", \"eventsDeleted\": ").append(stats.eventsDeleted[i * tolerances.length + j])
+                        .append(", \"percent\": ").append(String.format(Locale.ROOT, "%.1f", stats.getPercentDeleted(i, j))).append("}");
+                }
+            }
+            json.append("]\n");
+            json.append("        }");
+        }
+
+        private static String toJsonString(String value) {
+            StringBuilder json = new StringBuilder("\"");
+            for (char c : value.toCharArray()) {
+                if (c == '"' || c == '\\') {
+                    json.append('\\').append(c);
+                } else if (c < 0x20) {
+                    json.append(String.format("\\u%04x", (int)c));
+                } else {
+                    json.append(c);
+                }
+            }
+            return json.append('"').toString();
+        }
+    }
+
+    //</editor-fold>
+}
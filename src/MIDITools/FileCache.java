@@ -0,0 +1,219 @@
+package MIDITools;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * A directory of cached files, capped to a max size
+ * - Entries are named by a key (see hashKey), so the same key always maps to the same file
+ * - Keys include the build of the code, so entries written by a different build are never read back
+ * - Reading an entry marks it as recently used by touching its last modified time
+ * - When the directory goes over the cap, the least recently used entries are deleted first
+ */
+public class FileCache {
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    /**
+     * Identifies the build of the code, so that a change to what the code writes can't leave stale entries behind
+     */
+    private static final String BUILD_ID = getBuildId();
+
+    private final File directory;
+    private final long maxBytes;
+    private final String extension;
+
+    /**
+     * @param directory - The directory to keep the entries in (created if it doesn't exist)
+     * @param maxBytes - The max size of all entries together
+     * @param extension - The file extension of the entries, so different caches can share a directory
+     */
+    public FileCache(File directory, long maxBytes, String extension) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.extension = extension;
+    }
+
+    /**
+     * Gets the entry for the given key, marking it as recently used
+     * @param key - The key of the entry
+     * @return The entry's file, or null if it isn't cached
+     */
+    public File get(String key) {
+        File file = getFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        // Not a problem if this fails - the entry would just be evicted sooner
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Gets the file an entry with the given key should be written to
+     * - Call evict after writing to it to keep the cache under its cap
+     * - Writers should write to a temp file and rename it (see getTempFile) so that a
+     *   half-written entry is never read
+     * @param key - The key of the entry
+     * @return The file handle (which might not exist yet)
+     */
+    public File getFile(String key) {
+        return new File(directory, key + extension);
+    }
+
+    /**
+     * Creates a temp file to write an entry to before it's moved to the real one
+     * - Every call gets its own file, so several processes writing the same entry never write to the same file
+     * @param key - The key of the entry
+     * @return The new, empty temp file, in the cache directory
+     * @throws IOException - if the cache directory or the file can't be created
+     */
+    public File getTempFile(String key) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create cache directory " + directory);
+        }
+        return Files.createTempFile(directory.toPath(), key, TEMP_EXTENSION).toFile();
+    }
+
+    /**
+     * Moves a finished temp file into place as the entry for the given key
+     * - The move is atomic, so a reader sees either the old entry or the new one, never part of either
+     * @param tempFile - The temp file (from getTempFile)
+     * @param key - The key of the entry
+     * @throws IOException - if the file can't be moved - the temp file is deleted
+     */
+    public void commit(File tempFile, String key) throws IOException {
+        try {
+            Files.move(tempFile.toPath(), getFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            discard(tempFile);
+            throw e;
+        }
+        evict();
+    }
+
+    /**
+     * Deletes a temp file that won't be committed, i.e. when writing it failed
+     * @param tempFile - The temp file (from getTempFile) - may be null
+     */
+    public void discard(File tempFile) {
+        if (tempFile != null) {
+            // Not a problem if this fails - it's in the temp directory
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache is under its cap
+     */
+    public void evict() {
+        File[] entries = directory.listFiles((dir, name) -> name.endsWith(extension));
+        if (entries == null) {
+            return;
+        }
+
+        long totalBytes = 0;
+        for (File entry : entries) {
+            totalBytes += entry.length();
+        }
+
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        for (File entry : entries) {
+            if (totalBytes <= maxBytes) {
+                break;
+            }
+
+            long entryBytes = entry.length();
+            if (entry.delete()) {
+                totalBytes -= entryBytes;
+            }
+        }
+    }
+
+    /**
+     * Hashes the given parts into a key that's safe to use as a filename
+     * - The build of the code is part of every key, so a rebuild starts the cache over
+     * @param parts - The parts of the key, such as a content hash and a list of arguments
+     * @return The key as a hex string
+     */
+    public static String hashKey(String... parts) {
+        MessageDigest digest = getDigest();
+        digest.update(BUILD_ID.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte)'\n');
+        for (String part : parts) {
+            digest.update(part.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte)'\n');
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Hashes the given bytes, such as the contents of a file
+     * @param bytes - The bytes to hash
+     * @return The hash as a hex string
+     */
+    public static String hashBytes(byte[] bytes) {
+        return toHex(getDigest().digest(bytes));
+    }
+
+    /**
+     * Gets an id for the build of the code that's running - the hash of the jar, or when running from a directory
+     * of classes, the hash of their names, sizes, and last modified times
+     * @return The id, or an empty string if the code can't be found
+     */
+    private static String getBuildId() {
+        try {
+            CodeSource codeSource = FileCache.class.getProtectionDomain().getCodeSource();
+            if (codeSource == null || codeSource.getLocation() == null) {
+                return "";
+            }
+
+            Path location = new File(codeSource.getLocation().toURI()).toPath();
+            if (Files.isRegularFile(location)) {
+                return hashBytes(Files.readAllBytes(location));
+            }
+
+            StringBuilder classes = new StringBuilder();
+            try (Stream<Path> paths = Files.walk(location)) {
+                paths.filter(path -> path.toString().endsWith(".class")).sorted().forEach(path -> {
+                    File classFile = path.toFile();
+                    classes.append(location.relativize(path)).append(' ')
+                        .append(classFile.length()).append(' ')
+                        .append(classFile.lastModified()).append('\n');
+                });
+            }
+            return hashBytes(classes.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException | URISyntaxException | IllegalArgumentException | SecurityException e) {
+            System.out.println("WARNING: Could not identify the build, so cache entries from other builds may be used: " + e.getMessage());
+            return "";
+        }
+    }
+
+    private static MessageDigest getDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
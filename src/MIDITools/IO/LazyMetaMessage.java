@@ -0,0 +1,96 @@
+package MIDITools.IO;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import java.nio.ByteBuffer;
+
+/**
+ * A meta message whose data stays in the buffer it was read from until something asks for it
+ * - None of the adjusters look inside meta messages, so lyrics, markers, text and the like are never
+ *   copied out just to be written back again
+ * - The data is copied out each time it's asked for, and written back exactly as it was read
+ * - Setting the message replaces it like any other meta message, and the buffer is no longer used
+ *
+ * The buffer must not change while the message is in use, so it should be a copy read into memory - a mapped
+ * file can change or disappear underneath it (i.e. when the midi is saved over itself).
+ */
+public class LazyMetaMessage extends MetaMessage {
+    private ByteBuffer source;
+    private final int dataOffset;
+    private final int dataLength;
+
+    /**
+     * @param source - The buffer the message was read from
+     * @param type - The meta type
+     * @param dataOffset - Where the message's data starts in the buffer (after its length)
+     * @param dataLength - The length of the data
+     */
+    public LazyMetaMessage(ByteBuffer source, int type, int dataOffset, int dataLength) {
+        // Only the status and type are kept here - everything else comes from the buffer
+        super(new byte[] { (byte)META, (byte)type, 0 });
+        this.source = source;
+        this.dataOffset = dataOffset;
+        this.dataLength = dataLength;
+    }
+
+    @Override
+    public byte[] getData() {
+        if (source == null) {
+            return super.getData();
+        }
+
+        byte[] data = new byte[dataLength];
+        source.get(dataOffset, data);
+        return data;
+    }
+
+    @Override
+    public byte[] getMessage() {
+        if (source == null) {
+            return super.getMessage();
+        }
+
+        // Status, type, length as a variable length quantity, then the data
+        byte[] message = new byte[getLength()];
+        message[0] = (byte)META;
+        message[1] = (byte)getType();
+        int position = 2;
+        for (int shift = getVariableLengthQuantityLength(dataLength) * 7 - 7; shift >= 0; shift -= 7) {
+            int b = (dataLength >> shift) & 0x7F;
+            message[position++] = (byte)(shift > 0 ? b | 0x80 : b);
+        }
+        source.get(dataOffset, message, position, dataLength);
+        return message;
+    }
+
+    @Override
+    public int getLength() {
+        return source == null
+            ? super.getLength()
+            : 2 + getVariableLengthQuantityLength(dataLength) + dataLength;
+    }
+
+    @Override
+    public void setMessage(int type, byte[] data, int length) throws InvalidMidiDataException {
+        super.setMessage(type, data, length);
+        source = null;
+    }
+
+    @Override
+    public Object clone() {
+        return source == null
+            ? super.clone()
+            : new LazyMetaMessage(source, getType(), dataOffset, dataLength);
+    }
+
+    /**
+     * Gets the number of bytes the given value takes as a variable length quantity
+     */
+    private static int getVariableLengthQuantityLength(int value) {
+        int length = 1;
+        while ((value >>= 7) > 0) {
+            length++;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,81 @@
+package MIDITools.IO;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.SysexMessage;
+import java.nio.ByteBuffer;
+
+/**
+ * A sysex message whose data stays in the buffer it was read from until something asks for it
+ * - Works the same way as LazyMetaMessage - vendor sysex dumps are never copied out just to be written back
+ *
+ * The buffer must not change while the message is in use, so it should be a copy read into memory - a mapped
+ * file can change or disappear underneath it (i.e. when the midi is saved over itself).
+ */
+public class LazySysexMessage extends SysexMessage {
+    private ByteBuffer source;
+    private final int dataOffset;
+    private final int dataLength;
+
+    /**
+     * @param source - The buffer the message was read from
+     * @param status - The status (SYSTEM_EXCLUSIVE or SPECIAL_SYSTEM_EXCLUSIVE)
+     * @param dataOffset - Where the message's data starts in the buffer (after its length)
+     * @param dataLength - The length of the data
+     */
+    public LazySysexMessage(ByteBuffer source, int status, int dataOffset, int dataLength) {
+        // Only the status is kept here - everything else comes from the buffer
+        super(new byte[] { (byte)status });
+        this.source = source;
+        this.dataOffset = dataOffset;
+        this.dataLength = dataLength;
+    }
+
+    @Override
+    public byte[] getData() {
+        if (source == null) {
+            return super.getData();
+        }
+
+        byte[] data = new byte[dataLength];
+        source.get(dataOffset, data);
+        return data;
+    }
+
+    @Override
+    public byte[] getMessage() {
+        if (source == null) {
+            return super.getMessage();
+        }
+
+        byte[] message = new byte[getLength()];
+        message[0] = (byte)getStatus();
+        source.get(dataOffset, message, 1, dataLength);
+        return message;
+    }
+
+    @Override
+    public int getLength() {
+        return source == null
+            ? super.getLength()
+            : 1 + dataLength;
+    }
+
+    @Override
+    public void setMessage(byte[] data, int length) throws InvalidMidiDataException {
+        super.setMessage(data, length);
+        source = null;
+    }
+
+    @Override
+    public void setMessage(int status, byte[] data, int length) throws InvalidMidiDataException {
+        super.setMessage(status, data, length);
+        source = null;
+    }
+
+    @Override
+    public Object clone() {
+        return source == null
+            ? super.clone()
+            : new LazySysexMessage(source, getStatus(), dataOffset, dataLength);
+    }
+}
@@ -0,0 +1,143 @@
+package MIDITools.IO;
+
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * The layout of a standard midi file - its header, and where each track (MTrk chunk) starts and ends
+ * - Every chunk starts with its length, so this can be found without decoding a single event
+ * - Chunks of any other type are skipped over, as the midi spec says to do
+ */
+public class MIDIChunkTable {
+    private static final int HEADER_CHUNK_ID = 0x4D546864; // MThd
+    private static final int TRACK_CHUNK_ID = 0x4D54726B; // MTrk
+
+    /**
+     * The length of a chunk's id and length fields, which come before its data
+     */
+    private static final int CHUNK_HEADER_LENGTH = 8;
+
+    private final int midiFileType;
+    private final int division;
+    private final ArrayList<TrackChunk> trackChunks;
+
+    private MIDIChunkTable(int midiFileType, int division, ArrayList<TrackChunk> trackChunks) {
+        this.midiFileType = midiFileType;
+        this.division = division;
+        this.trackChunks = trackChunks;
+    }
+
+    /**
+     * Reads the chunk table of the given file
+     * - The file is mapped rather than read, so only the pages with chunk headers are ever loaded
+     * @param file - The midi file
+     * @return The chunk table
+     * @throws IOException - if the file can't be read
+     * @throws InvalidMidiDataException - if it isn't a standard midi file
+     */
+    public static MIDIChunkTable read(File file) throws IOException, InvalidMidiDataException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Reads the chunk table of the midi file in the given buffer
+     * @param buffer - The contents of the midi file, from its start
+     * @return The chunk table
+     * @throws InvalidMidiDataException - if it isn't a standard midi file
+     */
+    public static MIDIChunkTable read(ByteBuffer buffer) throws InvalidMidiDataException {
+        int length = buffer.limit();
+        if (length < CHUNK_HEADER_LENGTH + 6 || buffer.getInt(0) != HEADER_CHUNK_ID) {
+            throw new InvalidMidiDataException("Not a standard midi file (no MThd header)");
+        }
+
+        int headerLength = buffer.getInt(4);
+        int midiFileType = buffer.getShort(8) & 0xFFFF;
+        int division = buffer.getShort(12) & 0xFFFF;
+
+        ArrayList<TrackChunk> trackChunks = new ArrayList<>();
+        long position = CHUNK_HEADER_LENGTH + (headerLength & 0xFFFFFFFFL);
+        while (position + CHUNK_HEADER_LENGTH <= length) {
+            int chunkId = buffer.getInt((int)position);
+            long chunkLength = buffer.getInt((int)position + 4) & 0xFFFFFFFFL;
+            long dataOffset = position + CHUNK_HEADER_LENGTH;
+
+            if (dataOffset + chunkLength > length) {
+                throw new InvalidMidiDataException("Chunk at byte " + position + " runs past the end of the file");
+            }
+
+            if (chunkId == TRACK_CHUNK_ID) {
+                trackChunks.add(new TrackChunk(trackChunks.size(), (int)dataOffset, (int)chunkLength));
+            }
+            position = dataOffset + chunkLength;
+        }
+
+        return new MIDIChunkTable(midiFileType, division, trackChunks);
+    }
+
+    /**
+     * Gets the midi file type from the header (0, 1 or 2)
+     */
+    public int getMidiFileType() {
+        return midiFileType;
+    }
+
+    /**
+     * Gets the raw division from the header - ticks per quarter note, unless the top bit is set (SMPTE)
+     */
+    public int getDivision() {
+        return division;
+    }
+
+    /**
+     * Gets the track chunks, in file order
+     */
+    public ArrayList<TrackChunk> getTrackChunks() {
+        return trackChunks;
+    }
+
+    /**
+     * Gets the total length of all the track chunks' data
+     */
+    public long getTotalTrackLength() {
+        long totalLength = 0;
+        for (TrackChunk trackChunk : trackChunks) {
+            totalLength += trackChunk.length;
+        }
+        return totalLength;
+    }
+
+    /**
+     * Where a single track's events are in the file
+     */
+    public static class TrackChunk {
+        /**
+         * The index of the track, counting only MTrk chunks
+         */
+        public final int trackIndex;
+
+        /**
+         * The offset of the first event, just after the chunk header
+         */
+        public final int dataOffset;
+
+        /**
+         * The length of the events, not including the chunk header
+         */
+        public final int length;
+
+        private TrackChunk(int trackIndex, int dataOffset, int length) {
+            this.trackIndex = trackIndex;
+            this.dataOffset = dataOffset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package MIDITools.IO;
+
+import javax.sound.midi.InvalidMidiDataException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes the events of a single track one at a time, straight from the file's bytes
+ * - Handles running status, meta events and sysex events
+ * - Nothing is held onto between events, so a track of any length can be read this way
+ */
+public class MIDIEventStreamReader {
+    private final ByteBuffer buffer;
+    private final int end;
+    private int position;
+    private long tick = 0;
+    private int runningStatus = -1;
+
+    /**
+     * @param buffer - The contents of the midi file (usually mapped rather than read in)
+     * @param trackChunk - The track to read
+     */
+    public MIDIEventStreamReader(ByteBuffer buffer, MIDIChunkTable.TrackChunk trackChunk) {
+        this.buffer = buffer;
+        this.position = trackChunk.dataOffset;
+        this.end = trackChunk.dataOffset + trackChunk.length;
+    }
+
+    /**
+     * Whether there are any events left in the track
+     */
+    public boolean hasNext() {
+        return position < end;
+    }
+
+    /**
+     * Reads the next event in the track
+     * @return The event
+     * @throws InvalidMidiDataException - if the track is corrupt or ends in the middle of an event
+     */
+    public StreamEvent next() throws InvalidMidiDataException {
+        tick += readVariableLengthQuantity();
+
+        int status = readByte();
+        if (status < 0x80) {
+            // Running status - this byte is actually the first data byte
+            if (runningStatus == -1) {
+                throw new InvalidMidiDataException("Data byte with no running status at byte " + (position - 1));
+            }
+            position--;
+            status = runningStatus;
+        }
+
+        if (status < StreamEvent.SYSEX_STATUS) {
+            runningStatus = status;
+            int data1 = readByte();
+            int data2 = StreamEvent.getDataLength(status & 0xF0) > 1 ? readByte() : 0;
+            return new StreamEvent(tick, status, data1, data2);
+        }
+
+        // Meta and sysex events cancel running status
+        runningStatus = -1;
+
+        int payloadStart = position;
+        if (status == StreamEvent.META_STATUS) {
+            readByte(); // The meta type
+        } else if (status != StreamEvent.SYSEX_STATUS && status != StreamEvent.SYSEX_ESCAPE_STATUS) {
+            throw new InvalidMidiDataException("Unexpected status " + status + " at byte " + (position - 1));
+        }
+
+        long dataLength = readVariableLengthQuantity();
+        if (position + dataLength > end) {
+            throw new InvalidMidiDataException("Event at byte " + payloadStart + " runs past the end of the track");
+        }
+        position += (int)dataLength;
+
+        return new StreamEvent(tick, status, buffer, payloadStart, position - payloadStart);
+    }
+
+    /**
+     * Gets the offset of the next byte to be read
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    private int readByte() throws InvalidMidiDataException {
+        if (position >= end) {
+            throw new InvalidMidiDataException("Track ends in the middle of an event");
+        }
+        return buffer.get(position++) & 0xFF;
+    }
+
+    /**
+     * Reads a variable length quantity - 7 bits per byte, with the top bit set on all but the last
+     */
+    private long readVariableLengthQuantity() throws InvalidMidiDataException {
+        long value = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = readByte();
+            value = (value << 7) | (b & 0x7F);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new InvalidMidiDataException("Variable length quantity longer than 4 bytes at byte " + position);
+    }
+}
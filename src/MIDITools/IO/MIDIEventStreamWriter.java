@@ -0,0 +1,144 @@
+package MIDITools.IO;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a standard midi file one event at a time
+ * - Each track's length is only known once it's done, so a placeholder is written first and
+ *   filled in afterward with a positional write
+ * - Channel messages use running status; meta and sysex events are written out exactly as they were read
+ */
+public class MIDIEventStreamWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private long trackLengthPosition = -1;
+    private long trackStartPosition;
+    private long lastTick;
+    private int runningStatus;
+
+    /**
+     * @param channel - The channel of the file to write to, positioned at its start
+     */
+    public MIDIEventStreamWriter(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Writes the MThd header chunk
+     * @param midiFileType - The midi file type (0, 1 or 2)
+     * @param numberOfTracks - The number of tracks that will be written
+     * @param division - The raw division, as it was in the original header
+     */
+    public void writeHeader(int midiFileType, int numberOfTracks, int division) throws IOException {
+        writeInt(0x4D546864); // MThd
+        writeInt(6);
+        writeShort(midiFileType);
+        writeShort(numberOfTracks);
+        writeShort(division);
+    }
+
+    /**
+     * Starts a new MTrk chunk, with a placeholder for its length
+     */
+    public void startTrack() throws IOException {
+        writeInt(0x4D54726B); // MTrk
+        trackLengthPosition = getPosition();
+        writeInt(0);
+        trackStartPosition = getPosition();
+        lastTick = 0;
+        runningStatus = -1;
+    }
+
+    /**
+     * Writes the next event of the track - events must be given in tick order
+     * @param event - The event to write
+     */
+    public void write(StreamEvent event) throws IOException {
+        writeVariableLengthQuantity(event.tick - lastTick);
+        lastTick = event.tick;
+
+        if (event.isChannelMessage()) {
+            if (event.status != runningStatus) {
+                writeByte(event.status);
+                runningStatus = event.status;
+            }
+            writeByte(event.data1);
+            if (StreamEvent.getDataLength(event.getCommand()) > 1) {
+                writeByte(event.data2);
+            }
+            return;
+        }
+
+        writeByte(event.status);
+        for (int i = 0; i < event.payloadLength; i++) {
+            writeByte(event.payloadBuffer.get(event.payloadOffset + i));
+        }
+        runningStatus = -1;
+    }
+
+    /**
+     * Ends the current track, filling in its length
+     */
+    public void endTrack() throws IOException {
+        long trackLength = getPosition() - trackStartPosition;
+        flush();
+
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        lengthBuffer.putInt((int)trackLength);
+        lengthBuffer.flip();
+        while (lengthBuffer.hasRemaining()) {
+            channel.write(lengthBuffer, trackLengthPosition + lengthBuffer.position());
+        }
+    }
+
+    /**
+     * Writes out anything still buffered
+     */
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private long getPosition() throws IOException {
+        return channel.position() + buffer.position();
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+        buffer.put((byte)b);
+    }
+
+    private void writeShort(int value) throws IOException {
+        writeByte(value >> 8);
+        writeByte(value);
+    }
+
+    private void writeInt(int value) throws IOException {
+        writeShort(value >> 16);
+        writeShort(value);
+    }
+
+    /**
+     * Writes a variable length quantity - 7 bits per byte, with the top bit set on all but the last
+     */
+    private void writeVariableLengthQuantity(long value) throws IOException {
+        int shift = 21;
+        while (shift > 0 && (value >> shift) == 0) {
+            shift -= 7;
+        }
+        for (; shift > 0; shift -= 7) {
+            writeByte((int)((value >> shift) & 0x7F) | 0x80);
+        }
+        writeByte((int)(value & 0x7F));
+    }
+}
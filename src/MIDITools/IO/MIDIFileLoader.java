@@ -0,0 +1,150 @@
+package MIDITools.IO;
+
+import javax.sound.midi.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.stream.IntStream;
+
+/**
+ * Loads a standard midi file into a Sequence, decoding its tracks at the same time
+ * - The chunk table says where every track starts before any event is decoded, so each MTrk
+ *   chunk is decoded into its own Track on a separate thread
+ * - A corrupt track doesn't stop the others from loading - it keeps the events before the problem,
+ *   and a warning says which track it was
+ *
+ * Used in place of MidiSystem.getSequence, which decodes one track after another.
+ */
+public class MIDIFileLoader {
+    /**
+     * Set in the division when the timing is SMPTE rather than ticks per quarter note
+     */
+    private static final int SMPTE_DIVISION_FLAG = 0x8000;
+
+    /**
+     * Files smaller than this decode their tracks one at a time - starting up the threads takes
+     * longer than decoding them, which matters most for the usual small midi
+     */
+    private static final int PARALLEL_SIZE_THRESHOLD = 64 * 1024;
+
+    /**
+     * Loads the given midi file
+     * @param file - The midi file
+     * @return The sequence
+     * @throws IOException - if the file can't be read
+     * @throws InvalidMidiDataException - if it isn't a standard midi file
+     */
+    public static Sequence load(File file) throws IOException, InvalidMidiDataException {
+        ArrayList<String> warnings = new ArrayList<>();
+        Sequence sequence = load(file, warnings);
+        for (String warning : warnings) {
+            System.out.println("WARNING: " + warning);
+        }
+        return sequence;
+    }
+
+    /**
+     * Loads the given midi file, collecting the warnings about corrupt tracks rather than showing them
+     * @param file - The midi file
+     * @param warnings - The list to add the warnings to, in track order
+     * @return The sequence
+     * @throws IOException - if the file can't be read
+     * @throws InvalidMidiDataException - if it isn't a standard midi file
+     */
+    public static Sequence load(File file, ArrayList<String> warnings) throws IOException, InvalidMidiDataException {
+        // Read in rather than mapped, since the meta and sysex messages keep using the buffer (see LazyMetaMessage),
+        // and a mapping would break (or keep the file locked) once the file is written over
+        return load(ByteBuffer.wrap(Files.readAllBytes(file.toPath())), warnings);
+    }
+
+    /**
+     * Loads the midi file in the given buffer
+     * @param buffer - The contents of the midi file, from its start
+     * @param warnings - The list to add the warnings about corrupt tracks to, in track order
+     * @return The sequence
+     * @throws InvalidMidiDataException - if it isn't a standard midi file
+     */
+    public static Sequence load(ByteBuffer buffer, ArrayList<String> warnings) throws InvalidMidiDataException {
+        MIDIChunkTable chunkTable = MIDIChunkTable.read(buffer);
+        Sequence sequence = createSequence(chunkTable.getDivision());
+
+        // Tracks are created up front, since the sequence itself isn't safe to add to from several threads
+        ArrayList<MIDIChunkTable.TrackChunk> trackChunks = chunkTable.getTrackChunks();
+        Track[] tracks = new Track[trackChunks.size()];
+        for (int i = 0; i < tracks.length; i++) {
+            tracks[i] = sequence.createTrack();
+        }
+
+        // Each track only sets its own index, so this is safe to do in parallel
+        String[] trackWarnings = new String[tracks.length];
+        IntStream trackIndexes = IntStream.range(0, tracks.length);
+        if (buffer.limit() >= PARALLEL_SIZE_THRESHOLD) {
+            trackIndexes = trackIndexes.parallel();
+        }
+        trackIndexes.forEach(i -> trackWarnings[i] = decodeTrack(buffer, trackChunks.get(i), tracks[i]));
+
+        // Collected afterward, so that they're in track order
+        for (String warning : trackWarnings) {
+            if (warning != null) {
+                warnings.add(warning);
+            }
+        }
+
+        return sequence;
+    }
+
+    /**
+     * Creates an empty sequence with the timing given by the header's division
+     * @param division - The raw division from the header
+     */
+    private static Sequence createSequence(int division) throws InvalidMidiDataException {
+        if ((division & SMPTE_DIVISION_FLAG) == 0) {
+            return new Sequence(Sequence.PPQ, division);
+        }
+
+        // The upper byte is the negative frames per second, and the lower byte is ticks per frame
+        int framesPerSecond = -(byte)(division >> 8);
+        float divisionType;
+        switch (framesPerSecond) {
+            case 24:
+                divisionType = Sequence.SMPTE_24;
+                break;
+            case 25:
+                divisionType = Sequence.SMPTE_25;
+                break;
+            case 29:
+                divisionType = Sequence.SMPTE_30DROP;
+                break;
+            case 30:
+                divisionType = Sequence.SMPTE_30;
+                break;
+            default:
+                throw new InvalidMidiDataException("Unknown SMPTE frames per second " + framesPerSecond);
+        }
+        return new Sequence(divisionType, division & 0xFF);
+    }
+
+    /**
+     * Decodes every event of a track chunk into the given track
+     * - Doesn't touch anything but the given track, so this can run for several tracks at once
+     * @param buffer - The contents of the midi file
+     * @param trackChunk - The track chunk to decode
+     * @param track - The track to add the events to
+     * @return A warning if the track is corrupt; null if it decoded fine
+     */
+    private static String decodeTrack(ByteBuffer buffer, MIDIChunkTable.TrackChunk trackChunk, Track track) {
+        MIDIEventStreamReader reader = new MIDIEventStreamReader(buffer, trackChunk);
+        try {
+            while (reader.hasNext()) {
+                StreamEvent event = reader.next();
+                track.add(new MidiEvent(event.toMidiMessage(), event.tick));
+            }
+            return null;
+        } catch (InvalidMidiDataException | RuntimeException e) {
+            return "Track " + (trackChunk.trackIndex + 1) + " is corrupt at byte " + reader.getPosition() +
+                " (" + e.getMessage() + ") - only the events before it were loaded.";
+        }
+    }
+}
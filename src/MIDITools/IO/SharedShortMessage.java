@@ -0,0 +1,96 @@
+package MIDITools.IO;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A short message whose bytes are shared with every other message with the same status and data
+ * - Midis are full of identical messages (the same vibrato depth, the same RPN block on every channel),
+ *   so each distinct (status, data1, data2) only ever gets one byte array, kept in a pool
+ * - The shared bytes are never written to: setting the message points it at the pooled bytes of the
+ *   new value instead, so changing one message never changes another
+ *
+ * Use it anywhere a ShortMessage would be created - it acts exactly the same.
+ */
+public class SharedShortMessage extends ShortMessage {
+    private static final int MAX_DATA_VALUE = 127;
+
+    /**
+     * The pooled bytes, indexed by the status (without its top bit), then by data1 and data2 packed together
+     * - Each status's table is only created the first time it's used
+     */
+    private static final AtomicReferenceArray<AtomicReferenceArray<byte[]>> POOL = new AtomicReferenceArray<>(128);
+    private static final int TABLE_SIZE = (MAX_DATA_VALUE + 1) * (MAX_DATA_VALUE + 1);
+
+    /**
+     * Creates the same default message as ShortMessage (a note on for middle C at full velocity)
+     */
+    public SharedShortMessage() {
+        super(getSharedData(NOTE_ON, 64, 127));
+    }
+
+    public SharedShortMessage(int status, int data1, int data2) throws InvalidMidiDataException {
+        super(null);
+        setMessage(status, data1, data2);
+    }
+
+    public SharedShortMessage(int command, int channel, int data1, int data2) throws InvalidMidiDataException {
+        super(null);
+        setMessage(command, channel, data1, data2);
+    }
+
+    private SharedShortMessage(byte[] data, int length) {
+        super(data);
+        this.length = length;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Every other setMessage ends up here, so this is the only place the bytes change
+     */
+    @Override
+    public void setMessage(int status, int data1, int data2) throws InvalidMidiDataException {
+        int dataLength = getDataLength(status);
+        if (dataLength > 0 && (data1 < 0 || data1 > MAX_DATA_VALUE)) {
+            throw new InvalidMidiDataException("data1 out of range: " + data1);
+        }
+        if (dataLength > 1 && (data2 < 0 || data2 > MAX_DATA_VALUE)) {
+            throw new InvalidMidiDataException("data2 out of range: " + data2);
+        }
+
+        // Unused data bytes are always 0, so messages that only differ there still share
+        data = getSharedData(status, dataLength > 0 ? data1 : 0, dataLength > 1 ? data2 : 0);
+        length = dataLength + 1;
+    }
+
+    @Override
+    public Object clone() {
+        return new SharedShortMessage(data, length);
+    }
+
+    /**
+     * Gets the pooled bytes for the given message, adding them if they aren't there yet
+     * - Safe to call from several threads - if two add the same message at once, one of them wins
+     * @param status - The status byte
+     * @param data1 - The first data byte (0-127)
+     * @param data2 - The second data byte (0-127)
+     * @return The shared bytes - these must never be written to
+     */
+    private static byte[] getSharedData(int status, int data1, int data2) {
+        int statusIndex = status & 0x7F;
+        AtomicReferenceArray<byte[]> table = POOL.get(statusIndex);
+        if (table == null) {
+            POOL.compareAndSet(statusIndex, null, new AtomicReferenceArray<>(TABLE_SIZE));
+            table = POOL.get(statusIndex);
+        }
+
+        int dataIndex = (data1 << 7) | data2;
+        byte[] sharedData = table.get(dataIndex);
+        if (sharedData == null) {
+            table.compareAndSet(dataIndex, null, new byte[] { (byte)status, (byte)data1, (byte)data2 });
+            sharedData = table.get(dataIndex);
+        }
+        return sharedData;
+    }
+}
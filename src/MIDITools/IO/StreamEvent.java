@@ -0,0 +1,134 @@
+package MIDITools.IO;
+
+import javax.sound.midi.*;
+import java.nio.ByteBuffer;
+
+/**
+ * A single event read from a track, for the streaming mode and the loader (see MIDIFileLoader)
+ * - Channel messages keep their status and data bytes, like a short message
+ * - Meta and sysex events point at everything after their status byte in the buffer they were read from,
+ *   so they are written back out byte for byte without being copied
+ *
+ * Events are mutable so that stages can change them in place before passing them on.
+ */
+public class StreamEvent {
+    public static final int META_STATUS = 0xFF;
+    public static final int SYSEX_STATUS = 0xF0;
+    public static final int SYSEX_ESCAPE_STATUS = 0xF7;
+
+    private static final int END_OF_TRACK_TYPE = 0x2F;
+
+    /**
+     * The absolute tick of the event
+     */
+    public long tick;
+
+    /**
+     * The full status byte (command and channel for channel messages)
+     */
+    public int status;
+
+    public int data1;
+    public int data2;
+
+    /**
+     * For meta and sysex events, the buffer holding the bytes after the status byte (meta type, length and data)
+     * Null for channel messages
+     */
+    public ByteBuffer payloadBuffer;
+    public int payloadOffset;
+    public int payloadLength;
+
+    /**
+     * Creates a channel message event
+     */
+    public StreamEvent(long tick, int status, int data1, int data2) {
+        this.tick = tick;
+        this.status = status;
+        this.data1 = data1;
+        this.data2 = data2;
+    }
+
+    /**
+     * Creates a meta or sysex event
+     */
+    public StreamEvent(long tick, int status, ByteBuffer payloadBuffer, int payloadOffset, int payloadLength) {
+        this.tick = tick;
+        this.status = status;
+        this.payloadBuffer = payloadBuffer;
+        this.payloadOffset = payloadOffset;
+        this.payloadLength = payloadLength;
+    }
+
+    /**
+     * Whether this is a channel message (note, control change, pitch bend, etc.)
+     */
+    public boolean isChannelMessage() {
+        return status < SYSEX_STATUS;
+    }
+
+    /**
+     * Gets the command, without the channel - only valid for channel messages
+     */
+    public int getCommand() {
+        return status & 0xF0;
+    }
+
+    /**
+     * Gets the 0-indexed channel - only valid for channel messages
+     */
+    public int getChannel() {
+        return status & 0x0F;
+    }
+
+    /**
+     * Sets the message, the same way a short message would be set
+     */
+    public void setShortMessage(int command, int channel, int data1, int data2) {
+        this.status = (command & 0xF0) | (channel & 0x0F);
+        this.data1 = data1;
+        this.data2 = data2;
+    }
+
+    /**
+     * Gets the number of data bytes a channel message with the given command has
+     */
+    public static int getDataLength(int command) {
+        return command == 0xC0 || command == 0xD0
+            ? 1 // Program change and channel pressure
+            : 2;
+    }
+
+    /**
+     * Whether this is the end of track meta event
+     */
+    public boolean isEndOfTrack() {
+        return status == META_STATUS && payloadLength > 0 && payloadBuffer.get(payloadOffset) == END_OF_TRACK_TYPE;
+    }
+
+    /**
+     * Converts the event into the equivalent java midi message
+     * - Meta and sysex messages keep pointing at the buffer rather than copying their data out
+     *   (see LazyMetaMessage), so the buffer must outlive them
+     * @return A SharedShortMessage, LazyMetaMessage or LazySysexMessage
+     * @throws InvalidMidiDataException - if the event's bytes don't make a valid message
+     */
+    public MidiMessage toMidiMessage() throws InvalidMidiDataException {
+        if (isChannelMessage()) {
+            return new SharedShortMessage(status, data1, data2);
+        }
+
+        // Meta events have their type before the length; sysex events start with the length
+        int position = status == META_STATUS ? payloadOffset + 1 : payloadOffset;
+        int dataLength = 0;
+        int b;
+        do {
+            b = payloadBuffer.get(position++) & 0xFF;
+            dataLength = (dataLength << 7) | (b & 0x7F);
+        } while ((b & 0x80) != 0);
+
+        return status == META_STATUS
+            ? new LazyMetaMessage(payloadBuffer, payloadBuffer.get(payloadOffset) & 0xFF, position, dataLength)
+            : new LazySysexMessage(payloadBuffer, status, position, dataLength);
+    }
+}
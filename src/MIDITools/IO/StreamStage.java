@@ -0,0 +1,30 @@
+package MIDITools.IO;
+
+import java.util.function.Consumer;
+
+/**
+ * A transformation that runs on a stream of events rather than a whole sequence (see StreamingRunner)
+ * - Events come in one track at a time, in tick order, and must go out in tick order too
+ * - A stage may hold events back for a while (i.e. to look ahead), but only a bounded amount
+ */
+public interface StreamStage {
+    /**
+     * Takes the next event of the track, passing on any events that are ready
+     * @param event - The event
+     * @param output - Where to pass events on to
+     */
+    void processEvent(StreamEvent event, Consumer<StreamEvent> output);
+
+    /**
+     * Called at the end of each track, to pass on anything still being held back
+     * @param output - Where to pass events on to
+     */
+    default void endTrack(Consumer<StreamEvent> output) {
+    }
+
+    /**
+     * Called once every track is done, to show a summary of what changed
+     */
+    default void endStream() {
+    }
+}
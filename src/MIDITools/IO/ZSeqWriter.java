@@ -0,0 +1,558 @@
+package MIDITools.IO;
+
+import MIDITools.Adjuster.ChannelEventIterator;
+import MIDITools.Adjuster.ChannelLanes;
+import MIDITools.Adjuster.MIDIAdjuster;
+import MIDITools.Adjuster.PitchBendAdjuster;
+
+import javax.sound.midi.*;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+
+/**
+ * Writes a sequence straight to the Zelda64 (Ocarina of Time) sequence format, instead of a midi
+ * - The file is a sequence script that starts a script for each channel, which each start up to
+ *   4 layer scripts that play the notes - every script is a list of commands with delays between them
+ * - Only the commands needed to play the midi back are used (see the opcodes below): tempo, channel
+ *   volume, pan, reverb, vibrato depth, pitch bend, instrument and notes
+ * - Each channel's notes are spread over its layers, since a layer only plays one note at a time
+ *
+ * Run -p first, so that pitch bends are already scaled for the game's range of an octave.
+ */
+public class ZSeqWriter {
+    public static final String OUT_FILE_SUFFIX = "-out.zseq";
+
+    /**
+     * Sequences always run at 48 ticks per beat
+     */
+    private static final int TICKS_PER_BEAT = 48;
+    private static final int MAX_LAYERS = 4;
+
+    /**
+     * Notes are 0-63 from this midi note (A0) up
+     */
+    private static final int LOWEST_NOTE = 21;
+    private static final int NUMBER_OF_NOTES = 64;
+
+    /**
+     * The largest delay that fits in a variable length delay, and the largest offset a pointer can hold
+     */
+    private static final int MAX_DELAY = 0x7FFF;
+    private static final int MAX_OFFSET = 0xFFFF;
+
+    private static final int TEMPO_META_TYPE = 0x51;
+    private static final int DEFAULT_BPM = 120;
+    private static final int MAX_BPM = 255;
+
+    //<editor-fold desc="Opcodes">
+
+    private static final int END = 0xFF;
+    private static final int DELAY = 0xFD;
+
+    private static final int SEQ_INIT_CHANNELS = 0xD7;
+    private static final int SEQ_VOLUME = 0xDB;
+    private static final int SEQ_TEMPO = 0xDD;
+    private static final int SEQ_LOAD_CHANNEL = 0x90;
+
+    private static final int CHANNEL_LARGE_NOTES = 0xC4;
+    private static final int CHANNEL_INSTRUMENT = 0xC1;
+    private static final int CHANNEL_VOLUME = 0xDF;
+    private static final int CHANNEL_PAN = 0xDD;
+    private static final int CHANNEL_REVERB = 0xD4;
+    private static final int CHANNEL_VIBRATO_DEPTH = 0xD8;
+    private static final int CHANNEL_PITCH_BEND = 0xD3;
+    private static final int CHANNEL_LOAD_LAYER = 0x90;
+
+    /**
+     * A note with a delay, velocity and gate time - the note number is added to it
+     */
+    private static final int LAYER_NOTE = 0x00;
+    private static final int LAYER_REST = 0xC0;
+
+    //</editor-fold>
+
+    private static final int VOLUME_EVENT = 7;
+    private static final int PAN_EVENT = 10;
+    private static final int VIBRATO_DEPTH_EVENT = 77;
+    private static final int REVERB_EVENT = 91;
+
+    /**
+     * Counts of what couldn't be written, to warn about afterward
+     */
+    private int eventsSkipped = 0;
+    private final boolean[] controllersSkipped = new boolean[MIDIAdjuster.MAX_DATA_VALUE + 1];
+    private int notesOutOfRange = 0;
+    private int notesWithoutLayer = 0;
+    private int notesShortened = 0;
+
+    /**
+     * Writes the sequence
+     * @param sequence - The sequence to write
+     * @param outFileName - The name of the file to write to
+     * @return True if it was written; false if it couldn't be
+     */
+    public boolean write(Sequence sequence, String outFileName) {
+        if (sequence.getDivisionType() != Sequence.PPQ) {
+            System.out.println("ERROR: Only midis timed in beats can be written as sequences, but this one is timed in frames.");
+            return false;
+        }
+
+        int resolution = sequence.getResolution();
+        long endTick = toSequenceTick(sequence.getTickLength(), resolution);
+
+        ArrayList<Script> channelScripts = new ArrayList<>();
+        ArrayList<Script> layerScripts = new ArrayList<>();
+        int enabledChannels = 0;
+        Script sequenceScript = new Script();
+        for (int channel = 0; channel < ChannelLanes.NUMBER_OF_CHANNELS; channel++) {
+            Script channelScript = createChannelScript(sequence, channel, resolution, endTick, layerScripts);
+            if (channelScript != null) {
+                enabledChannels |= 1 << channel;
+                channelScripts.add(channelScript);
+            }
+        }
+
+        sequenceScript.writeByte(SEQ_INIT_CHANNELS);
+        sequenceScript.writeShort(enabledChannels);
+        sequenceScript.writeByte(SEQ_VOLUME);
+        sequenceScript.writeByte(MIDIAdjuster.MAX_DATA_VALUE);
+        int channelIndex = 0;
+        for (int channel = 0; channel < ChannelLanes.NUMBER_OF_CHANNELS; channel++) {
+            if ((enabledChannels & (1 << channel)) != 0) {
+                sequenceScript.writePointer(SEQ_LOAD_CHANNEL | channel, channelScripts.get(channelIndex++));
+            }
+        }
+        writeTempoChanges(sequence, sequenceScript, resolution, endTick);
+
+        ArrayList<Script> scripts = new ArrayList<>();
+        scripts.add(sequenceScript);
+        scripts.addAll(channelScripts);
+        scripts.addAll(layerScripts);
+        byte[] bytes = link(scripts);
+        if (bytes == null) {
+            return false;
+        }
+
+        try (FileOutputStream out = new FileOutputStream(outFileName)) {
+            out.write(bytes);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        showWarnings();
+        System.out.println();
+        System.out.println("Sequence written to: " + outFileName + " (" + bytes.length + " bytes: " +
+            sequenceScript.size() + " sequence, " + getTotalSize(channelScripts) + " channels, " + getTotalSize(layerScripts) + " notes)");
+        System.out.println();
+        return true;
+    }
+
+    //<editor-fold desc="Scripts">
+
+    /**
+     * Writes the tempo changes into the sequence script, then waits for the song to end
+     * - Until the first tempo event, the midi default of 120 bpm is used
+     */
+    private static void writeTempoChanges(Sequence sequence, Script sequenceScript, int resolution, long endTick) {
+        ArrayList<MidiEvent> tempoEvents = new ArrayList<>();
+        for (Track track : sequence.getTracks()) {
+            for (int i = 0; i < track.size(); i++) {
+                MidiEvent e = track.get(i);
+                if (e.getMessage() instanceof MetaMessage && ((MetaMessage) e.getMessage()).getType() == TEMPO_META_TYPE) {
+                    tempoEvents.add(e);
+                }
+            }
+        }
+        tempoEvents.sort(Comparator.comparingLong(MidiEvent::getTick));
+
+        // A later tempo on the same tick replaces the earlier one, and tempos that don't change aren't written
+        ArrayList<long[]> tempoChanges = new ArrayList<>();
+        tempoChanges.add(new long[] { 0, DEFAULT_BPM });
+        for (MidiEvent tempoEvent : tempoEvents) {
+            byte[] data = ((MetaMessage) tempoEvent.getMessage()).getData();
+            if (data.length < 3) {
+                continue;
+            }
+            long microsecondsPerBeat = ((data[0] & 0xFF) << 16) | ((data[1] & 0xFF) << 8) | (data[2] & 0xFF);
+            if (microsecondsPerBeat == 0) {
+                continue;
+            }
+
+            long tick = toSequenceTick(tempoEvent.getTick(), resolution);
+            long bpm = Math.max(1, Math.min(MAX_BPM, Math.round(60000000.0 / microsecondsPerBeat)));
+            long[] lastChange = tempoChanges.get(tempoChanges.size() - 1);
+            if (lastChange[0] == tick) {
+                lastChange[1] = bpm;
+            } else {
+                tempoChanges.add(new long[] { tick, bpm });
+            }
+        }
+
+        long currentTick = 0;
+        long currentBpm = -1;
+        for (long[] tempoChange : tempoChanges) {
+            if (tempoChange[1] == currentBpm) {
+                continue;
+            }
+
+            sequenceScript.writeDelay(DELAY, tempoChange[0] - currentTick);
+            sequenceScript.writeByte(SEQ_TEMPO);
+            sequenceScript.writeByte((int) tempoChange[1]);
+            currentTick = tempoChange[0];
+            currentBpm = tempoChange[1];
+        }
+
+        sequenceScript.writeDelay(DELAY, endTick - currentTick);
+        sequenceScript.writeByte(END);
+    }
+
+    /**
+     * Creates the script for a channel, along with the scripts of its layers
+     * @param sequence - The sequence
+     * @param channel - The 0-indexed channel
+     * @param resolution - The ticks per beat of the midi
+     * @param endTick - The tick the song ends on, in sequence ticks
+     * @param layerScripts - The list to add the layer scripts to
+     * @return The channel script; null if the channel has no events
+     */
+    private Script createChannelScript(Sequence sequence, int channel, int resolution, long endTick, ArrayList<Script> layerScripts) {
+        ArrayList<TimedCommand> commands = new ArrayList<>();
+        ArrayList<Note> notes = new ArrayList<>();
+        ArrayList<ArrayList<Note>> heldNotes = new ArrayList<>();
+        for (int i = 0; i <= MIDIAdjuster.MAX_DATA_VALUE; i++) {
+            heldNotes.add(new ArrayList<>());
+        }
+
+        ChannelEventIterator channelEvents = new ChannelEventIterator(sequence, channel);
+        while (channelEvents.hasNext()) {
+            ChannelEventIterator.ChannelEvent channelEvent = channelEvents.next();
+            ShortMessage shortMsg = channelEvent.getShortMessage();
+            long tick = toSequenceTick(channelEvent.event.getTick(), resolution);
+            int command = shortMsg.getCommand();
+            int data1 = shortMsg.getData1();
+            int data2 = shortMsg.getData2();
+
+            if (command == ShortMessage.NOTE_ON && data2 > 0) {
+                Note note = new Note(tick, data1, data2);
+                notes.add(note);
+                heldNotes.get(data1).add(note);
+            } else if (command == ShortMessage.NOTE_ON || command == ShortMessage.NOTE_OFF) {
+                // The earliest held note of the key is the one that ends
+                ArrayList<Note> held = heldNotes.get(data1);
+                if (!held.isEmpty()) {
+                    held.remove(0).endTick = tick;
+                }
+            } else {
+                TimedCommand timedCommand = getChannelCommand(tick, shortMsg);
+                if (timedCommand == null) {
+                    eventsSkipped++;
+                    if (command == ShortMessage.CONTROL_CHANGE) {
+                        controllersSkipped[data1] = true;
+                    }
+                } else {
+                    commands.add(timedCommand);
+                }
+            }
+        }
+
+        if (commands.isEmpty() && notes.isEmpty()) {
+            return null;
+        }
+
+        // Notes that never end play until the end of the song
+        for (Note note : notes) {
+            if (note.endTick < 0) {
+                note.endTick = Math.max(endTick, note.startTick);
+            }
+        }
+
+        Script channelScript = new Script();
+        channelScript.writeByte(CHANNEL_LARGE_NOTES);
+        int commandIndex = 0;
+        while (commandIndex < commands.size() && commands.get(commandIndex).tick == 0) {
+            channelScript.writeBytes(commands.get(commandIndex++).bytes);
+        }
+
+        ArrayList<ArrayList<Note>> layers = assignLayers(notes);
+        for (int layer = 0; layer < layers.size(); layer++) {
+            Script layerScript = createLayerScript(layers.get(layer));
+            layerScripts.add(layerScript);
+            channelScript.writePointer(CHANNEL_LOAD_LAYER | layer, layerScript);
+        }
+
+        long currentTick = 0;
+        for (; commandIndex < commands.size(); commandIndex++) {
+            TimedCommand timedCommand = commands.get(commandIndex);
+            channelScript.writeDelay(DELAY, timedCommand.tick - currentTick);
+            currentTick = timedCommand.tick;
+            channelScript.writeBytes(timedCommand.bytes);
+        }
+
+        // The channel has to outlast its layers, or they'd be cut off
+        channelScript.writeDelay(DELAY, endTick - currentTick);
+        channelScript.writeByte(END);
+        return channelScript;
+    }
+
+    /**
+     * Gets the channel command for a midi event
+     * @param tick - The tick of the event, in sequence ticks
+     * @param shortMsg - The message
+     * @return The command; null if there's no command for it
+     */
+    private static TimedCommand getChannelCommand(long tick, ShortMessage shortMsg) {
+        int data1 = shortMsg.getData1();
+        int data2 = shortMsg.getData2();
+        switch (shortMsg.getCommand()) {
+            case ShortMessage.PROGRAM_CHANGE:
+                return new TimedCommand(tick, CHANNEL_INSTRUMENT, data1);
+            case ShortMessage.PITCH_BEND:
+                int bend = (PitchBendAdjuster.getPitchBendValue(data1, data2) - PitchBendAdjuster.BASE_VALUE) >> 6;
+                return new TimedCommand(tick, CHANNEL_PITCH_BEND, bend & 0xFF);
+            case ShortMessage.CONTROL_CHANGE:
+                switch (data1) {
+                    case VOLUME_EVENT:
+                        return new TimedCommand(tick, CHANNEL_VOLUME, data2);
+                    case PAN_EVENT:
+                        return new TimedCommand(tick, CHANNEL_PAN, data2);
+                    case REVERB_EVENT:
+                        return new TimedCommand(tick, CHANNEL_REVERB, data2);
+                    case VIBRATO_DEPTH_EVENT:
+                        return new TimedCommand(tick, CHANNEL_VIBRATO_DEPTH, data2);
+                    default:
+                        return null;
+                }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Spreads the notes over as few layers as possible, each only playing one note at a time
+     * - Notes that can't be played, or that don't fit in any layer, are skipped and counted
+     * @param notes - The notes, in the order they start
+     * @return The notes of each layer, in the order they start
+     */
+    private ArrayList<ArrayList<Note>> assignLayers(ArrayList<Note> notes) {
+        ArrayList<ArrayList<Note>> layers = new ArrayList<>();
+        ArrayList<Long> layerEndTicks = new ArrayList<>();
+        for (Note note : notes) {
+            if (note.key < LOWEST_NOTE || note.key >= LOWEST_NOTE + NUMBER_OF_NOTES) {
+                notesOutOfRange++;
+                continue;
+            }
+
+            // Notes too short to last a sequence tick still get one
+            if (note.endTick <= note.startTick) {
+                note.endTick = note.startTick + 1;
+            }
+            if (note.endTick - note.startTick > MAX_DELAY) {
+                note.endTick = note.startTick + MAX_DELAY;
+                notesShortened++;
+            }
+
+            int layer = 0;
+            while (layer < layers.size() && layerEndTicks.get(layer) > note.startTick) {
+                layer++;
+            }
+            if (layer == MAX_LAYERS) {
+                notesWithoutLayer++;
+                continue;
+            }
+
+            if (layer == layers.size()) {
+                layers.add(new ArrayList<>());
+                layerEndTicks.add(0L);
+            }
+            layers.get(layer).add(note);
+            layerEndTicks.set(layer, note.endTick);
+        }
+        return layers;
+    }
+
+    /**
+     * Creates the script for a layer - rests and notes, one after the other
+     * @param notes - The notes of the layer, in order, none of them overlapping
+     */
+    private static Script createLayerScript(ArrayList<Note> notes) {
+        Script layerScript = new Script();
+        long currentTick = 0;
+        for (Note note : notes) {
+            layerScript.writeDelay(LAYER_REST, note.startTick - currentTick);
+
+            // A gate time of 0 holds the note for its whole delay
+            layerScript.writeByte(LAYER_NOTE + note.key - LOWEST_NOTE);
+            layerScript.writeVariableLength(note.endTick - note.startTick);
+            layerScript.writeByte(note.velocity);
+            layerScript.writeByte(0);
+            currentTick = note.endTick;
+        }
+        layerScript.writeByte(END);
+        return layerScript;
+    }
+
+    /**
+     * Lays the scripts out one after the other, and fills in the pointers between them
+     * @param scripts - The scripts, in the order to lay them out
+     * @return The bytes of the file; null if it's too big for the pointers to reach
+     */
+    private static byte[] link(ArrayList<Script> scripts) {
+        int offset = 0;
+        for (Script script : scripts) {
+            script.offset = offset;
+            offset += script.size();
+        }
+
+        if (offset - 1 > MAX_OFFSET) {
+            System.out.println("ERROR: The sequence would be " + offset + " bytes, but sequences can only be up to " + (MAX_OFFSET + 1) + " bytes.");
+            return null;
+        }
+
+        byte[] bytes = new byte[offset];
+        for (Script script : scripts) {
+            byte[] scriptBytes = script.bytes.toByteArray();
+            for (int i = 0; i < script.pointerPositions.size(); i++) {
+                int targetOffset = script.pointerTargets.get(i).offset;
+                int position = script.pointerPositions.get(i);
+                scriptBytes[position] = (byte) (targetOffset >> 8);
+                scriptBytes[position + 1] = (byte) targetOffset;
+            }
+            System.arraycopy(scriptBytes, 0, bytes, script.offset, scriptBytes.length);
+        }
+        return bytes;
+    }
+
+    //</editor-fold>
+
+    private static long toSequenceTick(long tick, int resolution) {
+        return (tick * TICKS_PER_BEAT + resolution / 2) / resolution;
+    }
+
+    private static int getTotalSize(ArrayList<Script> scripts) {
+        int size = 0;
+        for (Script script : scripts) {
+            size += script.size();
+        }
+        return size;
+    }
+
+    private void showWarnings() {
+        if (eventsSkipped > 0) {
+            ArrayList<String> controllers = new ArrayList<>();
+            for (int i = 0; i < controllersSkipped.length; i++) {
+                if (controllersSkipped[i]) {
+                    controllers.add(String.valueOf(i));
+                }
+            }
+            String controllersString = controllers.isEmpty()
+                ? ""
+                : " (including events " + String.join(", ", controllers) + ")";
+            System.out.println("WARNING: " + eventsSkipped + " events have no sequence command" + controllersString + ", so they were left out.");
+        }
+        if (notesOutOfRange > 0) {
+            System.out.println("WARNING: " + notesOutOfRange + " notes are outside of what a sequence can play (midi notes " +
+                LOWEST_NOTE + "-" + (LOWEST_NOTE + NUMBER_OF_NOTES - 1) + "), so they were left out.");
+        }
+        if (notesWithoutLayer > 0) {
+            System.out.println("WARNING: " + notesWithoutLayer + " notes play while " + MAX_LAYERS + " others are already playing on their channel, so they were left out.");
+        }
+        if (notesShortened > 0) {
+            System.out.println("WARNING: " + notesShortened + " notes are longer than a sequence note can be, so they were shortened.");
+        }
+    }
+
+    /**
+     * The commands of a script, with placeholders for the pointers to other scripts until they're linked
+     */
+    private static class Script {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final ArrayList<Integer> pointerPositions = new ArrayList<>();
+        private final ArrayList<Script> pointerTargets = new ArrayList<>();
+        private int offset;
+
+        private int size() {
+            return bytes.size();
+        }
+
+        private void writeByte(int value) {
+            bytes.write(value);
+        }
+
+        private void writeBytes(byte[] values) {
+            bytes.write(values, 0, values.length);
+        }
+
+        private void writeShort(int value) {
+            bytes.write(value >> 8);
+            bytes.write(value);
+        }
+
+        /**
+         * Writes a delay of 1 or 2 bytes - the top bit of the first byte says whether there's a second
+         */
+        private void writeVariableLength(long value) {
+            if (value < 0x80) {
+                bytes.write((int) value);
+            } else {
+                writeShort(0x8000 | (int) value);
+            }
+        }
+
+        /**
+         * Writes as many of the given delay command as it takes to wait the given number of ticks
+         * @param opcode - The delay command (the layer and the other scripts use different ones)
+         * @param ticks - The ticks to wait - nothing is written for 0
+         */
+        private void writeDelay(int opcode, long ticks) {
+            while (ticks > 0) {
+                long delay = Math.min(ticks, MAX_DELAY);
+                writeByte(opcode);
+                writeVariableLength(delay);
+                ticks -= delay;
+            }
+        }
+
+        /**
+         * Writes a command that points to another script - the offset is filled in when linked
+         */
+        private void writePointer(int opcode, Script target) {
+            writeByte(opcode);
+            pointerPositions.add(size());
+            pointerTargets.add(target);
+            writeShort(0);
+        }
+    }
+
+    /**
+     * A channel command and the sequence tick it runs on
+     */
+    private static class TimedCommand {
+        private final long tick;
+        private final byte[] bytes;
+
+        private TimedCommand(long tick, int opcode, int value) {
+            this.tick = tick;
+            this.bytes = new byte[] { (byte) opcode, (byte) value };
+        }
+    }
+
+    /**
+     * A note, in sequence ticks - the end is -1 until its note off is found
+     */
+    private static class Note {
+        private final long startTick;
+        private final int key;
+        private final int velocity;
+        private long endTick = -1;
+
+        private Note(long startTick, int key, int velocity) {
+            this.startTick = startTick;
+            this.key = key;
+            this.velocity = velocity;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package MIDITools;
+
+import javax.sound.midi.Sequence;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+
+/**
+ * Loads a midi once, then reads transformations from the console line by line
+ * - A line of flags (i.e. -p 3 -c pitch-bend 16) runs those transformations on the current state
+ * - undo/redo move through the snapshots taken after each line
+ * - save writes the current state out, to the usual -out.mid file or to the given filename
+ *
+ * A snapshot is taken after every line, sharing unchanged tracks and events with the one before it
+ * (see SequenceSnapshot), so keeping a long history doesn't mean keeping a full copy per step.
+ */
+public class InteractiveSession {
+    /**
+     * The most snapshots to keep - the oldest ones are dropped past this
+     */
+    private static final int MAX_HISTORY = 100;
+
+    private static final String PROMPT = "> ";
+
+    private final String midiFileName;
+    private final File midiFile;
+
+    /**
+     * The sequence the transformations run on - always matches the snapshot at historyIndex
+     */
+    private Sequence sequence;
+
+    private final ArrayList<SequenceSnapshot> history = new ArrayList<>();
+    private final ArrayList<String> historyDescriptions = new ArrayList<>();
+    private int historyIndex = 0;
+
+    public InteractiveSession(String midiFileName, File midiFile, Sequence sequence) {
+        this.midiFileName = midiFileName;
+        this.midiFile = midiFile;
+        this.sequence = sequence;
+
+        history.add(SequenceSnapshot.of(sequence, null));
+        historyDescriptions.add("(loaded " + midiFileName + ")");
+    }
+
+    /**
+     * Runs the session until the user quits or the console input ends
+     */
+    public void run() {
+        System.out.println("Loaded " + midiFileName + ". Enter transformations, or: undo, redo, save [filename], history, quit");
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+        while (true) {
+            System.out.print(PROMPT);
+
+            String line;
+            try {
+                line = reader.readLine();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            if (line == null) {
+                return;
+            }
+
+            String[] args = line.trim().split("\\s+");
+            String command = args[0];
+            switch (command) {
+                case "":
+                    break;
+                case "undo":
+                    undo();
+                    break;
+                case "redo":
+                    redo();
+                    break;
+                case "save":
+                    save(args.length > 1 ? args[1] : null);
+                    break;
+                case "history":
+                    showHistory();
+                    break;
+                case "quit":
+                case "exit":
+                    return;
+                default:
+                    runTransformations(args, line.trim());
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Runs the given transformations and takes a snapshot of the result
+     * - If they fail, the sequence is put back to how it was before the line was run
+     * @param args - The transformation flags and their parameters
+     * @param description - What to show for this step in the history
+     */
+    private void runTransformations(String[] args, String description) {
+        boolean succeeded;
+        try {
+            succeeded = MIDITools.processTransformations(args, 0, sequence);
+        } catch (RuntimeException e) {
+            System.out.println("ERROR: " + e.getMessage());
+            succeeded = false;
+        }
+
+        // The failed transformations may have changed any track, so nothing is reused from the sequence
+        if (!succeeded) {
+            sequence = history.get(historyIndex).toSequence();
+            System.out.println("Nothing was changed.");
+            return;
+        }
+
+        // Anything that was undone can't be redone anymore
+        while (history.size() > historyIndex + 1) {
+            history.remove(history.size() - 1);
+            historyDescriptions.remove(historyDescriptions.size() - 1);
+        }
+
+        SequenceSnapshot previous = history.get(historyIndex);
+        SequenceSnapshot snapshot = SequenceSnapshot.of(sequence, previous);
+        history.add(snapshot);
+        historyDescriptions.add(description);
+        historyIndex++;
+
+        if (history.size() > MAX_HISTORY) {
+            history.remove(0);
+            historyDescriptions.remove(0);
+            historyIndex--;
+        }
+
+        if (MIDITools.verboseLogging) {
+            System.out.println("Snapshot shares " + snapshot.getNumberOfSharedTracks(previous) + " of "
+                + snapshot.getNumberOfTracks() + " tracks with the previous one.");
+        }
+    }
+
+    /**
+     * Goes back to the snapshot before the current one
+     */
+    private void undo() {
+        if (historyIndex == 0) {
+            System.out.println("Nothing to undo.");
+            return;
+        }
+
+        System.out.println("Undid: " + historyDescriptions.get(historyIndex));
+        historyIndex--;
+        sequence = history.get(historyIndex).toSequence(sequence, history.get(historyIndex + 1));
+    }
+
+    /**
+     * Goes forward to the snapshot after the current one
+     */
+    private void redo() {
+        if (historyIndex + 1 >= history.size()) {
+            System.out.println("Nothing to redo.");
+            return;
+        }
+
+        historyIndex++;
+        sequence = history.get(historyIndex).toSequence(sequence, history.get(historyIndex - 1));
+        System.out.println("Redid: " + historyDescriptions.get(historyIndex));
+    }
+
+    /**
+     * Saves the current sequence
+     * @param outFileName - The file to write to (or null to use the usual -out.mid file)
+     */
+    private void save(String outFileName) {
+        if (outFileName == null) {
+            MIDITools.writeSequenceToFile(midiFileName, midiFile, sequence);
+        } else {
+            MIDITools.writeSequenceToFile(midiFile, sequence, outFileName);
+        }
+    }
+
+    /**
+     * Shows every step in the history, marking the current one
+     */
+    private void showHistory() {
+        for (int i = 0; i < historyDescriptions.size(); i++) {
+            String marker = i == historyIndex ? "* " : "  ";
+            System.out.println(marker + i + ": " + historyDescriptions.get(i));
+        }
+    }
+}
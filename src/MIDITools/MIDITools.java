@@ -1,13 +1,22 @@
 package MIDITools;
 
 import MIDITools.Adjuster.*;
+import MIDITools.IO.MIDIFileLoader;
+import MIDITools.IO.ZSeqWriter;
 
 import javax.sound.midi.*;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 
 public class MIDITools {
     //<editor-fold desc="Constants">
 
+    /**
+     * Added to the end of the midi filename when writing the result
+     */
+    static final String OUT_FILE_SUFFIX = "-out.mid";
+
     /**
      * The user has to manually set the verbose flag if they wish to log everything
      * There's potentially a ton of things logged, so this is off by default
@@ -15,31 +24,202 @@ public class MIDITools {
     private static final String VERBOSE_FLAG = "--verbose";
     public static boolean verboseLogging = false;
 
+    /**
+     * Loads the midi once and then takes transformations from the console, line by line
+     * See InteractiveSession for the commands it accepts
+     */
+    private static final String INTERACTIVE_FLAG = "--interactive";
+    private static boolean interactiveMode = false;
+
+    /**
+     * Caches the sequence after each transformation, so a later run that only changes the
+     * last flags resumes from there (see PipelineCache)
+     */
+    private static final String CACHE_FLAG = "--cache";
+    private static boolean useCache = false;
+
+    /**
+     * Caches the parsed midi, keyed by its contents, so loading the same midi again skips decoding it
+     * (see ParsedSequenceCache)
+     */
+    private static final String PARSE_CACHE_FLAG = "--parse-cache";
+    private static boolean useParseCache = false;
+
+    /**
+     * How much memory (in MB) a directory batch can use for loaded midis at once - given as --heap-budget=512
+     * If not given, most of the max heap is used
+     */
+    private static final String HEAP_BUDGET_FLAG = "--heap-budget=";
+    private static long heapBudgetBytes = 0;
+    private static final long BYTES_PER_MEGABYTE = 1024 * 1024;
+
+    /**
+     * Streams the midi through the transformations instead of loading it, so memory use stays flat
+     * Only some transformations support this (see StreamingRunner)
+     */
+    private static final String STREAM_FLAG = "--stream";
+    private static boolean streamingMode = false;
+
+    /**
+     * Renders each written midi and the original offline and compares how they sound (see AudioVerifier)
+     * Given as --verify, or --verify=0.3 to change how different a channel can be before it's flagged
+     */
+    private static final String VERIFY_FLAG = "--verify";
+    private static boolean verifyOutput = false;
+    private static double verifyThreshold = AudioVerifier.DEFAULT_THRESHOLD;
+
+    /**
+     * Shows the transformations as they'll be run after ChainOptimizer rewrites them, without running them
+     */
+    private static final String EXPLAIN_FLAG = "--explain";
+    private static boolean explainPlan = false;
+
+    /**
+     * Analyzes the midi (or every midi in the directory) instead of transforming it (see CorpusAnalyzer)
+     * Given as --analyze for a table, or --analyze=json for JSON
+     */
+    private static final String ANALYZE_FLAG = "--analyze";
+    private static final String ANALYZE_JSON_FLAG = ANALYZE_FLAG + "=json";
+    private static boolean analyzeMode = false;
+    private static boolean analyzeAsJson = false;
+
+    /**
+     * Writes the result as a Zelda64 sequence instead of a midi (see ZSeqWriter)
+     */
+    private static final String ZSEQ_FLAG = "--zseq";
+    private static boolean writeZSeq = false;
+
+    /**
+     * Given on its own, runs every transformation on a made-up midi instead of a real one,
+     * so that a class data sharing archive can be recorded for faster startup (see StartupTrainer)
+     */
+    private static final String TRAIN_FLAG = "--train";
+
     //</editor-fold>
 
     //<editor-fold desc="Main / File Writing">
 
     public static void main(String[] args) {
-        if (!validateArgsAndSetVerbosity(args)) {
+        if (args.length == 1 && args[0].trim().equals(TRAIN_FLAG)) {
+            StartupTrainer.run();
+            return;
+        }
+
+        int startingIndex = validateArgsAndSetOptions(args);
+        if (startingIndex == -1) {
             System.exit(0);
         }
 
+        if (analyzeMode) {
+            if (!new CorpusAnalyzer().run(new File(args[0].trim()), analyzeAsJson)) {
+                System.exit(0);
+            }
+            return;
+        }
+
+        // Interactive mode has no transformations yet - they're typed in later
+        if (!interactiveMode) {
+            ChainOptimizer chainOptimizer = new ChainOptimizer();
+            args = chainOptimizer.optimize(args, startingIndex);
+            if (explainPlan) {
+                chainOptimizer.showPlan();
+                return;
+            }
+            if (verboseLogging && chainOptimizer.hasChanges()) {
+                chainOptimizer.showPlan();
+            }
+        }
+
         String midiFileName = args[0].trim();
 
+        // Given a directory, run the transformations on every midi in it
+        if (new File(midiFileName).isDirectory()) {
+            if (writeZSeq) {
+                showUsage("ERROR: " + ZSEQ_FLAG + " can only be used on a single midi.");
+                System.exit(0);
+            }
+
+            BatchRunner batchRunner = new BatchRunner(args, startingIndex, useCache, heapBudgetBytes);
+            batchRunner.run(new File(midiFileName));
+            verifyOutputs(batchRunner.getWrittenFiles());
+            return;
+        }
+
+        if (streamingMode) {
+            if (!new StreamingRunner(args, startingIndex).run(new File(midiFileName), midiFileName + OUT_FILE_SUFFIX)) {
+                System.exit(0);
+            }
+            verifyOutputs(new ArrayList<>(List.of(new File(midiFileName))));
+            return;
+        }
+
         Sequence sequence;
         File midiFile;
         try {
             midiFile = new File(midiFileName);
-            sequence = MidiSystem.getSequence(midiFile);
+            sequence = loadSequence(midiFile);
         } catch (IOException | InvalidMidiDataException e) {
             e.printStackTrace();
             return;
         }
 
-        int startingIndex = verboseLogging ? 2 : 1; // The logging flag adds one argument
-        processTransformations(args, startingIndex, sequence);
+        if (interactiveMode) {
+            new InteractiveSession(midiFileName, midiFile, sequence).run();
+            return;
+        }
+
+        if (useCache) {
+            sequence = new PipelineCache().processTransformations(midiFile, sequence, args, startingIndex);
+            if (sequence == null) {
+                System.exit(0);
+            }
+        } else if (!processTransformations(args, startingIndex, sequence)) {
+            System.exit(0);
+        }
+
+        if (writeZSeq) {
+            new ZSeqWriter().write(sequence, midiFileName + ZSeqWriter.OUT_FILE_SUFFIX);
+            return;
+        }
+
+        if (writeSequenceToFile(midiFileName, midiFile, sequence)) {
+            verifyOutputs(new ArrayList<>(List.of(midiFile)));
+        }
+    }
+
+    /**
+     * Compares how each midi sounds against its written result, if verifying is turned on
+     * @param midiFiles - The original midis whose results were written by this run - an out file left over
+     *                  from an earlier run must never be verified in place of one that failed to write
+     */
+    private static void verifyOutputs(ArrayList<File> midiFiles) {
+        if (!verifyOutput) {
+            return;
+        }
+
+        ArrayList<File> originalFiles = new ArrayList<>();
+        ArrayList<File> transformedFiles = new ArrayList<>();
+        for (File midiFile : midiFiles) {
+            originalFiles.add(midiFile);
+            transformedFiles.add(new File(midiFile.getPath() + OUT_FILE_SUFFIX));
+        }
+
+        if (!originalFiles.isEmpty()) {
+            new AudioVerifier(verifyThreshold, heapBudgetBytes).verify(originalFiles, transformedFiles);
+        }
+    }
 
-        writeSequenceToFile(midiFileName, midiFile, sequence);
+    /**
+     * Loads the midi file, using the parse cache if it's turned on
+     * @param midiFile - The midi file
+     * @return The sequence
+     * @throws IOException - if the file can't be read
+     * @throws InvalidMidiDataException - if it isn't a standard midi file
+     */
+    static Sequence loadSequence(File midiFile) throws IOException, InvalidMidiDataException {
+        return useParseCache
+            ? new ParsedSequenceCache().load(midiFile)
+            : MIDIFileLoader.load(midiFile);
     }
 
     /**
@@ -47,8 +227,9 @@ public class MIDITools {
      * @param args - The args passed in via command line
      * @param startingIndex - The index to start processing from
      * @param sequence - The sequence file to process
+     * @return True if every transformation ran; false if there was a problem with the args
      */
-    private static void processTransformations(String[] args, int startingIndex, Sequence sequence) {
+    static boolean processTransformations(String[] args, int startingIndex, Sequence sequence) {
         int argIndex = startingIndex;
         while (argIndex < args.length) {
             String flag = args[argIndex];
@@ -56,50 +237,157 @@ public class MIDITools {
 
             if (adjuster == null) {
                 System.out.println("ERROR: Invalid flag " + flag + " at index " + argIndex + ".");
-                System.exit(0);
+                return false;
             }
 
             argIndex = adjuster.execute(args, argIndex, sequence);
             if (argIndex == -1) {
-                // We would have already displayed the main error at this point, so just show usage and exit
+                // We would have already displayed the main error at this point, so just show usage
                 showUsage();
-                System.exit(0);
+                return false;
             }
         }
+        return true;
     }
 
     /**
-     * Validates the arguments and sets the verbosity flag
-     * - If no verbosity flag, validates there's a filename and at least one other parameter
-     * - If verbosity flag, validates there's a filename and at least noe parameter after that flag
-     * @param args - The given command line arguments
-     * @return True if validation was successful; false otherwise
+     * Splits the transformations into steps - each is a flag followed by its parameters
+     * - Parameters are found the same way the adjusters find them (see MIDIAdjuster.getAllArgs)
+     * @param args - The args passed in via command line
+     * @param startingIndex - The index of the first flag
+     * @return The list of steps, in order, with all their args trimmed
      */
-    private static boolean validateArgsAndSetVerbosity(String[] args) {
-        // There must be at least 2 args
-        boolean areArgsValid = args.length >= 2 && !args[0].trim().isEmpty();
+    static ArrayList<String[]> getTransformationSteps(String[] args, int startingIndex) {
+        ArrayList<String[]> steps = new ArrayList<>();
+        ArrayList<String> currentStep = null;
+        for (int i = startingIndex; i < args.length; i++) {
+            String arg = args[i].trim();
+            if (currentStep == null || arg.startsWith("-")) {
+                if (currentStep != null) {
+                    steps.add(currentStep.toArray(new String[0]));
+                }
+                currentStep = new ArrayList<>();
+            }
+            currentStep.add(arg);
+        }
 
-        // Check whether the second argument is the verbose flag and set it if so
-        if (areArgsValid && args[1].trim().equals(VERBOSE_FLAG)) {
-            verboseLogging = true;
+        if (currentStep != null) {
+            steps.add(currentStep.toArray(new String[0]));
+        }
+        return steps;
+    }
 
-            // If there's a verbose flag, we need one more argument!
-            if (args.length < 3) {
-                areArgsValid = false;
+    /**
+     * Validates the arguments and sets the option flags (such as verbosity)
+     * - Options are the arguments starting with -- directly after the filename
+     * - Validates there's a filename and at least one transformation after the options
+     * - Interactive mode takes its transformations from the console instead, so none are required
+     * @param args - The given command line arguments
+     * @return The index of the first transformation; -1 if validation failed
+     */
+    private static int validateArgsAndSetOptions(String[] args) {
+        boolean areArgsValid = args.length >= 1 && !args[0].trim().isEmpty();
+
+        int argIndex = 1;
+        while (areArgsValid && argIndex < args.length && args[argIndex].trim().startsWith("--")) {
+            String option = args[argIndex].trim();
+            if (option.equals(VERBOSE_FLAG)) {
+                verboseLogging = true;
+            } else if (option.equals(INTERACTIVE_FLAG)) {
+                interactiveMode = true;
+            } else if (option.equals(CACHE_FLAG)) {
+                useCache = true;
+            } else if (option.equals(PARSE_CACHE_FLAG)) {
+                useParseCache = true;
+            } else if (option.equals(VERIFY_FLAG)) {
+                verifyOutput = true;
+            } else if (option.startsWith(VERIFY_FLAG + "=")) {
+                verifyOutput = true;
+                String thresholdString = option.substring(VERIFY_FLAG.length() + 1);
+                try {
+                    verifyThreshold = Double.parseDouble(thresholdString);
+                } catch (NumberFormatException e) {
+                    showUsage("ERROR: The threshold given to " + VERIFY_FLAG + " must be a number, not " + thresholdString + ".");
+                    return -1;
+                }
+                if (verifyThreshold < 0 || Double.isNaN(verifyThreshold) || Double.isInfinite(verifyThreshold)) {
+                    showUsage("ERROR: The threshold given to " + VERIFY_FLAG + " must be at least 0.");
+                    return -1;
+                }
+            } else if (option.equals(ANALYZE_FLAG)) {
+                analyzeMode = true;
+            } else if (option.equals(ANALYZE_JSON_FLAG)) {
+                analyzeMode = true;
+                analyzeAsJson = true;
+            } else if (option.equals(EXPLAIN_FLAG)) {
+                explainPlan = true;
+            } else if (option.equals(ZSEQ_FLAG)) {
+                writeZSeq = true;
+            } else if (option.equals(STREAM_FLAG)) {
+                streamingMode = true;
+            } else if (option.startsWith(HEAP_BUDGET_FLAG)) {
+                String budgetString = option.substring(HEAP_BUDGET_FLAG.length());
+                long budgetMegabytes;
+                try {
+                    budgetMegabytes = Long.parseLong(budgetString);
+                } catch (NumberFormatException e) {
+                    showUsage("ERROR: The budget given to --heap-budget must be a whole number of MB, not " + budgetString + ".");
+                    return -1;
+                }
+                if (budgetMegabytes <= 0 || budgetMegabytes > Long.MAX_VALUE / BYTES_PER_MEGABYTE) {
+                    showUsage("ERROR: The budget given to --heap-budget must be between 1 and " + (Long.MAX_VALUE / BYTES_PER_MEGABYTE) + " MB.");
+                    return -1;
+                }
+                heapBudgetBytes = budgetMegabytes * BYTES_PER_MEGABYTE;
+            } else {
+                showUsage("ERROR: Invalid option " + option + ".");
+                return -1;
             }
+            argIndex++;
+        }
+
+        if (streamingMode && (interactiveMode || useCache)) {
+            showUsage("ERROR: " + STREAM_FLAG + " can't be used with " + INTERACTIVE_FLAG + " or " + CACHE_FLAG + ".");
+            return -1;
+        }
+
+        if (writeZSeq && (interactiveMode || streamingMode || verifyOutput)) {
+            showUsage("ERROR: " + ZSEQ_FLAG + " can't be used with " + INTERACTIVE_FLAG + ", " + STREAM_FLAG + " or " + VERIFY_FLAG + ".");
+            return -1;
+        }
+
+        if (explainPlan && interactiveMode) {
+            showUsage("ERROR: " + EXPLAIN_FLAG + " can't be used with " + INTERACTIVE_FLAG + ".");
+            return -1;
+        }
+
+        if (interactiveMode && areArgsValid && new File(args[0].trim()).isDirectory()) {
+            showUsage("ERROR: " + INTERACTIVE_FLAG + " can only be used on a single midi.");
+            return -1;
+        }
+
+        if (analyzeMode && (interactiveMode || streamingMode || argIndex < args.length)) {
+            showUsage("ERROR: " + ANALYZE_FLAG + " doesn't run any transformations, so it can't be given any or be used with other modes.");
+            return -1;
+        }
+
+        // There must be at least one transformation, unless they will be typed in later or the midi is only analyzed
+        if (argIndex >= args.length && !interactiveMode && !analyzeMode) {
+            areArgsValid = false;
         }
 
         if (!areArgsValid) {
             showUsage("ERROR: The midi filename and at least one transformation is required.");
+            return -1;
         }
 
-        return areArgsValid;
+        return argIndex;
     }
 
     /**
      * Shows the usage description
      */
-    private static void showUsage() {
+    static void showUsage() {
         showUsage("");
     }
 
@@ -113,10 +401,60 @@ public class MIDITools {
             System.out.println();
         }
 
-        System.out.println("usage: [midi filename] [--verbose (optional)] [a list of flags and their parameters]");
+        System.out.println("usage: [midi filename] [--verbose (optional)] [--cache (optional)] [a list of flags and their parameters]");
         System.out.println("\tRuns all given parameter transformations in the order given.");
         System.out.println();
 
+        System.out.println("usage: [midi directory] [--verbose (optional)] [--cache (optional)] [a list of flags and their parameters]");
+        System.out.println("\tRuns the transformations on every midi in the directory, several at a time.");
+        System.out.println("\tAdd --heap-budget=[MB] to limit how much memory the loaded midis can take at once.");
+        System.out.println();
+
+        System.out.println("options: --cache");
+        System.out.println("\tCaches the result of each transformation in the temp directory.");
+        System.out.println("\tRerunning the same midi with only the last flags changed resumes from the cache.");
+        System.out.println();
+
+        System.out.println("options: --parse-cache");
+        System.out.println("\tCaches each parsed midi in the temp directory, so loading the same midi again is faster.");
+        System.out.println();
+
+        System.out.println("options: --stream");
+        System.out.println("\tStreams the midi through the transformations without loading it, for very large midis.");
+        System.out.println("\tOnly -e replace, -c, -a and -s can be streamed.");
+        System.out.println();
+
+        System.out.println("options: --verify or --verify=[threshold = " + AudioVerifier.DEFAULT_THRESHOLD + "]");
+        System.out.println("\tRenders each channel of the original and the result offline and compares their spectra.");
+        System.out.println("\tFlags songs with a channel that differs by more than the threshold (0 = same, 1 = nothing alike).");
+        System.out.println("\tNeeds the jar run with java -jar (or java.desktop/com.sun.media.sound exported).");
+        System.out.println();
+
+        System.out.println("usage: [midi filename or directory] --analyze or --analyze=json");
+        System.out.println("\tShows how dense each channel's controllers and pitch bends are, without changing anything.");
+        System.out.println("\tIncludes the densest beats, how much values change and how much -c would clean up at a few tolerances.");
+        System.out.println();
+
+        System.out.println("options: --zseq");
+        System.out.println("\tWrites the result as a Zelda64 sequence (-out.zseq) instead of a midi, and shows its size.");
+        System.out.println("\tRun -p first, so pitch bends are scaled for the game.");
+        System.out.println();
+
+        System.out.println("options: --explain");
+        System.out.println("\tShows the transformations as they'll be run, without running them.");
+        System.out.println("\tSteps that change nothing are dropped, and -a/-s steps in a row are folded together.");
+        System.out.println();
+
+        System.out.println("usage: --train");
+        System.out.println("\tRuns every transformation on a made-up midi, to record a startup archive with:");
+        System.out.println("\tjava -XX:ArchiveClassesAtExit=MIDITools.jsa -jar MIDITools.jar --train");
+        System.out.println();
+
+        System.out.println("usage: [midi filename] --interactive [--verbose (optional)]");
+        System.out.println("\tLoads the midi once, then reads transformations from the console line by line.");
+        System.out.println("\tAlso accepts undo, redo, save [filename], history and quit.");
+        System.out.println();
+
         System.out.println("-p (pitch bend) [default range = 2]");
         System.out.println("\tAdjusts all pitch bend events by the given default range");
         System.out.println("\tAutomatically detects and uses the range in the midi if there is one");
@@ -134,8 +472,10 @@ public class MIDITools {
         System.out.println("\tFor example, a value of 127 would convert to a 5");
         System.out.println();
 
-        System.out.println("-e (expression)");
-        System.out.println("\tReplaces all expression events with volume events");
+        System.out.println("-e (expression) [replace|merge = replace]");
+        System.out.println("\treplace: Replaces all expression events with volume events");
+        System.out.println("\tmerge: Replaces the volume and expression events with volume events of the two");
+        System.out.println("\t       multiplied together (volume * expression / 127), only where that changes");
         System.out.println();
 
         System.out.println("-c (clean up) [event number] [tolerance = 10] [tick tolerance = 240]");
@@ -143,6 +483,7 @@ public class MIDITools {
         System.out.println("\t- Will group into groups divided by the tick tolerance, which is");
         System.out.println("\t- the amount of time before the next event of this type");
         System.out.println("\t- Will never clean up the last event in any group, to preserve the value");
+        System.out.println("\t- The tick tolerance can be given in milliseconds instead, i.e. 120ms");
         System.out.println("\tFor example, events with values 10, 12, 14, 16, 18, 20");
         System.out.println("\tWould be cleaned up to: 10, 20");
         System.out.println("\tFor pitch bends specifically, pass 'pitch-bend' for the event number");
@@ -170,6 +511,27 @@ public class MIDITools {
         System.out.println("\tThe value is equal to distance from a given base note value to the note in the channel.");
         System.out.println();
 
+        System.out.println("-t (tracks) [split|merge = split]");
+        System.out.println("\tsplit: Moves each channel into its own track, with meta events (tempo, etc.) in the first track");
+        System.out.println("\tmerge: Merges every track into one");
+        System.out.println("\tRun -t before -p on type 0 midis, so each channel gets its own pitch bend range");
+        System.out.println("\tType 0 midis are written as type 1 if they end up with more than one track");
+        System.out.println();
+
+        System.out.println("-l (limit) [max events = 4] [window ticks = 120]");
+        System.out.println("\tLimits each channel to the given number of non-note events within any window of ticks");
+        System.out.println("\tDrops the events that change their value the least, but keeps the last value of each burst");
+        System.out.println("\tProgram changes, pedals, RPNs and data entry are never dropped");
+        System.out.println("\tThe window can be given in milliseconds instead, i.e. 50ms");
+        System.out.println();
+
+        System.out.println("-q (quantize) [event number] [note division = 32] [channel = -1]");
+        System.out.println("\tMoves all instances of the given event to the nearest point on a grid, i.e. every 32nd note");
+        System.out.println("\tWhen several land on the same point, only the last one's value is kept");
+        System.out.println("\tThe grid can be given in milliseconds instead of a note division, i.e. 20ms");
+        System.out.println("\tFor pitch bends specifically, pass 'pitch-bend' for the event number");
+        System.out.println();
+
         System.out.println("example: test.midi -p 3 -v -c 10 -a 77 1");
         System.out.println("\tCleans up pitch bends to a default range of 3");
         System.out.println("\tReplaces modulation events with vibrato depth, with the default range");
@@ -182,21 +544,63 @@ public class MIDITools {
      * @param midiName - the name of the midi
      * @param midiFile - the actual file handle of the output midi
      * @param sequence - the sequence to write out to the file
+     * @return True if the file was written
      */
-    private static void writeSequenceToFile(String midiName, File midiFile, Sequence sequence) {
-        String outFileName = midiName + "-out.mid";
-        File file = new File(outFileName);
+    static boolean writeSequenceToFile(String midiName, File midiFile, Sequence sequence) {
+        return writeSequenceToFile(midiFile, sequence, midiName + OUT_FILE_SUFFIX);
+    }
+
+    /**
+     * Writes the sequence to the given out file, using the same midi file type as the original
+     * @param midiFile - the actual file handle of the original midi
+     * @param sequence - the sequence to write out to the file
+     * @param outFileName - the name of the file to write to
+     * @return True if the file was written
+     */
+    static boolean writeSequenceToFile(File midiFile, Sequence sequence, String outFileName) {
         try {
             int midiFileType =  MidiSystem.getMidiFileFormat(midiFile).getType();
-            MidiSystem.write(sequence, midiFileType, file);
+            return writeSequenceToFile(sequence, midiFileType, outFileName);
+        } catch (IOException | InvalidMidiDataException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Writes the sequence to the given out file
+     * @param sequence - the sequence to write out to the file
+     * @param midiFileType - the midi file type to write (normally the same as the original)
+     * @param outFileName - the name of the file to write to
+     * @return True if the file was written
+     */
+    static boolean writeSequenceToFile(Sequence sequence, int midiFileType, String outFileName) {
+        File file = new File(outFileName);
+        try {
+            MidiSystem.write(sequence, getFileTypeToWrite(sequence, midiFileType), file);
 
             System.out.println();
             System.out.println("File written to: " + outFileName);
             System.out.println();
-        } catch (IOException | InvalidMidiDataException e) {
+            return true;
+        } catch (IOException e) {
             e.printStackTrace();
+            return false;
         }
     }
 
+    /**
+     * Gets the midi file type to write the sequence as
+     * - Type 0 only allows a single track, so a sequence that's been split (see -t) is written as type 1
+     * @param sequence - the sequence to write
+     * @param midiFileType - the midi file type of the original
+     * @return The midi file type to write
+     */
+    static int getFileTypeToWrite(Sequence sequence, int midiFileType) {
+        return midiFileType == 0 && sequence.getTracks().length > 1
+            ? 1
+            : midiFileType;
+    }
+
     //</editor-fold>
 }
@@ -0,0 +1,308 @@
+package MIDITools;
+
+import MIDITools.IO.LazyMetaMessage;
+import MIDITools.IO.LazySysexMessage;
+import MIDITools.IO.MIDIFileLoader;
+import MIDITools.IO.SharedShortMessage;
+
+import javax.sound.midi.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.stream.IntStream;
+
+/**
+ * Caches parsed midis in a binary layout that loads without decoding the midi file again
+ * - Entries are keyed by a hash of the midi's contents, so an edited midi never hits an old entry
+ * - Each track is stored as columns - ticks, status bytes, data1 and data2 - plus a blob area with the
+ *   data of its meta and sysex events, so an entry is read straight into the tracks
+ * - Meta and sysex data is left in the entry's buffer until something asks for it
+ * - The cache lives in the temp directory, capped at MAX_CACHE_BYTES (least recently used go first)
+ *
+ * Layout (big endian):
+ *   header: MAGIC, FORMAT_VERSION, division type (float bits), resolution, number of tracks
+ *   track table: for each track, its number of events and the length of its blob area
+ *   tracks: for each track, long[] ticks, byte[] status, byte[] data1, byte[] data2, then the blob area
+ *   - Meta and sysex events have an entry in the blob area: the length of their data, then the data
+ *   - Meta events keep their type in data1
+ */
+public class ParsedSequenceCache {
+    private static final int MAGIC = 0x4D545351; // MTSQ
+
+    /**
+     * Bump this whenever the layout changes, so old entries are ignored
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    private static final long MAX_CACHE_BYTES = 256L * 1024 * 1024;
+    private static final String CACHE_EXTENSION = ".seq.bin";
+
+    private static final int HEADER_LENGTH = 5 * Integer.BYTES;
+    private static final int TRACK_TABLE_ENTRY_LENGTH = 2 * Integer.BYTES;
+
+    /**
+     * The length of each event's tick, status, data1 and data2 columns
+     */
+    private static final int BYTES_PER_EVENT = Long.BYTES + 3;
+
+    /**
+     * Entries smaller than this read their tracks one at a time, since starting up the threads takes longer
+     */
+    private static final int PARALLEL_SIZE_THRESHOLD = 64 * 1024;
+
+    private final FileCache cache;
+
+    public ParsedSequenceCache() {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "MIDITools-cache");
+        cache = new FileCache(directory, MAX_CACHE_BYTES, CACHE_EXTENSION);
+    }
+
+    /**
+     * Loads the midi file, from the cache if it's there
+     * - On a miss, it's loaded as normal and then stored for next time
+     * @param midiFile - The midi file
+     * @return The sequence
+     * @throws IOException - if the file can't be read
+     * @throws InvalidMidiDataException - if it isn't a standard midi file
+     */
+    public Sequence load(File midiFile) throws IOException, InvalidMidiDataException {
+        String key = FileCache.hashKey(String.valueOf(FORMAT_VERSION), FileCache.hashBytes(Files.readAllBytes(midiFile.toPath())));
+
+        File cachedFile = cache.get(key);
+        if (cachedFile != null) {
+            try {
+                return read(cachedFile);
+            } catch (IOException | InvalidMidiDataException e) {
+                // A broken entry is the same as a missing one - it'll be overwritten below
+                if (MIDITools.verboseLogging) {
+                    System.out.println("Ignoring unreadable cache entry " + cachedFile + ": " + e.getMessage());
+                }
+            }
+        }
+
+        ArrayList<String> warnings = new ArrayList<>();
+        Sequence sequence = MIDIFileLoader.load(midiFile, warnings);
+        for (String warning : warnings) {
+            System.out.println("WARNING: " + warning);
+        }
+
+        // A midi with corrupt tracks isn't cached, so the warnings are shown every time it's loaded
+        if (warnings.isEmpty()) {
+            store(key, sequence);
+        }
+        return sequence;
+    }
+
+    /**
+     * Stores the sequence in the cache
+     * - Failing to store it isn't fatal, it just won't be cached
+     * @param key - The key to store it under
+     * @param sequence - The sequence to store
+     */
+    private void store(String key, Sequence sequence) {
+        File tempFile = null;
+        try {
+            tempFile = cache.getTempFile(key);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                write(sequence, out);
+            }
+            cache.commit(tempFile, key);
+        } catch (IOException e) {
+            cache.discard(tempFile);
+            System.out.println("WARNING: Could not cache parsed midi: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the sequence in the cache layout
+     * @param sequence - The sequence to write
+     * @param out - Where to write it
+     */
+    private static void write(Sequence sequence, DataOutputStream out) throws IOException {
+        Track[] tracks = sequence.getTracks();
+
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(Float.floatToIntBits(sequence.getDivisionType()));
+        out.writeInt(sequence.getResolution());
+        out.writeInt(tracks.length);
+
+        for (Track track : tracks) {
+            out.writeInt(track.size());
+            out.writeInt(getBlobLength(track));
+        }
+
+        for (Track track : tracks) {
+            int size = track.size();
+            for (int i = 0; i < size; i++) {
+                out.writeLong(track.get(i).getTick());
+            }
+            for (int i = 0; i < size; i++) {
+                out.writeByte(track.get(i).getMessage().getStatus());
+            }
+            for (int i = 0; i < size; i++) {
+                MidiMessage msg = track.get(i).getMessage();
+                if (msg instanceof ShortMessage) {
+                    out.writeByte(((ShortMessage) msg).getData1());
+                } else if (msg instanceof MetaMessage) {
+                    out.writeByte(((MetaMessage) msg).getType());
+                } else {
+                    out.writeByte(0);
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                MidiMessage msg = track.get(i).getMessage();
+                out.writeByte(msg instanceof ShortMessage ? ((ShortMessage) msg).getData2() : 0);
+            }
+            for (int i = 0; i < size; i++) {
+                byte[] data = getBlobData(track.get(i).getMessage());
+                if (data != null) {
+                    out.writeInt(data.length);
+                    out.write(data);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads an entry back into a sequence, reading the tracks at the same time
+     * @param cachedFile - The entry
+     * @return The sequence
+     * @throws IOException - if the entry can't be read
+     * @throws InvalidMidiDataException - if the entry is from another version or cut short
+     */
+    private static Sequence read(File cachedFile) throws IOException, InvalidMidiDataException {
+        // Read in rather than mapped, since the meta and sysex messages keep using the buffer (see LazyMetaMessage),
+        // and a mapping would break (or keep the entry locked) once the entry is replaced
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(cachedFile.toPath()));
+
+        if (buffer.limit() < HEADER_LENGTH || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+            throw new InvalidMidiDataException("Not a cache entry of version " + FORMAT_VERSION);
+        }
+
+        float divisionType = Float.intBitsToFloat(buffer.getInt(8));
+        int resolution = buffer.getInt(12);
+        int numberOfTracks = buffer.getInt(16);
+        if (numberOfTracks < 0 || HEADER_LENGTH + (long)numberOfTracks * TRACK_TABLE_ENTRY_LENGTH > buffer.limit()) {
+            throw new InvalidMidiDataException("Cache entry has a corrupt track table");
+        }
+
+        // Where each track starts is known from the track table alone
+        int[] eventCounts = new int[numberOfTracks];
+        long[] trackOffsets = new long[numberOfTracks];
+        long offset = HEADER_LENGTH + (long)numberOfTracks * TRACK_TABLE_ENTRY_LENGTH;
+        for (int i = 0; i < numberOfTracks; i++) {
+            int tableOffset = HEADER_LENGTH + i * TRACK_TABLE_ENTRY_LENGTH;
+            eventCounts[i] = buffer.getInt(tableOffset);
+            trackOffsets[i] = offset;
+            offset += (long)eventCounts[i] * BYTES_PER_EVENT + buffer.getInt(tableOffset + Integer.BYTES);
+        }
+
+        if (offset != buffer.limit()) {
+            throw new InvalidMidiDataException("Cache entry is " + buffer.limit() + " bytes, expected " + offset);
+        }
+
+        Sequence sequence = new Sequence(divisionType, resolution);
+        Track[] tracks = new Track[numberOfTracks];
+        for (int i = 0; i < numberOfTracks; i++) {
+            tracks[i] = sequence.createTrack();
+        }
+
+        // Each track only adds to its own track, so this is safe to do in parallel
+        String[] errors = new String[numberOfTracks];
+        IntStream trackIndexes = IntStream.range(0, numberOfTracks);
+        if (buffer.limit() >= PARALLEL_SIZE_THRESHOLD) {
+            trackIndexes = trackIndexes.parallel();
+        }
+        trackIndexes.forEach(i -> errors[i] = readTrack(buffer, (int)trackOffsets[i], eventCounts[i], tracks[i]));
+
+        for (String error : errors) {
+            if (error != null) {
+                throw new InvalidMidiDataException(error);
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Reads the columns of a single track into the given track
+     * @param buffer - The contents of the entry
+     * @param offset - Where the track's columns start
+     * @param eventCount - The number of events in the track
+     * @param track - The track to add the events to
+     * @return An error if the track couldn't be read; null if it was fine
+     */
+    private static String readTrack(ByteBuffer buffer, int offset, int eventCount, Track track) {
+        int statusOffset = offset + eventCount * Long.BYTES;
+        int data1Offset = statusOffset + eventCount;
+        int data2Offset = data1Offset + eventCount;
+        int blobOffset = data2Offset + eventCount;
+
+        try {
+            for (int i = 0; i < eventCount; i++) {
+                long tick = buffer.getLong(offset + i * Long.BYTES);
+                int status = buffer.get(statusOffset + i) & 0xFF;
+                int data1 = buffer.get(data1Offset + i) & 0xFF;
+
+                MidiMessage msg;
+                if (!isBlobStatus(status)) {
+                    msg = new SharedShortMessage(status, data1, buffer.get(data2Offset + i) & 0xFF);
+                } else {
+                    // The data stays in the entry until something asks for it (see LazyMetaMessage)
+                    int dataLength = buffer.getInt(blobOffset);
+                    int dataOffset = blobOffset + Integer.BYTES;
+                    if (dataLength < 0 || (long)dataOffset + dataLength > buffer.limit()) {
+                        return "Cache entry has a corrupt blob at byte " + blobOffset;
+                    }
+                    blobOffset = dataOffset + dataLength;
+
+                    msg = status == MetaMessage.META
+                        ? new LazyMetaMessage(buffer, data1, dataOffset, dataLength)
+                        : new LazySysexMessage(buffer, status, dataOffset, dataLength);
+                }
+                track.add(new MidiEvent(msg, tick));
+            }
+            return null;
+        } catch (InvalidMidiDataException | RuntimeException e) {
+            return "Cache entry has a corrupt track: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Whether events with the given status keep their data in the blob area (meta and sysex events)
+     */
+    private static boolean isBlobStatus(int status) {
+        return status == MetaMessage.META ||
+            status == SysexMessage.SYSTEM_EXCLUSIVE ||
+            status == SysexMessage.SPECIAL_SYSTEM_EXCLUSIVE;
+    }
+
+    /**
+     * Gets the length of a track's blob area
+     */
+    private static int getBlobLength(Track track) {
+        int blobLength = 0;
+        for (int i = 0; i < track.size(); i++) {
+            byte[] data = getBlobData(track.get(i).getMessage());
+            if (data != null) {
+                blobLength += Integer.BYTES + data.length;
+            }
+        }
+        return blobLength;
+    }
+
+    /**
+     * Gets the data of a meta or sysex message, which goes in the blob area
+     * @return The data, or null for short messages
+     */
+    private static byte[] getBlobData(MidiMessage msg) {
+        if (msg instanceof MetaMessage) {
+            return ((MetaMessage) msg).getData();
+        }
+        if (msg instanceof SysexMessage) {
+            return ((SysexMessage) msg).getData();
+        }
+        return null;
+    }
+}
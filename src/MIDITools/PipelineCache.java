@@ -0,0 +1,116 @@
+package MIDITools;
+
+import MIDITools.IO.MIDIFileLoader;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+/**
+ * Runs the transformations while caching the sequence after each step
+ * - Each cached state is keyed by a hash of the input file and the steps run so far
+ * - A later run with the same input resumes from the longest prefix of steps that's cached,
+ *   so changing only the last flag of a long chain just reruns that flag
+ * - The cache lives in the temp directory, capped at MAX_CACHE_BYTES (least recently used go first)
+ */
+public class PipelineCache {
+    /**
+     * Bump this whenever a change to the adjusters would change their output, so old entries are ignored
+     * - Keys include the build too (see FileCache.hashKey), but that can't be found in every environment
+     */
+    private static final String CACHE_VERSION = "2";
+
+    private static final long MAX_CACHE_BYTES = 256L * 1024 * 1024;
+    private static final String CACHE_EXTENSION = ".step.mid";
+
+    private final FileCache cache;
+
+    public PipelineCache() {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "MIDITools-cache");
+        cache = new FileCache(directory, MAX_CACHE_BYTES, CACHE_EXTENSION);
+    }
+
+    /**
+     * Processes all the transformations, starting at the given index, resuming from the cache where possible
+     * @param midiFile - The file the sequence was loaded from
+     * @param sequence - The sequence loaded from the file
+     * @param args - The args passed in via command line
+     * @param startingIndex - The index to start processing from
+     * @return The transformed sequence (which may not be the one passed in), or null if there was a problem with the args
+     */
+    public Sequence processTransformations(File midiFile, Sequence sequence, String[] args, int startingIndex) {
+        ArrayList<String[]> steps = MIDITools.getTransformationSteps(args, startingIndex);
+
+        String inputHash;
+        int midiFileType;
+        try {
+            inputHash = FileCache.hashBytes(Files.readAllBytes(midiFile.toPath()));
+            midiFileType = MidiSystem.getMidiFileFormat(midiFile).getType();
+        } catch (IOException | InvalidMidiDataException e) {
+            e.printStackTrace();
+            return MIDITools.processTransformations(args, startingIndex, sequence) ? sequence : null;
+        }
+
+        // The key of each step covers every step before it too
+        String[] keys = new String[steps.size()];
+        StringBuilder prefix = new StringBuilder();
+        for (int i = 0; i < steps.size(); i++) {
+            prefix.append(String.join(" ", steps.get(i))).append('\n');
+            keys[i] = FileCache.hashKey(CACHE_VERSION, inputHash, prefix.toString());
+        }
+
+        int resumeIndex = 0;
+        for (int i = steps.size() - 1; i >= 0 && resumeIndex == 0; i--) {
+            File cachedFile = cache.get(keys[i]);
+            if (cachedFile == null) {
+                continue;
+            }
+
+            try {
+                sequence = MIDIFileLoader.load(cachedFile);
+                resumeIndex = i + 1;
+            } catch (IOException | InvalidMidiDataException e) {
+                // A broken entry is the same as a missing one - it'll be overwritten below
+                if (MIDITools.verboseLogging) {
+                    System.out.println("Ignoring unreadable cache entry " + cachedFile);
+                }
+            }
+        }
+
+        if (resumeIndex > 0) {
+            System.out.println("Resumed from the cached result of the first " + resumeIndex + " of " + steps.size() + " steps.");
+        }
+
+        for (int i = resumeIndex; i < steps.size(); i++) {
+            if (!MIDITools.processTransformations(steps.get(i), 0, sequence)) {
+                return null;
+            }
+            store(keys[i], sequence, midiFileType);
+        }
+
+        return sequence;
+    }
+
+    /**
+     * Stores the sequence in the cache
+     * - Failing to store it isn't fatal, it just won't be cached
+     * @param key - The key to store it under
+     * @param sequence - The sequence to store
+     * @param midiFileType - The midi file type to write it as
+     */
+    private void store(String key, Sequence sequence, int midiFileType) {
+        File tempFile = null;
+        try {
+            tempFile = cache.getTempFile(key);
+            MidiSystem.write(sequence, MIDITools.getFileTypeToWrite(sequence, midiFileType), tempFile);
+            cache.commit(tempFile, key);
+        } catch (IOException e) {
+            cache.discard(tempFile);
+            System.out.println("WARNING: Could not cache step: " + e.getMessage());
+        }
+    }
+}
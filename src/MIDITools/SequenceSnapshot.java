@@ -0,0 +1,198 @@
+package MIDITools;
+
+import javax.sound.midi.*;
+import java.util.Arrays;
+
+/**
+ * An immutable copy of a sequence, used for undo/redo in the interactive session
+ *
+ * Snapshots are built from the previous snapshot so that they can share structure with it:
+ * - A track that did not change reuses the previous snapshot's track as-is
+ * - A track that did change only stores new tick/message arrays; any event that is still the same
+ *   reuses the previous snapshot's message instead of copying it again
+ *
+ * The messages held here are never handed out - they are cloned when turning a snapshot back into
+ * a sequence - so sharing them between snapshots is safe even though the adjusters modify in place.
+ * Going back to a snapshot from the one the sequence is at only rebuilds the tracks that differ between them.
+ */
+public class SequenceSnapshot {
+    private final float divisionType;
+    private final int resolution;
+    private final TrackSnapshot[] tracks;
+
+    private SequenceSnapshot(float divisionType, int resolution, TrackSnapshot[] tracks) {
+        this.divisionType = divisionType;
+        this.resolution = resolution;
+        this.tracks = tracks;
+    }
+
+    /**
+     * Creates a snapshot of the given sequence
+     * @param sequence - The sequence to take a snapshot of
+     * @param previous - The snapshot to share unchanged tracks and events with (or null if there isn't one)
+     * @return The new snapshot
+     */
+    public static SequenceSnapshot of(Sequence sequence, SequenceSnapshot previous) {
+        Track[] sequenceTracks = sequence.getTracks();
+        TrackSnapshot[] trackSnapshots = new TrackSnapshot[sequenceTracks.length];
+        for (int i = 0; i < sequenceTracks.length; i++) {
+            TrackSnapshot previousTrack = previous != null && i < previous.tracks.length
+                ? previous.tracks[i]
+                : null;
+            trackSnapshots[i] = TrackSnapshot.of(sequenceTracks[i], previousTrack);
+        }
+        return new SequenceSnapshot(sequence.getDivisionType(), sequence.getResolution(), trackSnapshots);
+    }
+
+    /**
+     * Creates a new sequence with the contents of this snapshot
+     * - Every message is cloned, so the sequence can be modified freely
+     * @return The new sequence
+     */
+    public Sequence toSequence() {
+        return toSequence(null, null);
+    }
+
+    /**
+     * Creates a new sequence with the contents of this snapshot, from a sequence that's at another snapshot
+     * - Tracks this snapshot shares with the current one already have the right events in the current sequence,
+     *   so those events are moved over as they are - only the tracks that differ get their messages cloned
+     * - The current sequence must not be used afterward
+     * @param current - The sequence, exactly as it was when the current snapshot was taken (or null)
+     * @param currentSnapshot - The snapshot the sequence is at (or null to clone every message)
+     * @return The new sequence
+     */
+    public Sequence toSequence(Sequence current, SequenceSnapshot currentSnapshot) {
+        Sequence sequence;
+        try {
+            sequence = new Sequence(divisionType, resolution);
+        } catch (InvalidMidiDataException e) {
+            // The division type came from a valid sequence, so this can't happen
+            throw new IllegalStateException(e);
+        }
+
+        Track[] currentTracks = current != null && currentSnapshot != null &&
+                current.getTracks().length == currentSnapshot.tracks.length
+            ? current.getTracks()
+            : null;
+        for (int i = 0; i < tracks.length; i++) {
+            TrackSnapshot trackSnapshot = tracks[i];
+            Track track = sequence.createTrack();
+            if (currentTracks != null && i < currentTracks.length && currentSnapshot.tracks[i] == trackSnapshot) {
+                Track currentTrack = currentTracks[i];
+                for (int j = 0; j < currentTrack.size(); j++) {
+                    track.add(currentTrack.get(j));
+                }
+                continue;
+            }
+
+            for (int j = 0; j < trackSnapshot.ticks.length; j++) {
+                MidiMessage msg = (MidiMessage)trackSnapshot.messages[j].clone();
+                track.add(new MidiEvent(msg, trackSnapshot.ticks[j]));
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Gets the number of tracks this snapshot shares with the given one
+     * @param other - The snapshot to compare with
+     * @return The number of tracks that are the exact same instance
+     */
+    public int getNumberOfSharedTracks(SequenceSnapshot other) {
+        int sharedTracks = 0;
+        for (int i = 0; i < Math.min(tracks.length, other.tracks.length); i++) {
+            if (tracks[i] == other.tracks[i]) {
+                sharedTracks++;
+            }
+        }
+        return sharedTracks;
+    }
+
+    /**
+     * Gets the number of tracks in this snapshot
+     */
+    public int getNumberOfTracks() {
+        return tracks.length;
+    }
+
+    /**
+     * An immutable copy of a track - the ticks and messages of each event, in order
+     */
+    private static class TrackSnapshot {
+        private final long[] ticks;
+        private final MidiMessage[] messages;
+
+        private TrackSnapshot(long[] ticks, MidiMessage[] messages) {
+            this.ticks = ticks;
+            this.messages = messages;
+        }
+
+        /**
+         * Creates a snapshot of the given track, sharing as much as possible with the previous one
+         * @param track - The track to take a snapshot of
+         * @param previous - The previous snapshot of this track (or null if there isn't one)
+         * @return The previous snapshot if nothing changed; a new one otherwise
+         */
+        private static TrackSnapshot of(Track track, TrackSnapshot previous) {
+            int size = track.size();
+            long[] ticks = new long[size];
+            MidiMessage[] messages = new MidiMessage[size];
+
+            boolean isUnchanged = previous != null && previous.ticks.length == size;
+            int previousIndex = 0;
+            for (int i = 0; i < size; i++) {
+                MidiEvent e = track.get(i);
+                long tick = e.getTick();
+                MidiMessage msg = e.getMessage();
+
+                // Skip ahead to the previous events at the same tick, and reuse a message if one matches
+                MidiMessage sharedMessage = null;
+                if (previous != null) {
+                    while (previousIndex < previous.ticks.length && previous.ticks[previousIndex] < tick) {
+                        previousIndex++;
+                    }
+                    for (int j = previousIndex; j < previous.ticks.length && previous.ticks[j] == tick; j++) {
+                        if (isSameMessage(previous.messages[j], msg)) {
+                            sharedMessage = previous.messages[j];
+                            break;
+                        }
+                    }
+                }
+
+                ticks[i] = tick;
+                messages[i] = sharedMessage != null
+                    ? sharedMessage
+                    : (MidiMessage)msg.clone();
+
+                if (isUnchanged && (previous.ticks[i] != tick || previous.messages[i] != messages[i])) {
+                    isUnchanged = false;
+                }
+            }
+
+            return isUnchanged
+                ? previous
+                : new TrackSnapshot(ticks, messages);
+        }
+
+        /**
+         * Whether the two messages have the same bytes
+         * - Short messages are compared in place, since getMessage copies the bytes out each time -
+         *   only meta and sysex messages (which are rare) are copied to compare
+         */
+        private static boolean isSameMessage(MidiMessage a, MidiMessage b) {
+            if (a == b) {
+                return true;
+            }
+            if (a.getLength() != b.getLength() || a.getStatus() != b.getStatus()) {
+                return false;
+            }
+            if (a instanceof ShortMessage && b instanceof ShortMessage) {
+                ShortMessage shortA = (ShortMessage)a;
+                ShortMessage shortB = (ShortMessage)b;
+                return shortA.getData1() == shortB.getData1() && shortA.getData2() == shortB.getData2();
+            }
+            return Arrays.equals(a.getMessage(), b.getMessage());
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package MIDITools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures how long a run takes to start, with each way of launching the JVM
+ * - Each mode runs the same transformations on the same midi several times in a new JVM
+ * - Shows the time to the first line of output and the time to exit, as the median of the runs
+ * - The archive modes need the archive from StartupTrainer (see "Create Startup Archive.bat")
+ *
+ * usage: java -cp MIDITools.jar MIDITools.StartupBenchmark [midi filename] [runs = 10] [archive = MIDITools.jsa]
+ */
+public class StartupBenchmark {
+    private static final int DEFAULT_RUNS = 10;
+    private static final String DEFAULT_ARCHIVE = "MIDITools.jsa";
+
+    /**
+     * The transformations to run - the same ones the .bat file runs
+     */
+    private static final String[] TRANSFORMATIONS = { "-p", "-v", "-r", "-c", "pitch-bend", "16" };
+
+    private static final int MIDI_FILE_ARG = 0;
+    private static final int RUNS_ARG = 1;
+    private static final int ARCHIVE_ARG = 2;
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 3) {
+            System.out.println("usage: java -cp MIDITools.jar MIDITools.StartupBenchmark [midi filename] [runs = " + DEFAULT_RUNS + "] [archive = " + DEFAULT_ARCHIVE + "]");
+            return;
+        }
+
+        File midiFile = new File(args[MIDI_FILE_ARG]);
+        if (!midiFile.isFile()) {
+            System.out.println("ERROR: Midi file " + midiFile + " not found.");
+            return;
+        }
+
+        int runs = args.length > RUNS_ARG ? Integer.parseInt(args[RUNS_ARG]) : DEFAULT_RUNS;
+        File archive = new File(args.length > ARCHIVE_ARG ? args[ARCHIVE_ARG] : DEFAULT_ARCHIVE);
+
+        ArrayList<LaunchMode> modes = new ArrayList<>();
+        modes.add(new LaunchMode("No class data sharing", "-Xshare:off"));
+        modes.add(new LaunchMode("Default (JDK archive only)"));
+        if (archive.isFile()) {
+            String archiveOption = "-XX:SharedArchiveFile=" + archive.getPath();
+            modes.add(new LaunchMode("MIDITools archive", archiveOption));
+            modes.add(new LaunchMode("MIDITools archive, C1 only", archiveOption, "-XX:TieredStopAtLevel=1"));
+        } else {
+            System.out.println("WARNING: " + archive + " not found, so only the JDK's own archive is measured.");
+            System.out.println("Create it with: java -XX:ArchiveClassesAtExit=" + archive + " -jar MIDITools.jar --train");
+            System.out.println();
+        }
+
+        System.out.println("Running " + midiFile.getName() + " " + String.join(" ", TRANSFORMATIONS) + " " + runs + " times per mode...");
+        System.out.println();
+
+        double defaultMedian = 0;
+        System.out.println(String.format("%-30s %18s %14s %9s", "Mode", "First output (ms)", "Exit (ms)", "Speedup"));
+        for (LaunchMode mode : modes) {
+            ArrayList<Long> firstOutputTimes = new ArrayList<>();
+            ArrayList<Long> exitTimes = new ArrayList<>();
+
+            // The first run only warms up the disk cache
+            for (int i = 0; i <= runs; i++) {
+                long[] times = runOnce(mode, midiFile);
+                if (times == null) {
+                    return;
+                }
+                if (i > 0) {
+                    firstOutputTimes.add(times[0]);
+                    exitTimes.add(times[1]);
+                }
+            }
+
+            double firstOutputMedian = getMedianMilliseconds(firstOutputTimes);
+            double exitMedian = getMedianMilliseconds(exitTimes);
+            if (mode.options.isEmpty()) {
+                defaultMedian = exitMedian;
+            }
+
+            String speedup = defaultMedian > 0
+                ? String.format("%.2fx", defaultMedian / exitMedian)
+                : "";
+            System.out.println(String.format("%-30s %18.1f %14.1f %9s", mode.name, firstOutputMedian, exitMedian, speedup));
+        }
+    }
+
+    /**
+     * Runs the transformations once in a new JVM
+     * @param mode - How to launch the JVM
+     * @param midiFile - The midi to run on
+     * @return The nanoseconds until the first line of output and until exit; null if the run failed
+     */
+    private static long[] runOnce(LaunchMode mode, File midiFile) {
+        ArrayList<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(mode.options);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(MIDITools.class.getName());
+        command.add(midiFile.getPath());
+        Collections.addAll(command, TRANSFORMATIONS);
+
+        try {
+            long startTime = System.nanoTime();
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+
+            long firstOutputTime = -1;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                while (reader.readLine() != null) {
+                    if (firstOutputTime == -1) {
+                        firstOutputTime = System.nanoTime() - startTime;
+                    }
+                }
+            }
+
+            int exitCode = process.waitFor();
+            long exitTime = System.nanoTime() - startTime;
+            if (exitCode != 0) {
+                System.out.println("ERROR: " + mode.name + " exited with code " + exitCode + ".");
+                return null;
+            }
+
+            return new long[] { firstOutputTime == -1 ? exitTime : firstOutputTime, exitTime };
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Gets the median of the given times
+     * @param times - The times, in nanoseconds
+     * @return The median, in milliseconds
+     */
+    private static double getMedianMilliseconds(ArrayList<Long> times) {
+        Collections.sort(times);
+        int middle = times.size() / 2;
+        double median = times.size() % 2 == 0
+            ? (times.get(middle - 1) + times.get(middle)) / 2.0
+            : times.get(middle);
+        return median / 1000000.0;
+    }
+
+    /**
+     * A way to launch the JVM - a name and the JVM options to use
+     */
+    private static class LaunchMode {
+        private final String name;
+        private final List<String> options;
+
+        private LaunchMode(String name, String... options) {
+            this.name = name;
+            this.options = List.of(options);
+        }
+    }
+}
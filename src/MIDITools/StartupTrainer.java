@@ -0,0 +1,178 @@
+package MIDITools;
+
+import MIDITools.IO.ZSeqWriter;
+
+import javax.sound.midi.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+
+/**
+ * Runs a small made-up midi through every transformation, so that a class data sharing archive
+ * recorded during the run holds every class a real run would load
+ * - Run with: java -XX:ArchiveClassesAtExit=MIDITools.jsa -jar MIDITools.jar --train
+ * - Then: java -XX:SharedArchiveFile=MIDITools.jsa -jar MIDITools.jar [the usual args]
+ * - Covers loading, every adjuster, streaming, directory batches and writing (which loads the
+ *   javax.sound.midi file writers) both midis and sequences - everything is written to a temp
+ *   directory that's deleted afterward
+ */
+class StartupTrainer {
+    /**
+     * The transformations to train with - together, these run every adjuster
+     */
+    private static final String[][] TRAINING_CHAINS = {
+        { "-p" },
+        { "-v", "-r" },
+        { "-c", "pitch-bend", "16", "-c", "7", "10", "100ms" },
+        { "-e", "-a", "7", "5", "-s", "pitch-bend", "100", "2" },
+        { "-m", "program-change", "7", "10" },
+        { "-n", "1", "60" },
+        { "-t", "split", "-p", "-t", "merge" },
+        { "-l", "2", "60" },
+        { "-q", "pitch-bend", "16", "-q", "1" },
+        { "-e", "merge" }
+    };
+
+    /**
+     * The transformations to train the streaming runner with - only these can be streamed
+     */
+    private static final String[] STREAMING_CHAIN = { "-e", "-c", "pitch-bend", "16", "-a", "7", "1", "-s", "10", "2" };
+
+    private static final int RESOLUTION = 480;
+    private static final int NUMBER_OF_MEASURES = 16;
+    private static final int TEMPO_META_TYPE = 0x51;
+    private static final int TRACK_NAME_META_TYPE = 0x03;
+
+    /**
+     * Runs the training workload
+     * @return True if every step ran; false otherwise
+     */
+    static boolean run() {
+        System.out.println("Training: running every transformation on a made-up midi...");
+
+        File trainingDirectory = null;
+        PrintStream originalOut = System.out;
+        boolean succeeded = true;
+        try {
+            trainingDirectory = Files.createTempDirectory("MIDITools-train").toFile();
+            File midiFile = new File(trainingDirectory, "train.mid");
+            MidiSystem.write(createTrainingSequence(), 1, midiFile);
+
+            // The adjusters print a lot, none of which is of any use here
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+            for (String[] chain : TRAINING_CHAINS) {
+                String[] args = getArgs(midiFile, chain);
+                Sequence sequence = MIDITools.loadSequence(midiFile);
+                succeeded &= MIDITools.processTransformations(args, 1, sequence);
+                MIDITools.writeSequenceToFile(midiFile, sequence, midiFile.getPath() + MIDITools.OUT_FILE_SUFFIX);
+            }
+
+            new ZSeqWriter().write(MIDITools.loadSequence(midiFile), midiFile.getPath() + ZSeqWriter.OUT_FILE_SUFFIX);
+
+            String[] streamingArgs = getArgs(midiFile, STREAMING_CHAIN);
+            succeeded &= new StreamingRunner(streamingArgs, 1).run(midiFile, midiFile.getPath() + MIDITools.OUT_FILE_SUFFIX);
+
+            new BatchRunner(getArgs(trainingDirectory, TRAINING_CHAINS[0]), 1, false, 0).run(trainingDirectory);
+        } catch (IOException | InvalidMidiDataException e) {
+            e.printStackTrace();
+            succeeded = false;
+        } finally {
+            System.setOut(originalOut);
+            deleteDirectory(trainingDirectory);
+        }
+
+        if (succeeded) {
+            System.out.println("Training done.");
+        } else {
+            System.out.println("ERROR: Training didn't finish - the archive may be missing some classes.");
+        }
+        return succeeded;
+    }
+
+    /**
+     * Makes the command line args for running the given transformations on a file
+     */
+    private static String[] getArgs(File file, String[] chain) {
+        String[] args = new String[chain.length + 1];
+        args[0] = file.getPath();
+        System.arraycopy(chain, 0, args, 1, chain.length);
+        return args;
+    }
+
+    /**
+     * Creates a midi with every kind of event the transformations look at
+     * - A conductor track with the tempo and a name
+     * - Two channels with a pitch bend range (RPN), program change, volume, expression, panpot,
+     *   modulation, reverb, pitch bends and notes
+     * @return The sequence
+     */
+    private static Sequence createTrainingSequence() throws InvalidMidiDataException {
+        Sequence sequence = new Sequence(Sequence.PPQ, RESOLUTION);
+
+        Track conductor = sequence.createTrack();
+        conductor.add(new MidiEvent(new MetaMessage(TEMPO_META_TYPE, new byte[] { 0x07, (byte) 0xA1, 0x20 }, 3), 0));
+        byte[] name = "train".getBytes();
+        conductor.add(new MidiEvent(new MetaMessage(TRACK_NAME_META_TYPE, name, name.length), 0));
+
+        for (int channel = 0; channel < 2; channel++) {
+            Track track = sequence.createTrack();
+            addShortMessage(track, ShortMessage.CONTROL_CHANGE, channel, 101, 0, 0);
+            addShortMessage(track, ShortMessage.CONTROL_CHANGE, channel, 100, 0, 0);
+            addShortMessage(track, ShortMessage.CONTROL_CHANGE, channel, 6, 12, 0);
+            addShortMessage(track, ShortMessage.PROGRAM_CHANGE, channel, channel * 8, 0, RESOLUTION);
+
+            for (int measure = 0; measure < NUMBER_OF_MEASURES; measure++) {
+                long measureTick = (long) (measure + 1) * RESOLUTION * 4;
+                addShortMessage(track, ShortMessage.CONTROL_CHANGE, channel, 7, 100 - measure, measureTick);
+                addShortMessage(track, ShortMessage.CONTROL_CHANGE, channel, 10, 64 + measure, measureTick);
+                addShortMessage(track, ShortMessage.CONTROL_CHANGE, channel, 91, measure * 8, measureTick);
+
+                for (int beat = 0; beat < 4; beat++) {
+                    long tick = measureTick + (long) beat * RESOLUTION;
+                    int note = 60 + ((measure + beat) % 5);
+                    addShortMessage(track, ShortMessage.CONTROL_CHANGE, channel, 1, beat * 40, tick);
+                    addShortMessage(track, ShortMessage.CONTROL_CHANGE, channel, 11, 127 - beat * 10, tick);
+                    addShortMessage(track, ShortMessage.NOTE_ON, channel, note, 100, tick);
+
+                    // A small bend up and back down during the note
+                    for (int step = 0; step < 8; step++) {
+                        int bend = 8192 + (step < 4 ? step : 8 - step) * 300;
+                        addShortMessage(track, ShortMessage.PITCH_BEND, channel, bend % 128, bend / 128, tick + step * 30);
+                    }
+                    addShortMessage(track, ShortMessage.NOTE_OFF, channel, note, 0, tick + RESOLUTION - 1);
+                }
+            }
+        }
+
+        return sequence;
+    }
+
+    private static void addShortMessage(Track track, int command, int channel, int data1, int data2, long tick)
+            throws InvalidMidiDataException {
+        track.add(new MidiEvent(new ShortMessage(command, channel, data1, data2), tick));
+    }
+
+    /**
+     * Deletes the training directory and everything in it
+     */
+    private static void deleteDirectory(File directory) {
+        if (directory == null) {
+            return;
+        }
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+            }
+        }
+        if (!directory.delete()) {
+            directory.deleteOnExit();
+        }
+    }
+}
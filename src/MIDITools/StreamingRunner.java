@@ -0,0 +1,153 @@
+package MIDITools;
+
+import MIDITools.Adjuster.MIDIAdjuster;
+import MIDITools.Adjuster.MIDIAdjusterFactory;
+import MIDITools.IO.*;
+
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Runs the transformations on a midi without ever loading it as a Sequence
+ * - The file is mapped, and each track is decoded one event at a time, passed through every
+ *   transformation and written straight back out (see StreamStage)
+ * - Memory use stays the same however big the midi is - only the events a stage is holding back are kept
+ * - Only transformations that don't need the whole midi first can run this way (see MIDIAdjuster.isStreamable)
+ */
+public class StreamingRunner {
+    private final String[] args;
+    private final int startingIndex;
+
+    /**
+     * @param args - The args passed in via command line
+     * @param startingIndex - The index of the first transformation
+     */
+    public StreamingRunner(String[] args, int startingIndex) {
+        this.args = args;
+        this.startingIndex = startingIndex;
+    }
+
+    /**
+     * Streams the midi through every transformation into the out file
+     * @param midiFile - The midi file to read
+     * @param outFileName - The name of the file to write to
+     * @return True if the file was written; false if there was a problem with the args or the midi
+     */
+    public boolean run(File midiFile, String outFileName) {
+        ArrayList<StreamStage> stages = createStages();
+        if (stages == null) {
+            return false;
+        }
+
+        try (FileChannel inChannel = FileChannel.open(midiFile.toPath(), StandardOpenOption.READ);
+             FileChannel outChannel = FileChannel.open(new File(outFileName).toPath(),
+                 StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = inChannel.map(FileChannel.MapMode.READ_ONLY, 0, inChannel.size());
+            MIDIChunkTable chunkTable = MIDIChunkTable.read(buffer);
+
+            MIDIEventStreamWriter writer = new MIDIEventStreamWriter(outChannel);
+            writer.writeHeader(chunkTable.getMidiFileType(), chunkTable.getTrackChunks().size(), chunkTable.getDivision());
+
+            for (MIDIChunkTable.TrackChunk trackChunk : chunkTable.getTrackChunks()) {
+                streamTrack(buffer, trackChunk, stages, writer);
+            }
+            writer.flush();
+        } catch (IOException | UncheckedIOException | InvalidMidiDataException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        for (StreamStage stage : stages) {
+            stage.endStream();
+        }
+
+        System.out.println();
+        System.out.println("File written to: " + outFileName);
+        System.out.println();
+        return true;
+    }
+
+    /**
+     * Creates a stage for each transformation, in order
+     * @return The stages, or null if any transformation is invalid or can't be streamed
+     */
+    private ArrayList<StreamStage> createStages() {
+        ArrayList<StreamStage> stages = new ArrayList<>();
+        for (String[] step : MIDITools.getTransformationSteps(args, startingIndex)) {
+            String flag = step[0];
+            MIDIAdjuster adjuster = MIDIAdjusterFactory.getMIDIAdjusterByFlag(flag);
+
+            if (adjuster == null) {
+                System.out.println("ERROR: Invalid flag " + flag + ".");
+                return null;
+            }
+
+            if (!adjuster.isStreamable()) {
+                System.out.println("ERROR: " + flag + " can't be run in streaming mode, since it needs the whole midi loaded.");
+                return null;
+            }
+
+            StreamStage stage = adjuster.createStreamStage(step, 0);
+            if (stage == null) {
+                // We would have already displayed the main error at this point, so just show usage
+                MIDITools.showUsage();
+                return null;
+            }
+            stages.add(stage);
+        }
+        return stages;
+    }
+
+    /**
+     * Streams a single track through the stages
+     * - Each stage passes its events on to the next one, and the last one passes them to the writer
+     * @param buffer - The contents of the midi file
+     * @param trackChunk - The track to stream
+     * @param stages - The stages to run, in order
+     * @param writer - The writer of the out file
+     */
+    private static void streamTrack(
+            ByteBuffer buffer,
+            MIDIChunkTable.TrackChunk trackChunk,
+            ArrayList<StreamStage> stages,
+            MIDIEventStreamWriter writer) throws IOException, InvalidMidiDataException {
+        // inputs[i] takes the events into stage i, and the last one takes them into the writer
+        // Built from the writer backward, since each stage passes its events on to the next one's input
+        ArrayList<Consumer<StreamEvent>> inputs = new ArrayList<>();
+        for (int i = 0; i <= stages.size(); i++) {
+            inputs.add(null);
+        }
+
+        inputs.set(stages.size(), event -> {
+            try {
+                writer.write(event);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            StreamStage stage = stages.get(i);
+            Consumer<StreamEvent> nextInput = inputs.get(i + 1);
+            inputs.set(i, event -> stage.processEvent(event, nextInput));
+        }
+
+        writer.startTrack();
+        MIDIEventStreamReader reader = new MIDIEventStreamReader(buffer, trackChunk);
+        while (reader.hasNext()) {
+            inputs.get(0).accept(reader.next());
+        }
+
+        // Earlier stages go first, since what they let go of still has to pass through the later ones
+        for (int i = 0; i < stages.size(); i++) {
+            stages.get(i).endTrack(inputs.get(i + 1));
+        }
+        writer.endTrack();
+    }
+}
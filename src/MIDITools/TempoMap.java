@@ -0,0 +1,146 @@
+package MIDITools;
+
+import javax.sound.midi.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+
+/**
+ * Converts between ticks and real time, following every tempo change in the sequence
+ * - Tempo events can be in any track, so all tracks are looked through
+ * - Until the first tempo event, the midi default of 120 bpm is used
+ * - SMPTE timing has no tempo - ticks are a fixed length of time
+ */
+public class TempoMap {
+    private static final int TEMPO_META_TYPE = 0x51;
+    private static final long DEFAULT_MICROSECONDS_PER_QUARTER = 500000;
+
+    /**
+     * The ticks the tempo changes at, and the tempo and time from each of them on
+     * - The first entry is always at tick 0
+     * - Kept as arrays, since every lookup is a binary search over them
+     */
+    private final long[] changeTicks;
+    private final long[] changeMicroseconds;
+    private final long[] microsecondsPerQuarter;
+
+    private final float divisionType;
+    private final int resolution;
+
+    /**
+     * @param sequence - The sequence to get the tempo changes from
+     */
+    public TempoMap(Sequence sequence) {
+        divisionType = sequence.getDivisionType();
+        resolution = sequence.getResolution();
+
+        ArrayList<MidiEvent> tempoEvents = new ArrayList<>();
+        if (divisionType == Sequence.PPQ) {
+            for (Track track : sequence.getTracks()) {
+                for (int i = 0; i < track.size(); i++) {
+                    MidiEvent e = track.get(i);
+                    if (e.getMessage() instanceof MetaMessage && ((MetaMessage) e.getMessage()).getType() == TEMPO_META_TYPE) {
+                        tempoEvents.add(e);
+                    }
+                }
+            }
+            tempoEvents.sort(Comparator.comparingLong(MidiEvent::getTick));
+        }
+
+        ArrayList<Long> ticks = new ArrayList<>();
+        ArrayList<Long> microseconds = new ArrayList<>();
+        ArrayList<Long> tempos = new ArrayList<>();
+        ticks.add(0L);
+        microseconds.add(0L);
+        tempos.add(DEFAULT_MICROSECONDS_PER_QUARTER);
+        for (MidiEvent tempoEvent : tempoEvents) {
+            byte[] data = ((MetaMessage) tempoEvent.getMessage()).getData();
+            if (data.length < 3) {
+                continue;
+            }
+
+            long tempo = ((data[0] & 0xFF) << 16) | ((data[1] & 0xFF) << 8) | (data[2] & 0xFF);
+            if (tempo == 0) {
+                continue;
+            }
+            long tick = tempoEvent.getTick();
+
+            // A later tempo on the same tick replaces the earlier one
+            int last = ticks.size() - 1;
+            if (ticks.get(last) == tick) {
+                tempos.set(last, tempo);
+            } else {
+                microseconds.add(microseconds.get(last) + (tick - ticks.get(last)) * tempos.get(last) / resolution);
+                ticks.add(tick);
+                tempos.add(tempo);
+            }
+        }
+
+        changeTicks = toArray(ticks);
+        changeMicroseconds = toArray(microseconds);
+        microsecondsPerQuarter = toArray(tempos);
+    }
+
+    /**
+     * Gets the time of the given tick from the start of the song
+     * @param tick - The tick
+     * @return The time, in microseconds
+     */
+    public long getMicroseconds(long tick) {
+        if (divisionType != Sequence.PPQ) {
+            return (long)(tick * 1000000.0 / (divisionType * resolution));
+        }
+
+        int index = getChangeIndexAtTick(tick);
+        return changeMicroseconds[index]
+            + (tick - changeTicks[index]) * microsecondsPerQuarter[index] / resolution;
+    }
+
+    /**
+     * Gets the tick at the given time from the start of the song
+     * @param microseconds - The time, in microseconds
+     * @return The nearest tick to the time - rounded, since getMicroseconds rounds down
+     */
+    public long getTick(long microseconds) {
+        if (divisionType != Sequence.PPQ) {
+            return Math.round(microseconds * (divisionType * resolution) / 1000000.0);
+        }
+
+        int index = getLastIndexAtOrBefore(changeMicroseconds, microseconds);
+        long tempo = microsecondsPerQuarter[index];
+        return changeTicks[index]
+            + ((microseconds - changeMicroseconds[index]) * resolution + tempo / 2) / tempo;
+    }
+
+    /**
+     * Gets the index of the tempo in effect at the given tick
+     */
+    private int getChangeIndexAtTick(long tick) {
+        return getLastIndexAtOrBefore(changeTicks, tick);
+    }
+
+    /**
+     * Gets the index of the last of the sorted values that's at or before the given one
+     * - The first value is always 0, so there always is one
+     */
+    private static int getLastIndexAtOrBefore(long[] values, long value) {
+        int low = 0;
+        int high = values.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) / 2;
+            if (values[middle] <= value) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private static long[] toArray(ArrayList<Long> values) {
+        long[] array = new long[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+}